@@ -0,0 +1,134 @@
+package document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds remote operations in front of an engine until every operation they
+ * depend on was delivered, so they can arrive in any order. An operation is
+ * ready once it is the next one from its site and the engine already has
+ * every operation of its context; the engine would otherwise not find the
+ * operations it has to transform with.
+ *
+ * Only the oldest waiting operation of each site can be ready, so each site
+ * keeps its waiting operations sorted by sequence number and only the heads
+ * are checked. Operations that become ready together go to the engine as one
+ * batch. Engines without context vectors get every operation right away.
+ */
+public class CausalDeliveryQueue {
+
+    // Engine the operations are delivered to
+    private final DocumentEngine engine;
+    // Waiting operations of each site, by sequence number
+    private final HashMap<Integer, TreeMap<Integer, Operation>> waiting =
+            new HashMap<Integer, TreeMap<Integer, Operation>>();
+    // Number of waiting operations
+    private int depth = 0;
+    // Largest number of operations that were waiting at once
+    private int maxDepth = 0;
+
+    /**
+     * Creates an empty queue in front of the given engine.
+     *
+     * @param engine engine to deliver to
+     */
+    public CausalDeliveryQueue(DocumentEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Adds a remote operation and delivers it, along with every waiting
+     * operation that becomes ready because of it, in causal order.
+     * Operations the engine already has are passed on as well, for it to
+     * deal with.
+     *
+     * @param op remote operation
+     * @throws OperationEngineException
+     * @return the edits to make in the local document for the delivered
+     *         operations, empty if op has to wait
+     */
+    public List<Operation> deliver(Operation op) throws OperationEngineException {
+        ClientState state = this.engine.copyClientState();
+        if (state == null) {
+            Operation o = this.engine.pushRemoteOp(op);
+            return (o == null) ? Collections.<Operation>emptyList() : Collections.singletonList(o);
+        }
+
+        TreeMap<Integer, Operation> site = this.waiting.get(op.getSiteId());
+        if (site == null) {
+            site = new TreeMap<Integer, Operation>();
+            this.waiting.put(op.getSiteId(), site);
+        }
+        if (site.put(op.getSeqId(), op) == null) {
+            this.depth++;
+            this.maxDepth = Math.max(this.maxDepth, this.depth);
+        }
+
+        List<Operation> ready = new ArrayList<Operation>();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            Iterator<Map.Entry<Integer, TreeMap<Integer, Operation>>> sites = this.waiting.entrySet().iterator();
+            while (sites.hasNext()) {
+                Map.Entry<Integer, TreeMap<Integer, Operation>> entry = sites.next();
+                int siteId = entry.getKey();
+                TreeMap<Integer, Operation> ops = entry.getValue();
+                while (!ops.isEmpty()) {
+                    Operation head = ops.firstEntry().getValue();
+                    int seqId = state.getSeqForClient(siteId);
+                    if (head.getSeqId() > seqId + 1
+                            || (head.getSeqId() == seqId + 1 && !state.includes(head.getClientState()))) {
+                        break;
+                    }
+                    // ready, or already delivered
+                    ops.pollFirstEntry();
+                    ready.add(head);
+                    state = state.with(siteId, Math.max(seqId, head.getSeqId()));
+                    progress = true;
+                }
+                if (ops.isEmpty()) {
+                    sites.remove();
+                }
+            }
+        }
+
+        this.depth -= ready.size();
+        if (ready.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return this.engine.pushRemoteOps(ready);
+    }
+
+    /**
+     * Returns the operations still waiting for their context, e.g. to deliver
+     * them to the engine that replaces this one's.
+     *
+     * @return the waiting operations, by site and sequence number
+     */
+    public List<Operation> getWaiting() {
+        List<Operation> ops = new ArrayList<Operation>(this.depth);
+        for (TreeMap<Integer, Operation> site : this.waiting.values()) {
+            ops.addAll(site.values());
+        }
+        return ops;
+    }
+
+    /**
+     * Return the number of operations waiting for their context
+     */
+    public int getDepth() {
+        return this.depth;
+    }
+
+    /**
+     * Return the largest number of operations that were waiting at once
+     */
+    public int getMaxDepth() {
+        return this.maxDepth;
+    }
+}
@@ -1,36 +1,66 @@
 package document;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Arrays;
 
 /**
  * This vector will be the representation of our state machine:
  * A data representation of our state machine will be an integer array. e.g:
- * 
+ *
  * State machine1 --> [0, 1, 2, 3, 4, 5]
  * State machine2 --> [1, 2, 3, 4, 5]
- * 
+ *
  * The index corresponds to the ClientID. The integer value at that position
  * represents the number of operations processed in this state that are sent
  * from clientID denoted by index position.
  *
+ * Once a state covers many clients but has only seen operations from a few of
+ * them, e.g. because clients keep reconnecting under new IDs, it switches to a
+ * sparse representation that only stores the non-zero entries, sorted by
+ * client ID. Both representations behave the same.
  */
 public class ClientState implements Serializable {
 
 
     private static final long serialVersionUID = 5715462582805781166L;
-    
-    // holds all the information of the state of the location originating
+
+    // Smallest size at which a state may be stored sparsely
+    private static final int SPARSE_MIN_SIZE = 64;
+    // A state is stored sparsely while fewer than 1 in this many entries are non-zero
+    private static final int SPARSE_RATIO = 4;
+    // A sparse state goes back to dense once at least 1 in this many entries are non-zero
+    private static final int DENSE_RATIO = 2;
+
+    // holds all the information of the state of the location originating,
+    // or null if the state is sparse
     private int[] clients;
+    // client IDs of the non-zero entries of a sparse state, in increasing order
+    private int[] sites;
+    // sequence numbers of the non-zero entries of a sparse state
+    private int[] seqs;
+    // number of non-zero entries of a sparse state
+    private int count;
+    // size of a sparse state
+    private int size;
+
+    /**
+     * Creates a ClientState that takes ownership of the given sequence numbers,
+     * indexed by client ID.
+     *
+     * @param clients sequence numbers, not copied
+     */
+    public ClientState(int[] clients) {
+        this.clients = clients;
+        this.compact();
+    }
 
     public ClientState(Map<String, Object> properties) throws OperationEngineException {
         if (properties.containsKey("count")) {
             this.clients = new int[(Integer) properties.get("count")];
         }
         else if (properties.containsKey("contextVector")) {
-            this.clients = ((ClientState) properties.get("contextVector")).copyClients();
+            this.copyFrom((ClientState) properties.get("contextVector"));
         }
         else if (properties.containsKey("sites")) {
             this.clients = (int[]) properties.get("sites");
@@ -41,79 +71,126 @@ public class ClientState implements Serializable {
         else {
             throw new OperationEngineException("Uninitialized context vector");
         }
+        this.compact();
+    }
+
+    /**
+     * Makes this ClientState an independent copy of the given one.
+     */
+    private void copyFrom(ClientState cv) {
+        if (cv.clients != null) {
+            this.clients = Arrays.copyOf(cv.clients, cv.clients.length);
+        } else {
+            this.sites = Arrays.copyOf(cv.sites, cv.sites.length);
+            this.seqs = Arrays.copyOf(cv.seqs, cv.seqs.length);
+            this.count = cv.count;
+            this.size = cv.size;
+        }
     }
 
     /**
-     * Provides a public copy of the current state.
-     * 
+     * Provides the sequence numbers of the current state, indexed by client ID.
+     * A sparse state returns a new array.
+     *
      * @return Array of integer sequence numbers
      */
     public int[] getState() {
-        return this.clients;
+        if (this.clients != null) {
+            return this.clients;
+        }
+        int[] state = new int[this.size];
+        for (int i = 0; i < this.count; i++) {
+            state[this.sites[i]] = this.seqs[i];
+        }
+        return state;
     }
 
     /**
      * Makes a copy of this ClientState.
-     * 
+     *
      * @return Copy of this ClientState
      * @throws OperationEngineException
      */
     public ClientState copy() throws OperationEngineException {
-        HashMap<String, Object> properties = new HashMap<String, Object>();
-        properties.put("contextVector", this);
-        return new ClientState(properties);
+        ClientState cv = new ClientState((int[]) null);
+        cv.copyFrom(this);
+        return cv;
+    }
+
+    /**
+     * Returns a ClientState with the given sequence number for the given
+     * client and all other entries of this one. This ClientState is not
+     * changed, and is returned as is if it already has that sequence number,
+     * so states that do not change are shared instead of copied.
+     *
+     * @param client client ID (site)
+     * @param seq sequence number
+     * @return ClientState including the change
+     */
+    public ClientState with(int client, int seq) {
+        if (this.getSeqForClient(client) == seq) {
+            return this;
+        }
+        if (this.clients != null) {
+            int[] state = Arrays.copyOf(this.clients, Math.max(this.clients.length, client + 1));
+            state[client] = seq;
+            return new ClientState(state);
+        }
+        ClientState cv = new ClientState((int[]) null);
+        cv.copyFrom(this);
+        cv.setSeqForClient(client, seq);
+        return cv;
     }
 
     /**
-     * Makes a copy of the array in this ClientState.
+     * Checks if this ClientState only stores its non-zero entries.
      */
-    private int[] copyClients() {
-        return Arrays.copyOf(this.clients, this.clients.length);
+    public boolean isSparse() {
+        return this.clients == null;
     }
 
     /**
      * Increases the size of the ClientState to the given size. Initializes
      * new entries with zeros. This is useful for when a new client joins, we
      * can include that client in our state by growing the array.
-     * 
+     *
      * @param count size of new state
      */
     public void growTo(int count) {
+        if (this.clients == null) {
+            this.size = Math.max(this.size, count);
+            return;
+        }
         int l = this.clients.length;
         if (l < count) {
-            int[] newClients = new int[count];
-            for (int i = 0; i < count; i++) {
-                if (i < l) {
-                    newClients[i] = this.clients[i];
-                } else {
-                    newClients[i] = 0;
-                }
-            }
-            this.clients = newClients;
+            this.clients = Arrays.copyOf(this.clients, count);
+            this.compact();
         }
     }
 
     /**
-     * Gets the sequence number for the given site in this ClientState. Grows
-     * the ClientState if it does not include the site yet.
-     * 
-     * @param client index to grow to
+     * Gets the sequence number for the given site in this ClientState. Sites
+     * not included in the ClientState yet have not been seen, so their
+     * sequence number is 0.
+     *
+     * @param client client ID (site)
      * @return Integer sequence number for the site
      */
     public int getSeqForClient(int client) {
         if (client < 0) {
             throw new ArrayIndexOutOfBoundsException("Improper client input.");
         }
-        if (this.clients.length <= client) {
-            this.growTo(client + 1);
+        if (this.clients != null) {
+            return (client < this.clients.length) ? this.clients[client] : 0;
         }
-        return this.clients[client];
+        int i = Arrays.binarySearch(this.sites, 0, this.count, client);
+        return (i >= 0) ? this.seqs[i] : 0;
     }
 
     /**
      * Sets the sequence number for the given client id (site) in this ClientState.
      * Grows the ClientState if it does not include the site yet.
-     * 
+     *
      * @param client client ID (site)
      * @param seq sequence number
      */
@@ -121,10 +198,109 @@ public class ClientState implements Serializable {
         if (client < 0) {
             throw new ArrayIndexOutOfBoundsException("Improper client input.");
         }
-        if (this.clients.length <= client) {
-            this.growTo(client + 1);
+        if (this.clients != null) {
+            if (this.clients.length <= client) {
+                this.growTo(client + 1);
+                if (this.clients == null) {
+                    this.setSeqForClient(client, seq);
+                    return;
+                }
+            }
+            this.clients[client] = seq;
+            return;
+        }
+
+        this.size = Math.max(this.size, client + 1);
+        int i = Arrays.binarySearch(this.sites, 0, this.count, client);
+        if (i >= 0) {
+            if (seq != 0) {
+                this.seqs[i] = seq;
+            } else {
+                // zeros are not stored
+                System.arraycopy(this.sites, i + 1, this.sites, i, this.count - i - 1);
+                System.arraycopy(this.seqs, i + 1, this.seqs, i, this.count - i - 1);
+                this.count--;
+            }
+            return;
+        }
+        if (seq == 0) {
+            return;
+        }
+        i = -i - 1;
+        if (this.count == this.sites.length) {
+            int capacity = Math.max(4, this.count * 2);
+            this.sites = Arrays.copyOf(this.sites, capacity);
+            this.seqs = Arrays.copyOf(this.seqs, capacity);
+        }
+        System.arraycopy(this.sites, i, this.sites, i + 1, this.count - i);
+        System.arraycopy(this.seqs, i, this.seqs, i + 1, this.count - i);
+        this.sites[i] = client;
+        this.seqs[i] = seq;
+        this.count++;
+
+        if ((long) this.count * DENSE_RATIO >= this.size) {
+            this.clients = this.getState();
+            this.sites = null;
+            this.seqs = null;
+            this.count = 0;
+            this.size = 0;
+        }
+    }
+
+    /**
+     * Switches a dense state to the sparse representation if it is large and
+     * mostly zeros.
+     */
+    private void compact() {
+        if (this.clients == null || this.clients.length < SPARSE_MIN_SIZE) {
+            return;
+        }
+        int nonZero = 0;
+        for (int seq : this.clients) {
+            if (seq != 0) nonZero++;
         }
-        this.clients[client] = seq;
+        if ((long) nonZero * SPARSE_RATIO >= this.clients.length) {
+            return;
+        }
+        this.sites = new int[Math.max(4, nonZero)];
+        this.seqs = new int[this.sites.length];
+        this.count = 0;
+        for (int i = 0; i < this.clients.length; i++) {
+            if (this.clients[i] != 0) {
+                this.sites[this.count] = i;
+                this.seqs[this.count] = this.clients[i];
+                this.count++;
+            }
+        }
+        this.size = this.clients.length;
+        this.clients = null;
+    }
+
+    /**
+     * Finds the first client at or after the given one whose sequence number
+     * is not zero.
+     *
+     * @param from first client ID to look at
+     * @return client ID, or Integer.MAX_VALUE if there is none
+     */
+    private int nextNonZero(int from) {
+        if (this.clients != null) {
+            for (int i = from; i < this.clients.length; i++) {
+                if (this.clients[i] != 0) return i;
+            }
+            return Integer.MAX_VALUE;
+        }
+        int i = Arrays.binarySearch(this.sites, 0, this.count, from);
+        if (i < 0) i = -i - 1;
+        return (i < this.count) ? this.sites[i] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Finds the first client at or after the given one whose sequence number
+     * is not zero in either ClientState.
+     */
+    private int nextNonZero(ClientState cv, int from) {
+        return Math.min(this.nextNonZero(from), cv.nextNonZero(from));
     }
 
     /**
@@ -132,7 +308,7 @@ public class ClientState implements Serializable {
      * @return size
      */
     public int getSize() {
-        return this.clients.length;
+        return (this.clients != null) ? this.clients.length : this.size;
     }
 
     /**
@@ -146,7 +322,7 @@ public class ClientState implements Serializable {
      */
     public StateDifference subtract(ClientState cv) {
         StateDifference sd = new StateDifference();
-        for (int i = 0; i < this.clients.length; i++) {
+        for (int i = this.nextNonZero(0); i != Integer.MAX_VALUE; i = this.nextNonZero(i + 1)) {
             int a = this.getSeqForClient(i);
             int b = cv.getSeqForClient(i);
             if (a - b > 0) {
@@ -158,7 +334,7 @@ public class ClientState implements Serializable {
 
     /**
      * Checks if the ClientState values contain the same sequence IDs.
-     * 
+     *
      * @param cv the other context vector
      * @return True if equal, false otherwise
      */
@@ -166,6 +342,13 @@ public class ClientState implements Serializable {
         int[] a = this.clients;
         int[] b = cv.clients;
 
+        if (a == null || b == null) {
+            for (int i = this.nextNonZero(cv, 0); i != Integer.MAX_VALUE; i = this.nextNonZero(cv, i + 1)) {
+                if (this.getSeqForClient(i) != cv.getSeqForClient(i)) return false;
+            }
+            return true;
+        }
+
         // account for different size ClientStates
         int max = Math.max(a.length, b.length);
         for (int i = 0; i < max; i++) {
@@ -178,6 +361,72 @@ public class ClientState implements Serializable {
         return true;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof ClientState) && this.equals((ClientState) o);
+    }
+
+    /**
+     * Hashes the non-zero sequence IDs along with their client IDs, so that
+     * ClientStates that are equal hash the same whatever their size or
+     * representation.
+     */
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = this.nextNonZero(0); i != Integer.MAX_VALUE; i = this.nextNonZero(i + 1)) {
+            hash = 31 * (31 * hash + i) + this.getSeqForClient(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Checks if this ClientState is the given one advanced by exactly one
+     * operation, i.e. equal except that the given client's entry is seq.
+     *
+     * @param cv the earlier context vector
+     * @param client client ID of the operation
+     * @param seq sequence number of the operation
+     * @return True if the two states differ only by that operation
+     */
+    public boolean isAdvanceOf(ClientState cv, int client, int seq) {
+        if (this.getSeqForClient(client) != seq) {
+            return false;
+        }
+        for (int i = this.nextNonZero(cv, 0); i != Integer.MAX_VALUE; i = this.nextNonZero(cv, i + 1)) {
+            if (i != client && this.getSeqForClient(i) != cv.getSeqForClient(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if this ClientState includes every operation of the given
+     * sequence numbers, i.e. if each of its entries is at least as large.
+     *
+     * @param seqs sequence numbers indexed by client ID
+     * @return True if no entry of this ClientState is smaller
+     */
+    public boolean covers(int[] seqs) {
+        for (int i = 0; i < seqs.length; i++) {
+            if (seqs[i] != 0 && this.getSeqForClient(i) < seqs[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if this ClientState includes every operation of the given one,
+     * i.e. if none of its entries is smaller.
+     *
+     * @param cv the other context vector
+     * @return True if every entry of cv is at most the one of this ClientState
+     */
+    public boolean includes(ClientState cv) {
+        for (int i = cv.nextNonZero(0); i != Integer.MAX_VALUE; i = cv.nextNonZero(i + 1)) {
+            if (this.getSeqForClient(i) < cv.getSeqForClient(i)) return false;
+        }
+        return true;
+    }
+
     /**
      * This will be a comparator function to see if the ClientState values contain
      * the same sequence IDs.
@@ -189,15 +438,10 @@ public class ClientState implements Serializable {
      *         are equal, or 1 if this ClientState is ordered after the other
      */
     public int compare(ClientState cv) {
-        int[] a = this.clients;
-        int[] b = cv.clients;
-        // acount for different size ClientStates
-        int max = Math.max(a.length, b.length);
-        for (int i = 0; i < max; i++) {
-            int va = 0;
-            int vb = 0;
-            if (i < a.length) va = a[i];
-            if (i < b.length) vb = b[i];
+        // acount for different size ClientStates, only the non-zero entries matter
+        for (int i = this.nextNonZero(cv, 0); i != Integer.MAX_VALUE; i = this.nextNonZero(cv, i + 1)) {
+            int va = this.getSeqForClient(i);
+            int vb = cv.getSeqForClient(i);
 
             if (va < vb) return -1;
             else if (va > vb) return 1;
@@ -207,10 +451,19 @@ public class ClientState implements Serializable {
 
     /**
      * Converts the contents of this ClientState sites array to a string.
+     * Sparse states only list their non-zero entries as client=seq.
      */
     @Override
     public String toString() {
-        return Arrays.toString(this.clients);
+        if (this.clients != null) {
+            return Arrays.toString(this.clients);
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < this.count; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(this.sites[i]).append('=').append(this.seqs[i]);
+        }
+        return sb.append("}/").append(this.size).toString();
     }
 
 }
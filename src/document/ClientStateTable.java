@@ -2,7 +2,7 @@ package document;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
 
 /**
  * This class will serve as a storage mechanism for all of the ClientStates.
@@ -16,6 +16,8 @@ class ClientStateTable {
 
     // Stores all client states
     private final ArrayList<ClientState> cvt;
+    // Clients whose state has actually been set, as opposed to padding
+    private final BitSet known;
 
     /**
      * Create a ClientStateTable to store a table of states
@@ -27,8 +29,10 @@ class ClientStateTable {
      */
     public ClientStateTable(ClientState cv, int client) throws OperationEngineException {
         this.cvt = new ArrayList<ClientState>();
+        this.known = new BitSet();
         this.growTo(client + 1);
         this.cvt.set(client, cv);
+        this.known.set(client);
     }
 
     /**
@@ -46,9 +50,10 @@ class ClientStateTable {
     }
 
     /**
-     * Increases the size of all  ClientStates in the table to the given size,
-     * since they must have a position for all the clients, and increases the
-     * current ClientStateTable size All initial sequences are set to 0.
+     * Increases the current ClientStateTable size to the given size, adding
+     * empty states for the new clients. The ClientStates already in the table
+     * are left alone, since a client they do not include yet simply reads as
+     * sequence 0.
      * 
      * @param finalSize
      *            Table size
@@ -57,15 +62,8 @@ class ClientStateTable {
     private void growTo(int finalSize) throws OperationEngineException {
         int l = cvt.size();
 
-        for (ClientState state : cvt) {
-            state.growTo(finalSize);
-        }
-
         for (int j = l; j < finalSize; j++) {
-            HashMap<String, Object> properties = new HashMap<String, Object>();
-            properties.put("count", finalSize);
-            ClientState cv = new ClientState(properties);
-            this.cvt.add(cv);
+            this.cvt.add(new ClientState(new int[0]));
         }
     }
 
@@ -83,10 +81,8 @@ class ClientStateTable {
             if (this.cvt.size() <= client) {
                 this.growTo(client + 1);
             }
-            if (cv.getSize() <= client) {
-                cv.growTo(client + 1);
-            }
             this.cvt.set(client, cv);
+            this.known.set(client);
         }
     }
 
@@ -97,8 +93,47 @@ class ClientStateTable {
      * @throws OperationEngineException
      */
     public void operationUpdate(Operation op) throws OperationEngineException {
-        ClientState cv = op.getClientState().copy();
-        cv.setSeqForClient(op.siteId, op.seqId);
-        this.setClientState(op.siteId, cv);
+        this.setClientState(op.siteId, op.getClientState().with(op.siteId, op.seqId));
+    }
+
+    /**
+     * Returns the number of clients other than the given one whose state is
+     * known, i.e. that we have received at least one operation from.
+     *
+     * @param localClient client ID of this site
+     */
+    public int getRemoteClientCount(int localClient) {
+        int count = this.known.cardinality();
+        return this.known.get(localClient) ? count - 1 : count;
+    }
+
+    /**
+     * Computes the element-wise minimum of the states of all known clients
+     * other than the given one. Every operation at or below this state has
+     * been seen by all of those clients, so no operation they send in the
+     * future can be concurrent with it.
+     *
+     * @param localClient client ID of this site
+     * @return minimum state, or null if no remote client is known
+     */
+    public int[] getMinimumRemoteState(int localClient) {
+        int[] min = null;
+        for (int client = this.known.nextSetBit(0); client >= 0; client = this.known.nextSetBit(client + 1)) {
+            if (client == localClient) {
+                continue;
+            }
+            ClientState cv = this.cvt.get(client);
+            if (min == null) {
+                min = Arrays.copyOf(cv.getState(), Math.max(cv.getSize(), this.cvt.size()));
+                continue;
+            }
+            for (int i = 0; i < min.length; i++) {
+                int seq = cv.getSeqForClient(i);
+                if (seq < min[i]) {
+                    min[i] = seq;
+                }
+            }
+        }
+        return min;
     }
 }
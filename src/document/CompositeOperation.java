@@ -0,0 +1,207 @@
+package document;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A subclass of the Operation class which groups an ordered list of insert and
+ * delete edits into a single operation, e.g. a paste that replaces a selection
+ * or a find-and-replace across the document. Each edit applies to the document
+ * as left by the edits before it.
+ *
+ * The composite is transformed, recorded in the history and sent as one unit.
+ * Its edits carry the site ID, sequence number and key of the composite; their
+ * own context is not used and is left null.
+ */
+public class CompositeOperation extends Operation {
+
+    private static final long serialVersionUID = -2510647195312788463L;
+
+    // Edits in the order they are applied, never composite themselves
+    private Operation[] edits;
+
+    /**
+     * Creates a composite operation object directly from its values (see Operation.java for more info)
+     *
+     * @param edits the edits in the order they are applied, not copied
+     */
+    CompositeOperation(int siteId, int seqId, ClientState clientState, String key, Operation[] edits,
+                       int order, boolean local) {
+        super(siteId, seqId, clientState, key, null, edits[0].getOffset(), order, local);
+        this.type = OperationKind.COMPOSITE;
+        this.edits = edits;
+    }
+
+    /**
+     * Return the number of edits in this operation
+     */
+    public int getEditCount() {
+        return this.edits.length;
+    }
+
+    /**
+     * Return the edit at the given index, an insert or a delete
+     */
+    public Operation getEdit(int i) {
+        return this.edits[i];
+    }
+
+    public int getLength() {
+        int length = 0;
+        for (Operation edit : this.edits) {
+            length += edit.getLength();
+        }
+        return length;
+    }
+
+    public void applyTo(StringBuilder doc) {
+        for (Operation edit : this.edits) {
+            edit.applyTo(doc);
+        }
+    }
+
+    protected Operation transformedWithInsert(InsertOperation op, ClientState context) {
+        return this.transformedWithEdit(op, context, false);
+    }
+
+    protected Operation transformedWithDelete(DeleteOperation op, ClientState context) {
+        return this.transformedWithEdit(op, context, false);
+    }
+
+    protected Operation transformedWithInsertInText(InsertOperation op) {
+        return this.transformedWithEdit(op, null, true);
+    }
+
+    protected Operation transformedWithDeleteInText(DeleteOperation op) {
+        return this.transformedWithEdit(op, null, true);
+    }
+
+    /**
+     * Transforms this composite to include the effect of a single insert or
+     * delete. Each edit is transformed with the other operation, and the other
+     * operation is then transformed with the edit so it matches the document
+     * the next edit applies to.
+     *
+     * @param op insert or delete to include in this operation
+     * @param context context of the transformed operation
+     * @param inText true if the positions are in the text without tombstones
+     *               (see transformedInText)
+     * @return the transformed operation, or null if none of the edits has any
+     *         further effect
+     */
+    private Operation transformedWithEdit(Operation op, ClientState context, boolean inText) {
+        List<Operation> result = new ArrayList<>(this.edits.length + 1);
+        Operation other = op;
+        for (Operation edit : this.edits) {
+            Operation transformed = (other == null) ? edit
+                    : inText ? edit.transformedInText(other) : edit.transformedWith(other, null);
+            if (other != null) {
+                other = inText ? other.transformedInText(edit) : other.transformedWith(edit, null);
+            }
+            if (transformed != null) {
+                result.add(transformed);
+            }
+        }
+
+        if (result.isEmpty()) {
+            // no further effect
+            return null;
+        }
+        return new CompositeOperation(this.siteId, this.seqId, context, this.key,
+                result.toArray(new Operation[0]), this.getOrder(), this.isLocal());
+    }
+
+    protected Operation withContext(ClientState context) {
+        return new CompositeOperation(this.siteId, this.seqId, context, this.key, this.edits,
+                this.getOrder(), this.isLocal());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(super.toString());
+        sb.setLength(sb.length() - 1);
+        sb.append(",edits : [");
+        for (int i = 0; i < this.edits.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(this.edits[i].getKind().getName()).append('@').append(this.edits[i].getOffset());
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Collects the edits of a local composite operation before it is pushed
+     * into the engine (see OperationEngine.pushLocalComposite). Each edit is
+     * given in the document as left by the edits before it.
+     */
+    public static final class Builder {
+        // edits without an identity yet, as kind, position, text and length
+        private final List<OperationKind> kinds = new ArrayList<>();
+        private final List<Integer> positions = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+
+        /**
+         * Adds an insert of the given text at the given position.
+         */
+        public Builder insert(int position, String text) {
+            return this.add(OperationKind.INSERT, position, text, text.length());
+        }
+
+        /**
+         * Adds a delete of the given number of characters at the given
+         * position, without recording the deleted text.
+         */
+        public Builder delete(int position, int length) {
+            return this.add(OperationKind.DELETE, position, null, length);
+        }
+
+        /**
+         * Adds a delete of the given text at the given position.
+         */
+        public Builder delete(int position, String text) {
+            return this.add(OperationKind.DELETE, position, text, text.length());
+        }
+
+        private Builder add(OperationKind kind, int position, String value, int length) {
+            if (length > 0) {
+                this.kinds.add(kind);
+                this.positions.add(position);
+                this.values.add(value);
+                this.lengths.add(length);
+            }
+            return this;
+        }
+
+        /**
+         * Return true iff no edits were added
+         */
+        public boolean isEmpty() {
+            return this.kinds.isEmpty();
+        }
+
+        /**
+         * Creates the composite operation with the given identity.
+         */
+        CompositeOperation build(int siteId, int seqId, ClientState clientState, String key) {
+            if (this.isEmpty()) {
+                throw new IllegalStateException("Composite operation without edits.");
+            }
+            Operation[] edits = new Operation[this.kinds.size()];
+            for (int i = 0; i < edits.length; i++) {
+                int position = this.positions.get(i);
+                if (this.kinds.get(i) == OperationKind.INSERT) {
+                    edits[i] = new InsertOperation(siteId, seqId, null, key, this.values.get(i),
+                            position, Integer.MAX_VALUE, true);
+                }
+                else {
+                    edits[i] = new DeleteOperation(siteId, seqId, null, key,
+                            new int[] {position, this.lengths.get(i)}, this.values.get(i), Integer.MAX_VALUE, true);
+                }
+            }
+            return new CompositeOperation(siteId, seqId, clientState, key, edits, Integer.MAX_VALUE, true);
+        }
+    }
+}
@@ -1,70 +1,339 @@
 package document;
 
+import java.util.Arrays;
 import java.util.Map;
 
 
 /**
  * A subclass of the Operation class which represents a delete operation.
+ *
+ * A delete removes one or more ranges of characters. It starts out as a single
+ * range, and is split when a concurrent insert lands inside it. The ranges are
+ * sorted, do not overlap and are given as positions in the document with its
+ * tombstones (see InsertOperation), so they may cover characters that are
+ * deleted already. Engines that keep no tombstones give them as positions in
+ * the text instead, before anything is removed, and transform them with
+ * transformedInText. The value holds the deleted text of all ranges in order,
+ * or is null if only the length is known.
+ *
+ * An erase is a delete of tombstones every site knows are deleted, which
+ * OperationEngine sends along with a local edit to drop them from the
+ * document for good (see Tombstones.eraseStable). Unlike other deletes, it
+ * moves what comes after it, so other operations are transformed with it as
+ * with a delete in the text without tombstones. No operation that can still
+ * be concurrent with it has a position inside or right after the erased
+ * tombstones, so that converges all the same.
  */
 public class DeleteOperation extends Operation {
 
     private static final long serialVersionUID = 3085129896663389738L;
 
+    // Deleted ranges as (start, length) pairs
+    private int[] ranges;
+    // True if the ranges are tombstones to erase (see above)
+    private boolean erase;
+
     /**
      * Creates a delete operation object with the given properties (see Operation.java for more info)
+     * Deletes the characters of the value at the offset, or "length" characters
+     * if there is no value.
      * @param properties
      * @throws OperationEngineException
      */
     public DeleteOperation(Map<String, Object> properties) throws OperationEngineException {
         super(properties);
-        this.type = "delete";
+        this.type = OperationKind.DELETE;
+        if (this.value != null) {
+            this.ranges = new int[] {this.offset, this.value.length()};
+        }
+        else if (properties != null && properties.containsKey("length")) {
+            this.ranges = new int[] {this.offset, (Integer) properties.get("length")};
+        }
+        else if (properties != null && !properties.containsKey("state")) {
+            throw new OperationEngineException("Missing length for delete operation.");
+        }
+        else {
+            this.ranges = new int[] {this.offset, 0};
+        }
+    }
+
+    /**
+     * Creates a delete operation object directly from its values (see Operation.java for more info)
+     * Deletes the characters of the value at the offset.
+     */
+    public DeleteOperation(int siteId, int seqId, ClientState clientState, String key, String value,
+                           int offset, int order, boolean local) {
+        this(siteId, seqId, clientState, key, new int[] {offset, value.length()}, value, order, local);
+    }
+
+    /**
+     * Creates a delete operation that removes the given ranges (see above).
+     *
+     * @param ranges deleted ranges as (start, length) pairs, sorted and not
+     *               overlapping, not copied
+     * @param value deleted text, or null if only the length is known
+     */
+    public DeleteOperation(int siteId, int seqId, ClientState clientState, String key, int[] ranges,
+                           String value, int order, boolean local) {
+        super(siteId, seqId, clientState, key, value, ranges[0], order, local);
+        this.type = OperationKind.DELETE;
+        this.ranges = ranges;
     }
-    
-    
+
     /**
-     * Transforms this delete to include the effect of another delete. Basically,
-     * we will check the position of the other operation.  If the position
-     * is such that it will change the position of our operation, we have
-     * to modify our operation's position.
+     * Creates an erase of the given tombstones, as an edit of a composite
+     * operation (see above).
+     *
+     * @param ranges erased ranges as (start, length) pairs, not copied
+     */
+    static DeleteOperation erase(int siteId, int seqId, String key, int[] ranges) {
+        DeleteOperation op = new DeleteOperation(siteId, seqId, null, key, ranges, null, Integer.MAX_VALUE, true);
+        op.erase = true;
+        return op;
+    }
+
+    /**
+     * Return true iff this delete erases tombstones
+     */
+    boolean isErase() {
+        return this.erase;
+    }
+
+    /**
+     * Return the number of deleted ranges
+     */
+    public int getRangeCount() {
+        return this.ranges.length / 2;
+    }
+
+    /**
+     * Return the start of the given deleted range
+     */
+    public int getRangeStart(int r) {
+        return this.ranges[2 * r];
+    }
+
+    /**
+     * Return the length of the given deleted range
+     */
+    public int getRangeLength(int r) {
+        return this.ranges[2 * r + 1];
+    }
+
+    public int getLength() {
+        int length = 0;
+        for (int r = 1; r < this.ranges.length; r += 2) {
+            length += this.ranges[r];
+        }
+        return length;
+    }
+
+    /**
+     * Maps a position in the text before this delete to the position of the
+     * same place after it. Positions inside a deleted range map to where the
+     * range was.
+     *
+     * @param position position before the delete
+     * @return position after the delete
+     */
+    int mapPosition(int position) {
+        int shift = 0;
+        for (int r = 0; r < this.ranges.length; r += 2) {
+            int start = this.ranges[r];
+            if (start >= position) {
+                break;
+            }
+            shift += Math.min(this.ranges[r + 1], position - start);
+        }
+        return position - shift;
+    }
+
+    /**
+     * Removes the deleted ranges from the given text, last one first so the
+     * positions of the others stay valid.
+     */
+    public void applyTo(StringBuilder doc) {
+        if (this.erase) {
+            // tombstones are not in the text
+            return;
+        }
+        for (int r = this.ranges.length - 2; r >= 0; r -= 2) {
+            doc.delete(this.ranges[r], this.ranges[r] + this.ranges[r + 1]);
+        }
+    }
+
+    /**
+     * Transforms this delete to include the effect of another delete. The
+     * characters both of them delete simply stay deleted, and nothing moves,
+     * so the delete stays the same. An erase does move what comes after it.
      *
      * @param op delete operation to include in this operation
-     * @return This instance or null if this op has no further effect on other operations
+     * @param context context of the transformed operation
+     * @return the transformed operation, or null if it erased everything
+     *         this one deletes
      */
-    public Operation transformWithDelete(Operation op) {
-        // Editing different documents - no change
-        if(!this.key.equals(op.key)) {
-            return this;
+    protected Operation transformedWithDelete(DeleteOperation op, ClientState context) {
+        if (op.erase) {
+            return this.removedWith(op, context);
         }
-        // Shift left
-        if(this.offset > op.offset) {
-            this.offset -= op.value.length();
+        return this.withContext(context);
+    }
+
+    /**
+     * Transforms this delete to include the effect of another delete in the
+     * text without tombstones. Every character the other delete already
+     * removed is dropped from our ranges, and the rest are shifted left by
+     * what was deleted before them.
+     *
+     * @param op delete operation to include in this operation
+     * @return the transformed operation or null if this op has no further
+     *         effect on other operations
+     */
+    protected Operation transformedWithDeleteInText(DeleteOperation op) {
+        return this.removedWith(op, null);
+    }
+
+    /**
+     * Drops the characters another delete removes from our ranges, and
+     * shifts the rest left by what it removed before them.
+     *
+     * @return the transformed operation, or null if nothing is left
+     */
+    private Operation removedWith(DeleteOperation op, ClientState context) {
+        int[] other = op.ranges;
+        RangeBuilder out = new RangeBuilder(this.ranges.length, this.value != null);
+        // ranges of the other delete before j end before the current position,
+        // and removed shift characters
+        int j = 0;
+        int shift = 0;
+        int textPos = 0;
+        for (int r = 0; r < this.ranges.length; r += 2) {
+            int start = this.ranges[r];
+            int end = start + this.ranges[r + 1];
+            int cur = start;
+            while (cur < end) {
+                while (j < other.length && other[j] + other[j + 1] <= cur) {
+                    shift += other[j + 1];
+                    j += 2;
+                }
+                if (j < other.length && other[j] <= cur) {
+                    // already deleted by the other op
+                    cur = other[j] + other[j + 1];
+                    continue;
+                }
+                int next = (j < other.length) ? Math.min(end, other[j]) : end;
+                out.add(cur - shift, next - cur, this.value, textPos + cur - start);
+                cur = next;
+            }
+            textPos += end - start;
         }
-        // no further effect - return null
-        else if(this.offset == op.offset) {
+
+        if (out.isEmpty()) {
+            // no further effect
             return null;
         }
-        return this;
+        return this.withRanges(context, out.getRanges(), out.getText());
     }
 
     /**
-     * Transforms this delete to include the effect of another insert. Basically,
-     * we will check the position of the other operation.  If the position
-     * is such that it will change the position of our operation, we have
-     * to modify our operation's position.
+     * Transforms this delete to include the effect of an insert. Ranges at or
+     * after the insert shift right, and a range the insert lands inside is
+     * split around the inserted text, which stays in the document.
      *
      * @param op insert operation to include in this operation
-     * @return This instance
+     * @param context context of the transformed operation
+     * @return the transformed operation
      */
-    public Operation transformWithInsert(Operation op) {
-        // Editing different documents - no change
-        if(!this.key.equals(op.key)) {
-            return this;
-        }
-        // Shift right
-        if(this.offset >= op.offset) {
-            this.offset += op.value.length();
+    protected Operation transformedWithInsert(InsertOperation op, ClientState context) {
+        int position = op.offset;
+        int length = op.getLength();
+        RangeBuilder out = new RangeBuilder(this.ranges.length + 2, false);
+        for (int r = 0; r < this.ranges.length; r += 2) {
+            int start = this.ranges[r];
+            int end = start + this.ranges[r + 1];
+            // Shift right
+            if (position <= start) {
+                out.add(start + length, end - start, null, 0);
+            }
+            // Split around the insert
+            else if (position < end) {
+                out.add(start, position - start, null, 0);
+                out.add(position + length, end - position, null, 0);
+            }
+            else {
+                out.add(start, end - start, null, 0);
+            }
         }
-        return this;
+        // the same characters are deleted, so the text does not change
+        return this.withRanges(context, out.getRanges(), this.value);
     }
 
+    protected Operation withContext(ClientState context) {
+        return this.withRanges(context, this.ranges, this.value);
+    }
+
+    /**
+     * Returns a copy of this delete, erase or not, with other ranges.
+     */
+    private DeleteOperation withRanges(ClientState context, int[] ranges, String value) {
+        DeleteOperation op = new DeleteOperation(this.siteId, this.seqId, context, this.key, ranges,
+                value, this.getOrder(), this.isLocal());
+        op.erase = this.erase;
+        return op;
+    }
+
+    @Override
+    public String toString() {
+        String s = super.toString();
+        return s.substring(0, s.length() - 1) + ",ranges : " + Arrays.toString(this.ranges)
+                + (this.erase ? ",erase : true}" : "}");
+    }
+
+    /**
+     * Collects the ranges of a transformed delete, merging ranges that touch,
+     * along with their text if it is known.
+     */
+    static final class RangeBuilder {
+        private int[] ranges;
+        private int length;
+        private final StringBuilder text;
+
+        RangeBuilder(int capacity, boolean withText) {
+            this.ranges = new int[Math.max(2, capacity)];
+            this.text = withText ? new StringBuilder() : null;
+        }
+
+        /**
+         * Adds a range, and the characters of the given text starting at textStart.
+         */
+        void add(int start, int count, String value, int textStart) {
+            if (count <= 0) {
+                return;
+            }
+            if (this.text != null) {
+                this.text.append(value, textStart, textStart + count);
+            }
+            if (this.length > 0 && this.ranges[this.length - 2] + this.ranges[this.length - 1] == start) {
+                this.ranges[this.length - 1] += count;
+                return;
+            }
+            if (this.length == this.ranges.length) {
+                this.ranges = Arrays.copyOf(this.ranges, this.length * 2);
+            }
+            this.ranges[this.length++] = start;
+            this.ranges[this.length++] = count;
+        }
+
+        boolean isEmpty() {
+            return this.length == 0;
+        }
+
+        int[] getRanges() {
+            return (this.length == this.ranges.length) ? this.ranges : Arrays.copyOf(this.ranges, this.length);
+        }
+
+        String getText() {
+            return (this.text == null) ? null : this.text.toString();
+        }
+    }
 }
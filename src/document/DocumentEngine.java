@@ -0,0 +1,140 @@
+package document;
+
+import java.util.List;
+
+/**
+ * The part of a convergence engine the collaborative document uses: local
+ * edits are pushed in to get the operation to send, and remote operations are
+ * pushed in to get the edit to make in the local document.
+ *
+ * OperationEngine transforms operations against its history, RgaEngine keeps
+ * the document as a sequence CRDT and needs no transforms at all, and
+ * SequencedEngine transforms against the total order the server assigns.
+ * Every site editing a document has to use the same kind of engine (see
+ * EngineKind).
+ *
+ * An engine only handles the operations of a single document, and is only
+ * used from one thread at a time. CollabModel creates a new one whenever it
+ * moves to another document. A client has one document open at a time, so
+ * there is no registry of engines and no worker threads to spread them over.
+ */
+public interface DocumentEngine {
+
+    /**
+     * Creates an operation object and pushes it into the engine.
+     *
+     * @param local    True iff the operation was originated locally
+     * @param key      the operation's key (document name)
+     * @param value    the operation's value
+     * @param type     the operation's type (insert/delete)
+     * @param position the operation's offset
+     * @param site     siteID where remote operation was made (ignored for local ops)
+     * @param cv       the operation's context vector (ignored for local ops)
+     * @param order    global ordering of operation (ignored for local ops)
+     * @return the operation to send for a local operation, or null if it is
+     *         held back until earlier ones are acknowledged (see acknowledge);
+     *         the edit to make in the local document for a remote one
+     * @throws OperationEngineException
+     */
+    Operation push(boolean local, String key, String value, String type,
+                   int position, int site, int[] cv, int order) throws OperationEngineException;
+
+    /**
+     * Creates a local delete of the given number of characters and pushes it
+     * into the engine, without knowing the deleted text.
+     *
+     * @param key      the operation's key (document name)
+     * @param position offset of the first deleted character
+     * @param length   number of deleted characters
+     * @return the operation to send, or null if it is held back
+     */
+    Operation pushLocalDelete(String key, int position, int length);
+
+    /**
+     * Creates a local composite operation from the given edits and pushes it
+     * into the engine as a single operation.
+     *
+     * @param key   the operation's key (document name)
+     * @param edits edits in the order they were made, at least one
+     * @return the operation to send, or null if it is held back
+     */
+    Operation pushLocalComposite(String key, CompositeOperation.Builder edits);
+
+    /**
+     * Process a remote operation, as sent by the engine of another site.
+     *
+     * @param op Remote operation
+     * @throws OperationEngineException
+     * @return the edit to make in the local document, or null if the
+     *         operation has no effect on it
+     */
+    Operation pushRemoteOp(Operation op) throws OperationEngineException;
+
+    /**
+     * Process a run of remote operations in the order given, as if each were
+     * passed to pushRemoteOp.
+     *
+     * @param ops Remote operations, in delivery order
+     * @throws OperationEngineException
+     * @return the edits to make in the local document, in the same order,
+     *         leaving out the operations that have no effect on it
+     */
+    List<Operation> pushRemoteOps(List<Operation> ops) throws OperationEngineException;
+
+    /**
+     * Records that the server assigned the given order to the oldest
+     * operation this site sent that was not acknowledged yet. Engines that
+     * hold local operations back until then return the next one to send.
+     *
+     * @param order order the server assigned
+     * @return the operation to send now, or null if there is none
+     */
+    Operation acknowledge(int order);
+
+    /**
+     * Sets the context vector of the engine, e.g. when a client syncs with
+     * the server.
+     *
+     * @param cv context vector
+     */
+    void setCV(ClientState cv);
+
+    /**
+     * Makes a copy of the context vector of the engine.
+     *
+     * @return copy of the ClientState for the local site
+     * @throws OperationEngineException
+     */
+    ClientState copyClientState() throws OperationEngineException;
+
+    /**
+     * Returns the operations the engine integrated that the given context
+     * vector does not include, local and remote, in an order consistent with
+     * causality. Operations every site has seen may be gone already, but the
+     * context vector of any site editing the document includes those.
+     *
+     * @param cv context vector
+     * @return the operations as they were sent, empty for engines without
+     *         context vectors
+     */
+    List<Operation> getOperationsAfter(ClientState cv);
+
+    /**
+     * Takes operations another site's engine integrated (see
+     * getOperationsAfter) as integrated here as well, along with a snapshot
+     * of its document, so later operations concurrent with them can still be
+     * integrated. The context vector and the state of the document are
+     * restored separately.
+     *
+     * @param ops operations in an order consistent with causality
+     * @throws OperationEngineException
+     */
+    void restoreHistory(List<Operation> ops) throws OperationEngineException;
+
+    /**
+     * Sets the number of sites editing the document, including this one.
+     *
+     * @param sites number of sites
+     */
+    void setExpectedSites(int sites);
+}
@@ -0,0 +1,291 @@
+package document;
+
+import java.util.Random;
+
+/**
+ * A rolling hash of the text of a document, kept up to date as text is
+ * inserted and deleted, so that replicas can tell cheaply whether their texts
+ * are the same.
+ *
+ * The hash is the polynomial hash of the characters modulo 2^61 - 1, which
+ * every site computes the same way. The text is kept in blocks in a treap
+ * ordered by position, and every node holds the hash of its subtree, since the
+ * hash of two texts joined together follows from their hashes and lengths
+ * alone. An edit only changes the blocks it touches and the nodes above them,
+ * so it takes O(log n) steps besides the work on the edited blocks.
+ */
+public class DocumentFingerprint {
+
+    /**
+     * Fingerprint of an operation that does not carry one, which is also
+     * what operations from older clients arrive with. Fingerprints are never
+     * 0.
+     */
+    public static final long NONE = 0;
+
+    // Modulus of the hash, a Mersenne prime
+    private static final long MOD = (1L << 61) - 1;
+    // Base of the hash
+    private static final long BASE = 0x5DEECE66DL;
+    // Length of the blocks new text is cut into
+    private static final int BLOCK_SIZE = 64;
+    // Longest a block may grow to by typing into it
+    private static final int MAX_BLOCK = 2 * BLOCK_SIZE;
+
+    // Root of the treap, or null for an empty text
+    private Node root = null;
+    // Priorities of the nodes, which only shape the treap
+    private final Random random = new Random();
+
+    /**
+     * Creates the fingerprint of an empty text.
+     */
+    public DocumentFingerprint() {
+    }
+
+    /**
+     * Creates the fingerprint of the given text.
+     *
+     * @param text initial text
+     */
+    public DocumentFingerprint(String text) {
+        this.root = this.blocks(text);
+    }
+
+    /**
+     * Return the fingerprint of the current text
+     */
+    public long value() {
+        return hash(this.root) + 1;
+    }
+
+    /**
+     * Return the length of the current text
+     */
+    public int length() {
+        return size(this.root);
+    }
+
+    /**
+     * Records text inserted into the document.
+     *
+     * @param position offset of the first inserted character
+     * @param text     inserted text
+     */
+    public void insert(int position, String text) {
+        if (text.isEmpty()) {
+            return;
+        }
+        if (position < 0 || position > this.length()) {
+            throw new IndexOutOfBoundsException("Insert at " + position + " in a text of " + this.length());
+        }
+        this.root = this.insert(this.root, position, text);
+    }
+
+    /**
+     * Records characters deleted from the document.
+     *
+     * @param position offset of the first deleted character
+     * @param length   number of deleted characters
+     */
+    public void delete(int position, int length) {
+        if (length <= 0) {
+            return;
+        }
+        if (position < 0 || position + length > this.length()) {
+            throw new IndexOutOfBoundsException("Delete of " + length + " at " + position
+                    + " in a text of " + this.length());
+        }
+        this.root = this.delete(this.root, position, length);
+    }
+
+    /**
+     * Records the changes of an insert, delete or composite operation, as
+     * made in the document.
+     *
+     * @param op operation in the current text
+     */
+    public void apply(Operation op) {
+        switch (op.getKind()) {
+            case INSERT:
+                this.insert(op.getOffset(), op.getValue());
+                break;
+            case DELETE:
+                // last range first, so the others stay where they are
+                DeleteOperation delete = (DeleteOperation) op;
+                for (int r = delete.getRangeCount() - 1; r >= 0; r--) {
+                    this.delete(delete.getRangeStart(r), delete.getRangeLength(r));
+                }
+                break;
+            case COMPOSITE:
+                CompositeOperation composite = (CompositeOperation) op;
+                for (int i = 0; i < composite.getEditCount(); i++) {
+                    this.apply(composite.getEdit(i));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Node insert(Node t, int position, String text) {
+        if (t == null) {
+            return this.blocks(text);
+        }
+        int before = size(t.left);
+        if (position < before) {
+            t.left = this.insert(t.left, position, text);
+        }
+        else if (position <= before + t.text.length()) {
+            // into this block
+            int k = position - before;
+            String joined = t.text.substring(0, k) + text + t.text.substring(k);
+            if (joined.length() > MAX_BLOCK) {
+                return merge(merge(t.left, this.blocks(joined)), t.right);
+            }
+            t.setText(joined);
+        }
+        else {
+            t.right = this.insert(t.right, position - before - t.text.length(), text);
+        }
+        t.update();
+        return t;
+    }
+
+    private Node delete(Node t, int position, int length) {
+        if (t == null || length <= 0) {
+            return t;
+        }
+        if (position <= 0 && position + length >= t.size) {
+            return null;
+        }
+        int before = size(t.left);
+        int blockEnd = before + t.text.length();
+        int end = position + length;
+
+        if (position < before) {
+            t.left = this.delete(t.left, position, Math.min(end, before) - position);
+        }
+        int from = Math.max(position, before);
+        int to = Math.min(end, blockEnd);
+        if (from < to) {
+            String text = t.text.substring(0, from - before) + t.text.substring(to - before);
+            if (text.isEmpty()) {
+                return merge(t.left, this.delete(t.right, 0, end - blockEnd));
+            }
+            t.setText(text);
+        }
+        if (end > blockEnd) {
+            int start = Math.max(position, blockEnd);
+            t.right = this.delete(t.right, start - blockEnd, end - start);
+        }
+        t.update();
+        return t;
+    }
+
+    /**
+     * Cuts text into blocks and joins them into a treap.
+     */
+    private Node blocks(String text) {
+        Node t = null;
+        for (int i = 0; i < text.length(); i += BLOCK_SIZE) {
+            t = merge(t, new Node(text.substring(i, Math.min(text.length(), i + BLOCK_SIZE)),
+                    this.random.nextInt()));
+        }
+        return t;
+    }
+
+    /**
+     * Joins two treaps, all of the text of a coming before that of b.
+     */
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.update();
+            return a;
+        }
+        b.left = merge(a, b.left);
+        b.update();
+        return b;
+    }
+
+    private static int size(Node t) {
+        return (t == null) ? 0 : t.size;
+    }
+
+    private static long hash(Node t) {
+        return (t == null) ? 0 : t.hash;
+    }
+
+    private static long power(Node t) {
+        return (t == null) ? 1 : t.power;
+    }
+
+    /**
+     * Multiplies modulo 2^61 - 1, splitting the factors so no product
+     * overflows.
+     */
+    private static long mul(long a, long b) {
+        long au = a >>> 31;
+        long ad = a & ((1L << 31) - 1);
+        long bu = b >>> 31;
+        long bd = b & ((1L << 31) - 1);
+        long mid = ad * bu + au * bd;
+        long midu = mid >>> 30;
+        long midd = mid & ((1L << 30) - 1);
+        return reduce(au * bu * 2 + midu + (midd << 31) + ad * bd);
+    }
+
+    private static long reduce(long x) {
+        long r = (x >>> 61) + (x & MOD);
+        return (r >= MOD) ? r - MOD : r;
+    }
+
+    /**
+     * A block of text, and the hash of the text of its subtree.
+     */
+    private static final class Node {
+        private final int priority;
+        private Node left;
+        private Node right;
+        private String text;
+        // hash of the block and BASE to the power of its length
+        private long blockHash;
+        private long blockPower;
+        // length, hash and BASE to the power of the length of the subtree
+        private int size;
+        private long hash;
+        private long power;
+
+        Node(String text, int priority) {
+            this.priority = priority;
+            this.setText(text);
+            this.update();
+        }
+
+        void setText(String text) {
+            this.text = text;
+            long h = 0;
+            long p = 1;
+            for (int i = 0; i < text.length(); i++) {
+                h = reduce(mul(h, BASE) + text.charAt(i) + 1);
+                p = mul(p, BASE);
+            }
+            this.blockHash = h;
+            this.blockPower = p;
+        }
+
+        void update() {
+            this.size = size(this.left) + this.text.length() + size(this.right);
+            long h = reduce(mul(hash(this.left), this.blockPower) + this.blockHash);
+            this.hash = reduce(mul(h, power(this.right)) + hash(this.right));
+            this.power = mul(mul(power(this.left), this.blockPower), power(this.right));
+        }
+    }
+}
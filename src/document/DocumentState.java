@@ -3,10 +3,41 @@ package document;
 public class DocumentState  {
     public String documentText;
     public final ClientState contextVector;
+    // Element sequence of the text if the document is edited with RgaEngine, null otherwise
+    public final RgaElements elements;
+    // Deleted characters of the text if the document is edited with OperationEngine, null otherwise
+    // (see OperationEngine.saveTombstones)
+    public final int[] tombstones;
+    // Operations the engine kept along with the text, for a snapshot another site resyncs with,
+    // null otherwise (see DocumentEngine.getOperationsAfter)
+    public final Operation[] operations;
+    // Order of the last operation of the document the server sent before a snapshot was taken,
+    // -1 if there is none; the text includes every operation up to it
+    public final int order;
 
     public DocumentState(String documentText, ClientState contextVector)
+    {
+        this(documentText, contextVector, null, null);
+    }
+
+    public DocumentState(String documentText, ClientState contextVector, RgaElements elements)
+    {
+        this(documentText, contextVector, elements, null);
+    }
+
+    public DocumentState(String documentText, ClientState contextVector, RgaElements elements, int[] tombstones)
+    {
+        this(documentText, contextVector, elements, tombstones, null, -1);
+    }
+
+    public DocumentState(String documentText, ClientState contextVector, RgaElements elements, int[] tombstones,
+                         Operation[] operations, int order)
     {
         this.documentText = documentText;
         this.contextVector = contextVector;
+        this.elements = elements;
+        this.tombstones = tombstones;
+        this.operations = operations;
+        this.order = order;
     }
 }
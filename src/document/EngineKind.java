@@ -0,0 +1,66 @@
+package document;
+
+/**
+ * The kinds of engines a document can be edited with. All sites editing a
+ * document have to use the same kind, since their operations differ.
+ */
+public enum EngineKind {
+    OT("ot"),
+    RGA("rga"),
+    SEQUENCED("sequenced");
+
+    // Name used for the kind in the configuration
+    private final String name;
+
+    EngineKind(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Return the name of this kind, e.g. "ot"
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Creates an engine of this kind for the given site.
+     *
+     * @param siteId client ID of the engine instance
+     * @return a new engine
+     * @throws OperationEngineException
+     */
+    public DocumentEngine create(int siteId) throws OperationEngineException {
+        switch (this) {
+            case RGA:
+                return new RgaEngine(siteId);
+            case SEQUENCED:
+                return new SequencedEngine(siteId);
+            case OT:
+            default:
+                return new OperationEngine(siteId);
+        }
+    }
+
+    /**
+     * Looks up a kind by its name.
+     *
+     * @param name kind name, e.g. "rga"
+     * @return the kind, or null if there is no kind with that name
+     */
+    public static EngineKind fromName(String name) {
+        if (name == null) {
+            return null;
+        }
+        switch (name) {
+            case "ot":
+                return OT;
+            case "rga":
+                return RGA;
+            case "sequenced":
+                return SEQUENCED;
+            default:
+                return null;
+        }
+    }
+}
@@ -1,28 +1,32 @@
 package document;
 
-import java.util.HashMap;
-import java.util.Vector;
-import java.util.Stack;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.List;
+import java.util.Stack;
 
 /**
  * This history buffer keeps track of what operations have been performed. This
  * is useful for the OT algorithm.
- * All operations in the history are immutable, since they are only to be used as a record.
+ * Operations never change, so the history keeps the ones it is given as its record.
  * Since each client has his/her own history buffer, and there is no shared memory,
  * this code should be thread safe.
+ *
+ * Operations are stored per site in growable arrays indexed by sequence number,
+ * so looking up an operation does not allocate and a run of sequence numbers
+ * from one site can be copied out as a single slice.
  */
 class HistoryBuffer {
 
-
-    // Stores all processed operations of the client
-    private final HashMap<String, Operation> ops;
+    // Stores all processed operations of the client, indexed by site ID
+    private Segment[] sites;
     // Number of processed operations
     private int size ;
+    // Number of operations ever added, used to stamp execution order
+    private int executed;
 
     public HistoryBuffer() {
-        this.ops = new HashMap<>();
+        this.sites = new Segment[4];
         this.size = 0;
     }
 
@@ -31,15 +35,15 @@ class HistoryBuffer {
      * @param op local operation performed
      */
     public void addLocalOperation(Operation op) {
-        String key = Operation.createHistoryKey(op.siteId, op.seqId);
-        this.ops.put(key, op);
-        op.immutable = true;
+        this.segmentFor(op.siteId).put(op.seqId, op, this.executed++);
         ++this.size;
     }
 
     /**
      * Adds a remote operation to the history. If the operation already exists
      * in the history, simply updates its order attribute. If not, adds it.
+     * The same operation may arrive again with the order it already has, e.g.
+     * from the server after a snapshot of another site included it.
      *
      * If the operation does not have a order or if there is an operation with the
      * same key in the total order, an error is thrown.
@@ -48,13 +52,19 @@ class HistoryBuffer {
      * @throws OperationEngineException
      */
     public void addRemoteOperation(Operation op) throws OperationEngineException {
-        String key = Operation.createHistoryKey(op.siteId, op.seqId);
-        Operation eop = this.ops.get(key);
+        Operation eop = this.getOperation(op.siteId, op.seqId);
 
         if (op.getOrder() == Integer.MAX_VALUE) {
             throw new OperationEngineException("Remote op missing total order.");
         }
+        else if (this.isCollected(op.siteId, op.seqId)) {
+            // already discarded as stable, nobody can need it again
+            return;
+        }
         else if (eop != null) {
+            if (eop.getOrder() == op.getOrder()) {
+                return;
+            }
             if (eop.getOrder() != Integer.MAX_VALUE) {
                 throw new OperationEngineException("Duplicate op in total order: " +
                         "old=" + eop.getOrder() + " new=" + op.getOrder());
@@ -62,51 +72,199 @@ class HistoryBuffer {
             eop.setOrder(op.getOrder());
         }
         else {
-            this.ops.put(key, op);
-            op.immutable = true;
+            this.segmentFor(op.siteId).put(op.seqId, op, this.executed++);
+            ++this.size;
+        }
+    }
+
+    /**
+     * Adds an operation another site integrated, as it is, unless the
+     * history already has it or discarded it as stable.
+     *
+     * @param op operation of the other site's history
+     */
+    public void addRestoredOperation(Operation op) {
+        if (this.getOperation(op.siteId, op.seqId) == null && !this.isCollected(op.siteId, op.seqId)) {
+            this.segmentFor(op.siteId).put(op.seqId, op, this.executed++);
             ++this.size;
         }
     }
 
+    /**
+     * Looks up a single operation in the history.
+     *
+     * @param site client ID that created the operation
+     * @param seq sequence number of the operation at that client
+     * @return the operation, or null if it is not in the history
+     */
+    public Operation getOperation(int site, int seq) {
+        if (site < 0 || site >= this.sites.length || this.sites[site] == null) {
+            return null;
+        }
+        return this.sites[site].get(seq);
+    }
+
     /**
      * Retrieves all of the operations represented by the given context
-     * differences from the history buffer. Sorts them by total order, placing
-     * any ops with an unknown place in the order (i.e., local ops) at the end
-     * sorted by their sequence IDs. Throws an exception when a requested
-     * operation is missing from the history.
+     * differences from the history buffer. Sorts them in the order they were
+     * executed at this site, which is always consistent with causality; the
+     * total order cannot be used since local ops never receive one. Throws an
+     * exception when a requested operation is missing from the history.
      *
      * @param cd Context difference object
      * @throws OperationEngineException
      * @return Sorted operations
      */
     public Stack<Operation> getOpsForDifference(StateDifference cd) throws OperationEngineException {
+        int l = cd.size();
+        Operation[] arr = new Operation[l];
+        int[] stamps = new int[l];
 
-        String[] keys = cd.getHistoryBufferKeys();
-        Vector<Operation> opsStack = new Vector<Operation>();
-        int l = keys.length;
-        String key;
-        Operation op;
-
-        for (int i = 0; i < l; i++) {
-            key = keys[i];
-            op = this.ops.get(key);
-            if (op == null) {
-                throw new OperationEngineException(
-                        "HistoryBuffer error -- We are missing ops for context: " +
-                                "i = " + i + ", key = " + key +
-                                ", keys = " + keys.toString());
-            }
-            opsStack.addElement(op);
+        // copy every range of the difference out as one slice
+        int pos = 0;
+        for (int r = 0; r < cd.getRangeCount(); r++) {
+            int start = cd.getStart(r);
+            int end = cd.getEnd(r);
+            this.copyRange(cd.getClient(r), start, end, arr, stamps, pos);
+            pos += end - start;
         }
-        Operation[] arr = new Operation[opsStack.size()];
-        arr = opsStack.toArray(arr);
-        Arrays.sort(arr, (Comparator) (a, b) -> ((Operation) a).compareByOrder((Operation) b));
+        sortByStamp(arr, stamps);
 
         Stack<Operation> stack = new Stack<>();
         stack.addAll(Arrays.asList(arr));
         return stack;
     }
 
+    /**
+     * Retrieves the operations in the history that the given state does not
+     * include, in the order they were executed at this site.
+     *
+     * @param cv state to compare with
+     * @return the operations
+     */
+    public List<Operation> getOperationsAfter(ClientState cv) {
+        Operation[] arr = new Operation[this.size];
+        int[] stamps = new int[this.size];
+        int n = 0;
+        for (int site = 0; site < this.sites.length; site++) {
+            Segment segment = this.sites[site];
+            if (segment == null) {
+                continue;
+            }
+            for (int i = Math.max(0, cv.getSeqForClient(site) + 1 - segment.first); i < segment.length; i++) {
+                if (segment.ops[i] != null) {
+                    arr[n] = segment.ops[i];
+                    stamps[n++] = segment.stamps[i];
+                }
+            }
+        }
+        arr = Arrays.copyOf(arr, n);
+        sortByStamp(arr, Arrays.copyOf(stamps, n));
+        return new ArrayList<Operation>(Arrays.asList(arr));
+    }
+
+    /**
+     * Sorts the operations by their execution stamps. Each stamp is packed
+     * with the operation's index into a long so a primitive sort can be used.
+     */
+    private static void sortByStamp(Operation[] arr, int[] stamps) {
+        long[] keys = new long[arr.length];
+        for (int i = 0; i < arr.length; i++) {
+            keys[i] = ((long) stamps[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        Operation[] unsorted = arr.clone();
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = unsorted[(int) keys[i]];
+        }
+    }
+
+    /**
+     * Copies the operations of one site with sequence numbers in [start, end)
+     * into the given array.
+     *
+     * @param site client ID
+     * @param start first sequence number (inclusive)
+     * @param end last sequence number (exclusive)
+     * @param dest array to copy into
+     * @param stamps array receiving the execution stamps of the copied operations
+     * @param destPos position in dest of the first copied operation
+     * @throws OperationEngineException if any operation in the range is missing
+     */
+    public void copyRange(int site, int start, int end, Operation[] dest, int[] stamps, int destPos)
+            throws OperationEngineException {
+        Segment segment = (site >= 0 && site < this.sites.length) ? this.sites[site] : null;
+        int missing = (segment == null) ? start : segment.copyTo(start, end, dest, stamps, destPos);
+        if (missing >= 0) {
+            throw new OperationEngineException(
+                    "HistoryBuffer error -- We are missing ops for context: " +
+                            "site = " + site + ", seq = " + missing +
+                            ", range = [" + start + ", " + end + ")");
+        }
+    }
+
+    /**
+     * Computes how much of the history can be discarded. An operation can go
+     * once every remote site has seen it and the context of every operation
+     * still in the history includes it, since those are the only contexts a
+     * later transform can start from.
+     *
+     * @param stable element-wise minimum state of all remote sites
+     * @return highest discardable sequence number, indexed by client ID
+     */
+    public int[] getCollectHorizon(int[] stable) {
+        int[] horizon = Arrays.copyOf(stable, Math.max(stable.length, this.sites.length));
+
+        // lower the horizon until it is covered by the context of every op
+        // that stays; ops of a site only ever gain context, so checking the
+        // first one that stays is enough
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int site = 0; site < this.sites.length; site++) {
+                Operation op = (this.sites[site] == null) ? null : this.sites[site].firstAfter(horizon[site]);
+                if (op == null) {
+                    continue;
+                }
+                ClientState context = op.getClientState();
+                for (int i = 0; i < horizon.length; i++) {
+                    int seq = context.getSeqForClient(i);
+                    if (seq < horizon[i]) {
+                        horizon[i] = seq;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return horizon;
+    }
+
+    /**
+     * Discards every operation at or below the given horizon.
+     *
+     * @param horizon highest discardable sequence number, indexed by client ID
+     *                (see getCollectHorizon)
+     * @return number of operations discarded
+     */
+    public int collect(int[] horizon) {
+        int removed = 0;
+        for (int site = 0; site < this.sites.length && site < horizon.length; site++) {
+            if (this.sites[site] != null) {
+                removed += this.sites[site].discardThrough(horizon[site]);
+            }
+        }
+        this.size -= removed;
+        return removed;
+    }
+
+    /**
+     * Checks if the given operation was already discarded by collect.
+     */
+    private boolean isCollected(int site, int seq) {
+        return site >= 0 && site < this.sites.length && this.sites[site] != null
+                && seq <= this.sites[site].floor;
+    }
+
     /**
      * Return the number of operations in the history.
      */
@@ -114,8 +272,150 @@ class HistoryBuffer {
         return this.size;
     }
 
+    /**
+     * Returns the segment holding the operations of the given site, creating
+     * it if needed.
+     */
+    private Segment segmentFor(int site) {
+        if (site >= this.sites.length) {
+            this.sites = Arrays.copyOf(this.sites, Math.max(site + 1, this.sites.length * 2));
+        }
+        Segment segment = this.sites[site];
+        if (segment == null) {
+            segment = new Segment();
+            this.sites[site] = segment;
+        }
+        return segment;
+    }
+
     @Override
     public String toString() {
-        return "Ops: " + this.ops + ", Size: " + this.size;
+        StringBuilder sb = new StringBuilder("Ops: {");
+        for (int site = 0; site < this.sites.length; site++) {
+            if (this.sites[site] != null && this.sites[site].length > 0) {
+                sb.append(site).append(": ").append(this.sites[site]).append(' ');
+            }
+        }
+        return sb.append("}, Size: ").append(this.size).toString();
+    }
+
+    /**
+     * Growable array of the operations of a single site. Slot i holds the
+     * operation with sequence number first + i, or null if it was never added,
+     * along with the stamp recording when it was executed.
+     */
+    private static final class Segment {
+
+        // Sequence number stored in ops[0]
+        private int first;
+        // Operations of the site
+        private Operation[] ops = new Operation[16];
+        // Execution stamps of the operations
+        private int[] stamps = new int[16];
+        // Number of slots in use
+        private int length;
+        // Highest sequence number discarded by collect
+        private int floor;
+
+        Operation get(int seq) {
+            int i = seq - this.first;
+            return (i >= 0 && i < this.length) ? this.ops[i] : null;
+        }
+
+        void put(int seq, Operation op, int stamp) {
+            if (this.length == 0) {
+                this.first = seq;
+            }
+            else if (seq < this.first) {
+                // an older operation showed up, shift everything right
+                int shift = this.first - seq;
+                this.resize(Math.max(this.ops.length, this.length + shift), shift);
+                this.length += shift;
+                this.first = seq;
+            }
+            int i = seq - this.first;
+            if (i >= this.ops.length) {
+                this.resize(Math.max(i + 1, this.ops.length * 2), 0);
+            }
+            this.ops[i] = op;
+            this.stamps[i] = stamp;
+            this.length = Math.max(this.length, i + 1);
+        }
+
+        /**
+         * Copies the operations with sequence numbers in [start, end) into dest.
+         *
+         * @return -1 on success, otherwise the first missing sequence number
+         */
+        int copyTo(int start, int end, Operation[] dest, int[] destStamps, int destPos) {
+            int from = start - this.first;
+            int count = end - start;
+            if (from < 0 || from + count > this.length) {
+                return (from < 0) ? start : Math.max(start, this.first + this.length);
+            }
+            System.arraycopy(this.ops, from, dest, destPos, count);
+            System.arraycopy(this.stamps, from, destStamps, destPos, count);
+            for (int i = 0; i < count; i++) {
+                if (dest[destPos + i] == null) {
+                    return start + i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the first operation with a sequence number above seq, or
+         * null if there is none.
+         */
+        Operation firstAfter(int seq) {
+            for (int i = Math.max(0, seq + 1 - this.first); i < this.length; i++) {
+                if (this.ops[i] != null) {
+                    return this.ops[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Drops all operations with a sequence number up to and including seq.
+         *
+         * @return number of operations dropped
+         */
+        int discardThrough(int seq) {
+            if (seq <= this.floor) {
+                return 0;
+            }
+            this.floor = seq;
+            int count = Math.min(seq + 1 - this.first, this.length);
+            if (count <= 0) {
+                return 0;
+            }
+            int removed = 0;
+            for (int i = 0; i < count; i++) {
+                if (this.ops[i] != null) {
+                    removed++;
+                }
+            }
+            System.arraycopy(this.ops, count, this.ops, 0, this.length - count);
+            System.arraycopy(this.stamps, count, this.stamps, 0, this.length - count);
+            Arrays.fill(this.ops, this.length - count, this.length, null);
+            this.length -= count;
+            this.first += count;
+            return removed;
+        }
+
+        private void resize(int capacity, int shift) {
+            Operation[] newOps = new Operation[capacity];
+            int[] newStamps = new int[capacity];
+            System.arraycopy(this.ops, 0, newOps, shift, this.length);
+            System.arraycopy(this.stamps, 0, newStamps, shift, this.length);
+            this.ops = newOps;
+            this.stamps = newStamps;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + this.first + ".." + (this.first + this.length - 1) + "]";
+        }
     }
 }
@@ -4,6 +4,12 @@ import java.util.Map;
 
 /**
  * A subclass of the Operation class which represents an insert operation.
+ *
+ * Its offset counts every character ever inserted into the document,
+ * including the deleted ones, which the engine keeps as tombstones (see
+ * Tombstones). Deletes never move an insert, so two inserts only tie when
+ * they were really made at the same place, and the site breaks the tie the
+ * same way everywhere.
  */
 public class InsertOperation extends Operation {
 
@@ -16,7 +22,16 @@ public class InsertOperation extends Operation {
      */
     public InsertOperation(Map<String, Object> properties) throws OperationEngineException {
         super(properties);
-        this.type = "insert";
+        this.type = OperationKind.INSERT;
+    }
+
+    /**
+     * Creates an insert operation object directly from its values (see Operation.java for more info)
+     */
+    public InsertOperation(int siteId, int seqId, ClientState clientState, String key, String value,
+                           int offset, int order, boolean local) {
+        super(siteId, seqId, clientState, key, value, offset, order, local);
+        this.type = OperationKind.INSERT;
     }
     
     /**
@@ -26,39 +41,69 @@ public class InsertOperation extends Operation {
      * to modify our operation's position.
      *
      * @param op insert operation to include in this operation
-     * @return this operation
+     * @param context context of the transformed operation
+     * @return the transformed operation
      */
-    public Operation transformWithInsert(Operation op) {
-        // Editing different documents - no change
-        if(!this.key.equals(op.key)) {
-            return this;
-        }
-
+    protected Operation transformedWithInsert(InsertOperation op, ClientState context) {
+        int offset = this.offset;
         // Shift right
-        if(this.offset > op.offset || (this.offset == op.offset && this.siteId <= op.siteId)) {
-            this.offset += op.value.length();
+        if(this.offset > op.offset || (this.offset == op.offset && this.goesAfter(op))) {
+            offset += op.value.length();
         }
-        return this;
+        return this.moveTo(offset, context);
     }
     
     /**
-     * Transforms this insert to include the effect of another delete. Basically,
-     * we will check the position of the other operation.  If the position
-     * is such that it will change the position of our operation, we have
-     * to modify our operation's position.
+     * Breaks the tie between two inserts at the same offset: the one from
+     * the lower site goes after the other.
+     */
+    boolean goesAfter(InsertOperation op) {
+        return this.siteId < op.siteId;
+    }
+
+    /**
+     * Transforms this insert to include the effect of a delete. The deleted
+     * characters stay in the document as tombstones, so the insert does not
+     * move, unless the delete erases tombstones before it.
      *
      * @param op delete operation to include in this op
-     * @return this operation
+     * @param context context of the transformed operation
+     * @return the transformed operation
      */
-    public Operation transformWithDelete(Operation op) {
-        // Editing different documents - no change
-        if (!this.key.equals(op.key)) {
-            return this;
-        }
-        // Shift right
-        if (this.offset > op.offset) {
-            this.offset -= op.value.length();
-        }
-        return this;
+    protected Operation transformedWithDelete(DeleteOperation op, ClientState context) {
+        return this.moveTo(op.isErase() ? op.mapPosition(this.offset) : this.offset, context);
+    }
+
+    /**
+     * Transforms this insert to include the effect of a delete in the text
+     * without tombstones. Basically, we shift our operation left by the
+     * number of characters deleted before it. An insert inside a deleted
+     * range ends up where the range was.
+     *
+     * @param op delete operation to include in this op
+     * @return the transformed operation
+     */
+    protected Operation transformedWithDeleteInText(DeleteOperation op) {
+        return this.moveTo(op.mapPosition(this.offset), null);
+    }
+
+    protected Operation withContext(ClientState context) {
+        return this.moveTo(this.offset, context);
+    }
+
+    /**
+     * Creates this insert at another offset and context.
+     */
+    InsertOperation moveTo(int offset, ClientState context) {
+        return new InsertOperation(this.siteId, this.seqId, context, this.key, this.value,
+                offset, this.getOrder(), this.isLocal());
+    }
+
+    public void applyTo(StringBuilder doc) {
+        doc.insert(this.offset, this.value);
+    }
+
+    public int getLength() {
+        return this.value.length();
     }
 }
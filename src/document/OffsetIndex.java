@@ -0,0 +1,362 @@
+package document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Maps remote operations past a chain of concurrent operations in one step,
+ * instead of transforming them with each operation of the chain in turn.
+ *
+ * The chain is folded into a list of segments over the base document, the one
+ * the remote operations were made in. Every character of a segment ends up at
+ * its base position plus the segment's displacement; deletes leave tombstones
+ * and move nothing (see Tombstones), so only the inserts of the chain count.
+ * Characters inserted by the chain are not stored; they are the gaps between
+ * the displaced segments. An insert inside a segment simply follows the
+ * characters. An insert where the chain inserted text ties with it, which the
+ * sites of the inserts break (see InsertOperation.goesAfter), so that one is
+ * left to the full transform.
+ *
+ * Building the index folds in the chain one operation at a time, each in
+ * O(n) for n segments. The segment starts are shifted through a Fenwick tree,
+ * so including a remote insert in the base document, for the next operation
+ * from the same site, usually only shifts the later segments in O(log n).
+ * Mapping a position costs O(log^2 n). An insert that needs a segment of its
+ * own rebuilds the segments in O(n).
+ */
+class OffsetIndex {
+
+    // Site the mapped operations come from
+    private final int siteId;
+    // Number of segments
+    private int size;
+    // Segment starts in the base document, before the shifts in startShift
+    private int[] starts;
+    // Segment displacements
+    private int[] deltas;
+    // Shifts of the segment starts as the base document changes
+    private Fenwick startShift;
+
+    private OffsetIndex(int siteId, List<int[]> segments) {
+        this.siteId = siteId;
+        this.reset(segments);
+    }
+
+    /**
+     * Replaces all segments with the given (start, displacement) ones.
+     */
+    private void reset(List<int[]> segments) {
+        this.size = segments.size();
+        this.starts = new int[this.size];
+        this.deltas = new int[this.size];
+        for (int k = 0; k < this.size; k++) {
+            int[] segment = segments.get(k);
+            this.starts[k] = segment[0];
+            this.deltas[k] = segment[1];
+        }
+        this.startShift = new Fenwick(this.size);
+    }
+
+    /**
+     * Folds the operations of a difference into an index, if every one of
+     * them directly follows the previous one, starting from the context of
+     * the given operation.
+     *
+     * @param op remote operation the difference was computed for
+     * @param difference operations missing from the context of op, in causal order
+     * @return the index, or null if the difference is not such a chain
+     */
+    static OffsetIndex build(Operation op, Stack<Operation> difference) {
+        List<int[]> segments = new ArrayList<int[]>();
+        segments.add(new int[] {0, 0});
+
+        ClientState context = op.getClientState();
+        for (Operation d : difference) {
+            if (!d.getClientState().equals(context)) {
+                return null;
+            }
+            context = context.with(d.siteId, d.seqId);
+            segments = applyOperation(segments, d);
+            if (segments == null) {
+                return null;
+            }
+        }
+        return new OffsetIndex(op.siteId, segments);
+    }
+
+    /**
+     * Folds an operation of the chain into the segments. Its positions are
+     * in the document as left by the chain so far.
+     *
+     * @return the new segments, or null if the operation erases tombstones,
+     *         which moves characters the index cannot follow
+     */
+    private static List<int[]> applyOperation(List<int[]> segments, Operation d) {
+        switch (d.getKind()) {
+            case INSERT:
+                return applyInsert(segments, d.getOffset(), d.getLength());
+            case DELETE:
+                return ((DeleteOperation) d).isErase() ? null : segments;
+            case COMPOSITE:
+                CompositeOperation composite = (CompositeOperation) d;
+                for (int i = 0; i < composite.getEditCount() && segments != null; i++) {
+                    segments = applyOperation(segments, composite.getEdit(i));
+                }
+                return segments;
+            default:
+                return segments;
+        }
+    }
+
+    /**
+     * Inserts length characters at the given final position. Characters move
+     * the way the sequential transforms would move them, and the segment the
+     * insert lands in is split there.
+     */
+    private static List<int[]> applyInsert(List<int[]> segments, int position, int length) {
+        if (length == 0) {
+            return segments;
+        }
+        List<int[]> out = new ArrayList<int[]>(segments.size() + 1);
+        for (int k = 0; k < segments.size(); k++) {
+            int[] segment = segments.get(k);
+            int start = segment[0];
+            long end = (k + 1 < segments.size()) ? segments.get(k + 1)[0] : Integer.MAX_VALUE;
+            int delta = segment[1];
+            // first character at or after the position
+            int cut = (int) Math.max(start, Math.min(end, (long) position - delta));
+            add(out, start, delta);
+            add(out, cut, delta + length);
+        }
+        return out;
+    }
+
+    /**
+     * Appends a segment, replacing the last one if it turned out empty and
+     * merging it into the last one if it just continues it.
+     */
+    private static void add(List<int[]> out, int start, int delta) {
+        int[] last = out.isEmpty() ? null : out.get(out.size() - 1);
+        if (last != null && last[0] == start) {
+            out.remove(out.size() - 1);
+            last = out.isEmpty() ? null : out.get(out.size() - 1);
+        }
+        if (last != null && last[1] == delta) {
+            return;
+        }
+        out.add(new int[] {start, delta});
+    }
+
+    /**
+     * Checks if the given operation can be mapped by this index: a delete of
+     * the indexed site, or an insert of it that does not tie with an insert
+     * of the chain.
+     */
+    boolean canTransform(Operation op) {
+        if (op.siteId != this.siteId) {
+            return false;
+        }
+        switch (op.getKind()) {
+            case INSERT:
+                return this.targetOf(op.getOffset()) >= 0;
+            case DELETE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Transforms an operation to include the whole chain (see canTransform).
+     *
+     * @param op operation in the base document
+     * @param context context of the transformed operation
+     * @return the transformed operation
+     */
+    Operation transform(Operation op, ClientState context) {
+        if (op.getKind() == OperationKind.INSERT) {
+            return ((InsertOperation) op).moveTo(this.targetOf(op.getOffset()), context);
+        }
+
+        // the ranges follow their characters, and are split where the chain inserted text
+        DeleteOperation delete = (DeleteOperation) op;
+        DeleteOperation.RangeBuilder out = new DeleteOperation.RangeBuilder(
+                2 * delete.getRangeCount(), op.value != null);
+        int textPos = 0;
+        for (int r = 0; r < delete.getRangeCount(); r++) {
+            int start = delete.getRangeStart(r);
+            int end = start + delete.getRangeLength(r);
+            int k = this.segmentAt(start);
+            for (int x = start; x < end; k++) {
+                int next = Math.min(this.endOf(k), end);
+                if (x < next) {
+                    out.add(x + this.deltaOf(k), next - x, op.value, textPos + x - start);
+                }
+                x = Math.max(x, next);
+            }
+            textPos += end - start;
+        }
+
+        return new DeleteOperation(op.siteId, op.seqId, context, op.key, out.getRanges(),
+                out.getText(), op.getOrder(), op.isLocal());
+    }
+
+    /**
+     * Includes an operation in the base document, so the next operation
+     * from the same site can be mapped. The chain stays the same, it is just
+     * transformed to include the operation as well.
+     *
+     * @param op operation in the base document
+     * @param transformed op transformed to include the chain
+     * @return true if the index is still usable, false if it has to be
+     *         dropped
+     */
+    boolean include(Operation op, Operation transformed) {
+        switch (op.getKind()) {
+            case INSERT:
+                this.includeInsert(op.getOffset(), op.getLength(), transformed.getOffset());
+                return true;
+            case DELETE:
+                // leaves tombstones, nothing moves
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Inserts characters into the base document, given where the transform
+     * put them. Usually they just extend the live segment they land in, and
+     * only the later segments move.
+     */
+    private void includeInsert(int position, int length, int target) {
+        int k = this.segmentAt(position);
+        if (target == position + this.deltaOf(k)) {
+            this.startShift.rangeAdd(k + 1, this.size - 1, length);
+            return;
+        }
+
+        // the characters need a segment of their own
+        List<int[]> segments = new ArrayList<int[]>(this.size + 2);
+        for (int j = 0; j < this.size; j++) {
+            int start = this.startOf(j);
+            if (j == k) {
+                if (start < position) {
+                    add(segments, start, this.deltaOf(j));
+                }
+                add(segments, position, target - position);
+                add(segments, position + length, this.deltaOf(j));
+            }
+            else if (j < k) {
+                add(segments, start, this.deltaOf(j));
+            }
+            else {
+                add(segments, start + length, this.deltaOf(j));
+            }
+        }
+        this.reset(segments);
+    }
+
+    /**
+     * Maps an insert position in the base document to the final document.
+     * Inside a segment the insert just follows the characters. Where a
+     * segment starts, the insert goes between the last character before it
+     * and the first one after it, which is only one position if the chain
+     * inserted nothing there.
+     *
+     * @return the final position, or -1 if the insert ties with inserts of
+     *         the chain
+     */
+    private int targetOf(int position) {
+        int k = this.segmentAt(position);
+        if (position > this.startOf(k)) {
+            return position + this.deltaOf(k);
+        }
+        int next = k;
+        while (this.isEmpty(next)) {
+            next++;
+        }
+        int previous = k - 1;
+        while (previous >= 0 && this.isEmpty(previous)) {
+            previous--;
+        }
+        int target = this.startOf(next) + this.deltaOf(next);
+        int after = (previous < 0) ? 0 : this.endOf(previous) + this.deltaOf(previous);
+        return (after == target) ? target : -1;
+    }
+
+    private boolean isEmpty(int k) {
+        return k + 1 < this.size && this.startOf(k + 1) == this.startOf(k);
+    }
+
+    /**
+     * Returns the last segment starting at or before the given base position.
+     */
+    private int segmentAt(int position) {
+        int lo = 0;
+        int hi = this.size - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (this.startOf(mid) <= position) {
+                lo = mid;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private int startOf(int k) {
+        return this.starts[k] + this.startShift.get(k);
+    }
+
+    private int endOf(int k) {
+        return (k + 1 < this.size) ? this.startOf(k + 1) : Integer.MAX_VALUE;
+    }
+
+    private int deltaOf(int k) {
+        return this.deltas[k];
+    }
+
+    /**
+     * Fenwick tree over the differences of an array, adding to ranges of the
+     * array and reading single entries in O(log n).
+     */
+    private static final class Fenwick {
+        private final int[] tree;
+
+        Fenwick(int size) {
+            this.tree = new int[size + 1];
+        }
+
+        /**
+         * Adds value to the entries from through to, inclusive.
+         */
+        void rangeAdd(int from, int to, int value) {
+            if (from > to) {
+                return;
+            }
+            this.add(from, value);
+            this.add(to + 1, -value);
+        }
+
+        private void add(int i, int value) {
+            for (i++; i < this.tree.length; i += i & -i) {
+                this.tree[i] += value;
+            }
+        }
+
+        /**
+         * Returns the entry at the given index.
+         */
+        int get(int i) {
+            int sum = 0;
+            for (i++; i > 0; i -= i & -i) {
+                sum += this.tree[i];
+            }
+            return sum;
+        }
+    }
+}
@@ -1,10 +1,7 @@
 package document;
 
 import java.io.Serializable;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Vector;
 
 /**
  * This is the abstract class for the operation. A single operation is anything
@@ -12,6 +9,15 @@ import java.util.Vector;
  * type can allow for creating from various different calls, as well as
  * transforming due to concurrent operations. This is the major part where we
  * will write the transformation algorithm in the subclasses of this class.
+ *
+ * Operations are values: transforming one returns a new operation and leaves
+ * the original alone, so the engine can share them between the history, the
+ * transform cache and its callers without copying. Their ClientStates must not
+ * be modified either, which lets transformed operations share them too. The
+ * total order is only set on an operation as it arrives from the server, and
+ * the fingerprint by the sender before sending it; an engine that has to give
+ * an operation it already handed out an order or a base copies it instead
+ * (see withOrder).
  */
 public abstract class Operation implements Serializable {
 
@@ -22,7 +28,7 @@ public abstract class Operation implements Serializable {
     // ID number of operation processed at this client
     int seqId;
     // Type of operation: insert or delete
-    String type;
+    OperationKind type;
     // State machine of client who created operation
     private ClientState clientState = null;
 
@@ -38,11 +44,12 @@ public abstract class Operation implements Serializable {
 
     // Global order of the operation (does not include local operations)
     private int order;
-    // Indicates if operation is immutable
-    boolean immutable;
-
-    // Store referenceable operations
-    private Vector<Operation> xCache = null;
+    // Order of the last operation the site had received when it sent this one,
+    // in the server-sequenced mode (see SequencedEngine), or -1
+    int base = -1;
+    // Fingerprint of the sender's document right after this operation, or
+    // DocumentFingerprint.NONE. Transformed operations do not carry it.
+    long fingerprint = DocumentFingerprint.NONE;
 
     /**
      * Create a new operation specified by the type (insert or delete)
@@ -53,32 +60,72 @@ public abstract class Operation implements Serializable {
      * @throws OperationEngineException
      */
     public static Operation createOperationFromType(String type, Map<String, Object> properties) throws OperationEngineException {
-        Operation op = null;
-        if (type.equals("insert")) {
-            op = new InsertOperation(properties);
-        } else if (type.equals("delete")) {
-            op = new DeleteOperation(properties);
+        OperationKind kind = OperationKind.fromName(type);
+        if (kind == null) {
+            return null;
+        }
+        switch (kind) {
+            case INSERT:
+                return new InsertOperation(properties);
+            case DELETE:
+                return new DeleteOperation(properties);
+            default:
+                return null;
         }
+    }
 
-        return op;
+    /**
+     * Create a new operation specified by the type (insert or delete) from
+     * individual values, without going through a property map.
+     *
+     * @param type operation type (insert/delete)
+     * @param siteId client ID who created the operation
+     * @param seqId sequence number of the operation at its originating site
+     * @param clientState context in which the operation occurred, not copied
+     * @param key document where operation occurred
+     * @param value value (string) of operation
+     * @param offset offset of the operation
+     * @param order the operation's order in the global ordering of all operations
+     * @param local True iff the operation was originated locally
+     * @returns a new Operation, or null if the type is unknown
+     */
+    public static Operation createOperationFromType(String type, int siteId, int seqId, ClientState clientState,
+                                                    String key, String value, int offset, int order, boolean local) {
+        OperationKind kind = OperationKind.fromName(type);
+        if (kind == null) {
+            return null;
+        }
+        return createOperationFromKind(kind, siteId, seqId, clientState, key, value, offset, order, local);
     }
 
     /**
-     * Create a unique history key so that its history of operations can be referenced easily
+     * Create a new operation of the given kind from individual values (see
+     * above for their meaning).
      *
-     * @param site client ID
-     * @param seq integer reprsenting the sequence
-     * @return a new string that will serve as a key.
+     * @param kind operation kind
+     * @returns a new Operation
      */
-    public static String createHistoryKey(int site, int seq) {
-        return Integer.toString(site) + ", " + Integer.toString(seq);
+    public static Operation createOperationFromKind(OperationKind kind, int siteId, int seqId, ClientState clientState,
+                                                    String key, String value, int offset, int order, boolean local) {
+        switch (kind) {
+            case INSERT:
+                return new InsertOperation(siteId, seqId, clientState, key, value, offset, order, local);
+            case DELETE:
+                return new DeleteOperation(siteId, seqId, clientState, key, value, offset, order, local);
+            case COMPOSITE:
+                throw new IllegalArgumentException("Composite operations are built from their edits.");
+            case RGA:
+                throw new IllegalArgumentException("RGA operations are created by an RgaEngine.");
+            default:
+                throw new IllegalArgumentException("Unknown operation kind: " + kind);
+        }
     }
 
     @Override
     public String toString() {
         return ("{siteId : " + this.siteId) +
                 ",seqId : " + this.seqId +
-                ",type :" + type +
+                ",type :" + type.getName() +
                 ",contextVector : " + this.clientState +
                 ",key : " + this.key +
                 ",position : " + this.offset +
@@ -100,12 +147,10 @@ public abstract class Operation implements Serializable {
      *  offset: offset of hte operation
      *  order: the operation's order in the global ordering of all operations
      *  seqID: sequence number of the operation at its originating site
-     *  immutable: indicates if operation cannot be changed
      *
      * @param properties
      * @throws OperationEngineException
      */
-    @SuppressWarnings("unchecked")
     protected Operation(Map<String, Object> properties)
             throws OperationEngineException {
         if (properties == null) {
@@ -138,31 +183,90 @@ public abstract class Operation implements Serializable {
                 throw new OperationEngineException("Missing sequence ID for new operation.");
             }
 
-            if (properties.containsKey("xCache")) {
-                this.xCache = (Vector<Operation>) properties.get("xCache");
-            } else {
-                this.xCache = null;
-            }
-
             this.local = (Boolean) properties.get("local");
         }
+    }
 
-        this.immutable = false;
+    /**
+     * Contains information about a local or remote event for transformation,
+     * initialized directly from the given values (see above for their meaning).
+     * This is the allocation-free path used by the engine.
+     *
+     * @param clientState context vector, not copied and never modified
+     */
+    protected Operation(int siteId, int seqId, ClientState clientState, String key, String value,
+                        int offset, int order, boolean local) {
+        this.siteId = siteId;
+        this.seqId = seqId;
+        this.clientState = clientState;
+        this.key = key;
+        this.value = value;
+        this.offset = offset;
+        this.order = order;
+        this.local = local;
+    }
 
-        if (this.xCache == null) {
-            this.xCache = new Vector<Operation>();
-        }
+    /**
+     * Returns a new operation after transforming the current operation with the
+     * specified operation, which is on the same document. This is the position
+     * part of the transform; the caller works out the new context.
+     *
+     * @param op operation to include
+     * @param context context of the transformed operation
+     * @return a new operation that is transformed after specified operation is
+     *         applied, or null if this operation has no further effect
+     */
+    protected abstract Operation transformedWithDelete(DeleteOperation op, ClientState context);
+
+    protected abstract Operation transformedWithInsert(InsertOperation op, ClientState context);
+
+    /**
+     * Returns a new operation after transforming the current operation with
+     * the specified delete, with both given as positions in the text without
+     * tombstones (see transformedInText).
+     *
+     * @param op delete to include
+     * @return a new operation that is transformed after specified operation is
+     *         applied, or null if this operation has no further effect
+     */
+    protected abstract Operation transformedWithDeleteInText(DeleteOperation op);
+
+    /**
+     * Returns a new operation after transforming the current operation with
+     * the specified insert, with both given as positions in the text without
+     * tombstones (see transformedInText). An insert moves the same things in
+     * both kinds of positions, so only operations made of several edits have
+     * to tell them apart.
+     *
+     * @param op insert to include
+     * @return a new operation that is transformed after specified operation is
+     *         applied, or null if this operation has no further effect
+     */
+    protected Operation transformedWithInsertInText(InsertOperation op) {
+        return this.transformedWithInsert(op, null);
     }
 
     /**
-     * Returns a new operation after transforming the current operation with the specified data type
+     * Returns an operation with the same effect as this one in another context.
      *
-     * @param op operation
-     * @return a new operation that is transformed after specified operation is applied
+     * @param context context of the new operation
      */
-    protected abstract Operation transformWithDelete(Operation op);
+    protected abstract Operation withContext(ClientState context);
 
-    protected abstract Operation transformWithInsert(Operation op);
+    /**
+     * Applies this operation to the given text. The positions have to be
+     * positions in that text, as in the edits an engine returns for remote
+     * operations; the operations OperationEngine sends count its tombstones.
+     *
+     * @param doc text of the document this operation was made in, in the
+     *            context of the operation
+     */
+    public abstract void applyTo(StringBuilder doc);
+
+    /**
+     * Return the number of characters this operation inserts or deletes
+     */
+    public abstract int getLength();
 
 
     /**
@@ -174,20 +278,15 @@ public abstract class Operation implements Serializable {
      * @throws OperationEngineException
      */
     private void setState(Object[] properties) throws OperationEngineException {
-        if (!properties[0].equals(this.type)) {
+        if (!properties[0].equals(this.type.getName())) {
             throw new OperationEngineException("setState invoked with state from wrong operation type.");
-        } else if (this.immutable) {
-            throw new OperationEngineException("Operation is immutable.");
         }
 
         this.key = (String) properties[1];
         this.value = (String) properties[2];
         this.offset = (Integer) properties[3];
 
-        HashMap<String, Object> args = new HashMap<String, Object>();
-        args.put("state", properties[4]);
-
-        this.clientState = new ClientState(args);
+        this.clientState = new ClientState((int[]) properties[4]);
 
         this.seqId = (Integer) properties[5];
         this.siteId = (Integer) properties[6];
@@ -200,82 +299,33 @@ public abstract class Operation implements Serializable {
     }
 
     /**
-     * Makes a copy of this operation object.
+     * Makes a copy of this operation object. Since operations do not change,
+     * this is only needed to get an independent total order; the copy shares
+     * the ClientState.
      *
      * @throws OperationEngineException
      * @return copy of this Operation object
      */
     public Operation copy() throws OperationEngineException {
-        HashMap<String, Object> properties = new HashMap<String, Object>();
-        properties.put("siteId", this.siteId);
-        properties.put("seqId", this.seqId);
-        properties.put("contextVector", this.clientState.copy());
-        properties.put("key", this.key);
-        properties.put("value", this.value);
-        properties.put("position", this.offset);
-        properties.put("order", this.getOrder());
-        properties.put("local", this.local);
-        properties.put("xCache", this.xCache);
-
-        Operation op;
-        try {
-            op = Operation.createOperationFromType(this.type, properties);
-        } catch (OperationEngineException e) {
-            e.printStackTrace();
-            op = null;
-        }
-        return op;
+        return this.withContext(this.clientState);
     }
 
     /**
-     * Gets a version of the given operation previously transformed into the
-     * given context if available.
+     * Returns a copy of this operation with the given total order and base,
+     * for an engine that has to record them once the operation may already
+     * be shared. The copy keeps the fingerprint.
      *
-     * @param cv context of the transformed op to seek
-     * @throws OperationEngineException
-     * @return Copy of the transformed operation from the cache or null if not in cache
+     * @param order the operation's order in the global ordering of all operations
+     * @param base order of the last operation the site had received when it
+     *             sent this one, or -1
+     * @return the copy; this operation is not changed
      */
-    public Operation getFromCache(ClientState cv) throws OperationEngineException {
-        Vector<Operation> cache = this.xCache;
-        int l = cache.size();
-        Operation xop;
-
-        for (int i = 0; i < l; i++) {
-            xop = cache.elementAt(i);
-            if (xop.clientState.equals(cv)) {
-                return xop.copy();
-            }
-        }
-
-        return null;
-    }
-
-    /**
-     * Caches a transformed copy of this original operation for faster future
-     * transformations.
-     *
-     * @param siteCount  number of active sites, including the local one
-     * @throws OperationEngineException
-     */
-    public void addToCache(int siteCount) throws OperationEngineException {
-        Vector<Operation> cache = this.xCache;
-        Operation cop = this.copy();
-
-        cop.immutable = true;
-
-        cache.addElement(cop);
-
-        int diff = cache.size() - (siteCount - 1);
-        if (diff > 0) {
-            Operation[] operationArray = new Operation[cache.size()];
-            operationArray = cache.toArray(operationArray);
-            Operation[] newArr = Arrays.copyOf(operationArray, diff);
-
-            cache.removeAllElements();
-            for (int i = 0; i < newArr.length; i++) {
-                cache.addElement(newArr[i]);
-            }
-        }
+    Operation withOrder(int order, int base) {
+        Operation op = this.withContext(this.clientState);
+        op.order = order;
+        op.base = base;
+        op.fingerprint = this.fingerprint;
+        return op;
     }
 
     /**
@@ -313,31 +363,86 @@ public abstract class Operation implements Serializable {
 
     /**
      * Transforms this operation to include the effects of the operation
-     * provided as a parameter IT(this, op). Upgrade the context of this operation to
+     * provided as a parameter IT(this, op). The context of the result is upgraded to
      * reflect the inclusion of the other.
+     * Both operations are on the same document, since every document has its
+     * own engine (see DocumentEngine).
      *
-     * @return This operation, transformed in-place
-     * @throws OperationEngineException If this op to be transformed is immutable
+     * @return A new, transformed operation, or null if this operation has no
+     *         further effect. This operation is not changed.
      */
-    public Operation transformWith(Operation op)
-            throws OperationEngineException {
-        if (this.immutable) {
-            throw new OperationEngineException("Attempt to transform immutable operation.");
-        }
+    public Operation transformWith(Operation op) {
+        ClientState context = this.clientState.with(op.siteId, op.seqId);
+        return this.transformedWith(op, context);
+    }
 
-        Operation rv = null;
-        if (op.type.equals("delete")) {
-            rv = this.transformWithDelete(op);
-        }
-        else if (op.type.equals("insert")) {
-            rv = this.transformWithInsert(op);
+    /**
+     * Transforms this operation to include the effects of another operation
+     * on the same document, dispatching on the kind of the other operation.
+     *
+     * @param op operation to include
+     * @param context context of the transformed operation
+     * @return the transformed operation, or null if this operation has no
+     *         further effect
+     */
+    Operation transformedWith(Operation op, ClientState context) {
+        switch (op.type) {
+            case DELETE:
+                return this.transformedWithDelete((DeleteOperation) op, context);
+            case INSERT:
+                return this.transformedWithInsert((InsertOperation) op, context);
+            case COMPOSITE:
+                return this.transformedWithComposite((CompositeOperation) op, context);
+            default:
+                return null;
         }
+    }
 
-        if (rv != null) {
-            this.upgradeContextTo(op);
+    /**
+     * Transforms this operation to include the effects of another operation
+     * on the same document, with both given as positions in the text without
+     * tombstones, as engines that keep none use them (see SequencedEngine).
+     * There, a delete moves everything after it, and characters two deletes
+     * both remove are only removed once. transformedWith takes the positions
+     * OperationEngine uses instead, which count its tombstones.
+     *
+     * @param op operation to include
+     * @return the transformed operation, without a context, or null if this
+     *         operation has no further effect
+     */
+    Operation transformedInText(Operation op) {
+        switch (op.type) {
+            case DELETE:
+                return this.transformedWithDeleteInText((DeleteOperation) op);
+            case INSERT:
+                return this.transformedWithInsertInText((InsertOperation) op);
+            case COMPOSITE:
+                CompositeOperation composite = (CompositeOperation) op;
+                Operation result = this;
+                for (int i = 0; i < composite.getEditCount() && result != null; i++) {
+                    result = result.transformedInText(composite.getEdit(i));
+                }
+                return result;
+            default:
+                return null;
         }
+    }
 
-        return rv;
+    /**
+     * Transforms this operation to include the effect of a composite
+     * operation, by including each of its edits in turn.
+     *
+     * @param op composite operation to include
+     * @param context context of the transformed operation
+     * @return the transformed operation, or null if this operation has no
+     *         further effect
+     */
+    protected Operation transformedWithComposite(CompositeOperation op, ClientState context) {
+        Operation result = this;
+        for (int i = 0; i < op.getEditCount() && result != null; i++) {
+            result = result.transformedWith(op.getEdit(i), context);
+        }
+        return result;
     }
 
     /**
@@ -345,15 +450,25 @@ public abstract class Operation implements Serializable {
      * another operation from the some site.
      *
      * @param op operation to include in the context of this operation
-     * @throws OperationEngineException If this op to be upgraded is immutable
+     * @return A new operation with the upgraded context. This operation is
+     *         not changed.
      */
-    public void upgradeContextTo(Operation op) throws OperationEngineException {
-        if (this.immutable) {
-            throw new OperationEngineException(
-                    "attempt to upgrade context of immutable op");
-        }
+    public Operation upgradeContextTo(Operation op) {
+        return this.withContext(this.clientState.with(op.siteId, op.seqId));
+    }
 
-        this.clientState.setSeqForClient(op.siteId, op.seqId);
+    /**
+     * Return operation's kind
+     */
+    public OperationKind getKind() {
+        return this.type;
+    }
+
+    /**
+     * Return true iff the operation was originated locally
+     */
+    public boolean isLocal() {
+        return this.local;
     }
 
     /**
@@ -391,13 +506,6 @@ public abstract class Operation implements Serializable {
         return this.clientState;
     }
 
-    /**
-     * Sets operation's immutability
-     */
-    public void setImmutable(boolean immutable) {
-        this.immutable = immutable;
-    }
-
     /**
      * Return operation's ordering
      */
@@ -406,24 +514,43 @@ public abstract class Operation implements Serializable {
     }
 
     /**
-     * Sets the operation's ordering
+     * Sets the operation's ordering, once the server assigned it
      */
     public void setOrder(int order) {
         this.order = order;
     }
 
     /**
-     * Return document operation is made it
+     * Return the order of the last operation the site had received when it
+     * sent this one, in the server-sequenced mode, or -1
      */
-    public String getKey() {
-        return this.key;
+    public int getBase() {
+        return this.base;
     }
 
     /**
-     * Sets the document key value
+     * Return the fingerprint of the sender's document right after this
+     * operation, or DocumentFingerprint.NONE if it does not carry one
      */
-    public void setKey(String key) {
-        this.key = key;
+    public long getFingerprint() {
+        return this.fingerprint;
+    }
+
+    /**
+     * Sets the fingerprint of the sender's document right after this
+     * operation, before it is sent
+     *
+     * @param fingerprint see DocumentFingerprint
+     */
+    public void setFingerprint(long fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Return document operation is made it
+     */
+    public String getKey() {
+        return this.key;
     }
 
 }
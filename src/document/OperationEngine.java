@@ -1,7 +1,9 @@
 package document;
 
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Stack;
 
 /**
@@ -10,8 +12,13 @@ import java.util.Stack;
  * This will then take the operations and transform them by calling
  * the OT functions.
  * Since this engine is only run at one client there should be no concurrency issues.
+ *
+ * Operations give their positions in the document with its tombstones (see
+ * Tombstones), which the engine keeps. Local edits are pushed in with
+ * positions in the text the user sees, and the edits to make for remote
+ * operations come out with such positions again.
  */
-public class OperationEngine {
+public class OperationEngine implements DocumentEngine {
 
 
     // Represents the client ID of this Operation Engine
@@ -24,8 +31,27 @@ public class OperationEngine {
 
     // History buffer to keep track of previously processed operations
     private HistoryBuffer historybuffer;
-    // Number of clients currently connected in the network
-    private final int siteCount = 1;
+    // Deleted characters of the document
+    private final Tombstones tombstones = new Tombstones();
+    // State every site has, whose tombstones the next local operation erases, or null
+    private ClientState eraseHorizon = null;
+    // Default maximum number of cached transforms
+    private static final int TRANSFORM_CACHE_SIZE = 4096;
+    // Operations previously transformed into other contexts
+    private final TransformCache transformCache;
+
+    // Number of remote operations integrated between two garbage collections
+    private static final int COLLECT_INTERVAL = 64;
+    // Smallest difference worth folding into an OffsetIndex
+    private static final int OFFSET_INDEX_MIN_OPS = 32;
+    // Concurrent operations folded for the next remote operation of a site, or null
+    private OffsetIndex offsetIndex = null;
+    // Last remote operation included in offsetIndex
+    private Operation offsetIndexLast = null;
+    // Remote operations integrated since the last garbage collection
+    private int sinceCollect = 0;
+    // Number of sites editing the document, including this one, or 0 if unknown
+    private int expectedSites = 0;
 
     /**
      * Creates an OperationEngine object with controls the entire OT algorithm.
@@ -33,11 +59,10 @@ public class OperationEngine {
      */
     public OperationEngine(int siteId) throws OperationEngineException {
         this.siteId = siteId;
-        HashMap<String, Object> args = new HashMap<String, Object>();
-        args.put("count", siteId + 1);
-        this.cs = new ClientState(args);
+        this.cs = new ClientState(new int[siteId + 1]);
         this.cst = new ClientStateTable(this.cs, siteId);
         this.historybuffer = new HistoryBuffer();
+        this.transformCache = new TransformCache(TRANSFORM_CACHE_SIZE);
     }
 
     @Override
@@ -46,7 +71,7 @@ public class OperationEngine {
                 ",ClientState : " + this.cs +
                 ",ClientStaterTable : " + this.cst +
                 ",HistoryBuffer : " + this.historybuffer +
-                ",ClientCount : " + this.siteCount + "}";
+                ",TransformCache : " + this.transformCache + "}";
     }
 
     /**
@@ -76,28 +101,90 @@ public class OperationEngine {
      */
     private Operation createOp(boolean local, String key, String value, String type, int offset,
                                int site, int[] cv, int order) throws OperationEngineException {
-        Map<String, Object> properties = new HashMap<String, Object>();
         if (local) {
-            properties.put("key", key);
-            properties.put("position", offset);
-            properties.put("value", value);
-            properties.put("siteId", this.siteId);
-            properties.put("contextVector", this.copyClientState());
-            properties.put("local", true);
+            // the state of the engine is never changed in place, so it is shared
+            ClientState clientState = this.cs;
+            int seqId = clientState.getSeqForClient(this.siteId) + 1;
+            OperationKind kind = OperationKind.fromName(type);
+            if (kind != OperationKind.INSERT && kind != OperationKind.DELETE) {
+                return null;
+            }
+            Operation erase = this.eraseStable(seqId, key);
+            return withErase(erase, this.createLocalEdit(kind, seqId, clientState, key, value, offset,
+                    value.length()));
+        }
+        else {
+            ClientState clientState = new ClientState(cv);
+            int seqId = clientState.getSeqForClient(site) + 1;
+            return Operation.createOperationFromType(type, site, seqId, clientState,
+                    key, value, offset, order, false);
+        }
+    }
+
+    /**
+     * Creates a local insert or delete from a position in the text the user
+     * sees, and records it in the tombstones.
+     *
+     * @param kind     insert or delete
+     * @param seqId    sequence number of the operation
+     * @param context  context of the operation, null for an edit of a composite
+     * @param value    inserted text, or deleted text or null if only the length is known
+     * @param position position in the text without tombstones
+     * @param length   number of characters inserted or deleted
+     * @return the operation, with positions in the document with tombstones
+     */
+    private Operation createLocalEdit(OperationKind kind, int seqId, ClientState context, String key,
+                                      String value, int position, int length) {
+        if (kind == OperationKind.INSERT) {
+            return new InsertOperation(this.siteId, seqId, context, key, value,
+                    this.tombstones.insertLive(position, length), Integer.MAX_VALUE, true);
+        }
+        return new DeleteOperation(this.siteId, seqId, context, key,
+                this.tombstones.deleteLive(position, length, this.cs.with(this.siteId, seqId)),
+                value, Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * Erases the tombstones every site had at the last garbage collection,
+     * before a local operation is made, so the erase can be sent along with
+     * it. The other sites only erase them once they get it, so operations
+     * concurrent with it are transformed with it like with any other edit.
+     *
+     * @param seqId sequence number of the local operation
+     * @return the erase, or null if there is nothing to erase
+     */
+    private Operation eraseStable(int seqId, String key) {
+        ClientState horizon = this.eraseHorizon;
+        this.eraseHorizon = null;
+        int[] ranges = (horizon == null) ? null : this.tombstones.eraseStable(horizon);
+        return (ranges == null) ? null : DeleteOperation.erase(this.siteId, seqId, key, ranges);
+    }
+
+    /**
+     * Puts an erase in front of the edits of a local operation.
+     *
+     * @param erase erase made for op, or null
+     * @param op local operation
+     * @return op, or a composite operation with the same identity if there
+     *         is an erase
+     */
+    private static Operation withErase(Operation erase, Operation op) {
+        if (erase == null) {
+            return op;
+        }
+        List<Operation> edits = new ArrayList<Operation>();
+        edits.add(erase);
+        if (op.getKind() == OperationKind.COMPOSITE) {
+            CompositeOperation composite = (CompositeOperation) op;
+            for (int i = 0; i < composite.getEditCount(); i++) {
+                edits.add(composite.getEdit(i));
+            }
         }
         else {
-            HashMap<String, Object> map = new HashMap<String, Object>();
-            map.put("sites", cv);
-            properties.put("key", key);
-            properties.put("position", offset);
-            properties.put("value", value);
-            properties.put("siteId", site);
-            ClientState clientState = new ClientState(map);
-            properties.put("contextVector", clientState);
-            properties.put("order", order);
-            properties.put("local", false);
+            edits.add(op.withContext(null));
         }
-        return Operation.createOperationFromType(type, properties);
+        return new CompositeOperation(op.siteId, op.seqId, op.getClientState(), op.key,
+                edits.toArray(new Operation[0]), Integer.MAX_VALUE, true);
     }
 
     /**
@@ -115,6 +202,46 @@ public class OperationEngine {
         else return this.pushRemoteOp(op);
     }
 
+    /**
+     * Creates a local delete of the given number of characters and pushes it
+     * into the operation engine algorithm. Only the length is recorded, so
+     * the deleted text does not have to be known or sent.
+     *
+     * @param key      the operation's key (document name)
+     * @param position offset of the first deleted character
+     * @param length   number of deleted characters
+     * @return the delete operation
+     */
+    public Operation pushLocalDelete(String key, int position, int length) {
+        int seqId = this.cs.getSeqForClient(this.siteId) + 1;
+        Operation erase = this.eraseStable(seqId, key);
+        return this.pushLocalOp(withErase(erase, this.createLocalEdit(OperationKind.DELETE, seqId, this.cs,
+                key, null, position, length)));
+    }
+
+    /**
+     * Creates a local composite operation from the given edits and pushes it
+     * into the operation engine algorithm. The edits take a single sequence
+     * number and a single slot in the history buffer.
+     *
+     * @param key   the operation's key (document name)
+     * @param edits edits in the order they were made, at least one
+     * @return the composite operation
+     */
+    public Operation pushLocalComposite(String key, CompositeOperation.Builder edits) {
+        int seqId = this.cs.getSeqForClient(this.siteId) + 1;
+        CompositeOperation composite = edits.build(this.siteId, seqId, this.cs, key);
+        Operation erase = this.eraseStable(seqId, key);
+        Operation[] recorded = new Operation[composite.getEditCount()];
+        for (int i = 0; i < recorded.length; i++) {
+            Operation edit = composite.getEdit(i);
+            recorded[i] = this.createLocalEdit(edit.getKind(), seqId, null, key, edit.getValue(),
+                    edit.getOffset(), edit.getLength());
+        }
+        return this.pushLocalOp(withErase(erase, new CompositeOperation(this.siteId, seqId, this.cs, key,
+                recorded, Integer.MAX_VALUE, true)));
+    }
+
     /**
      * Process a _local_ operation and adds it to the history buffer.
      * 
@@ -122,7 +249,9 @@ public class OperationEngine {
      * @return op
      */
     private Operation pushLocalOp(Operation op) {
-        this.cs.setSeqForClient(op.getSiteId(), op.getSeqId());
+        // remote operations from now on are concurrent with this one as well
+        this.offsetIndex = null;
+        this.cs = this.cs.with(op.getSiteId(), op.getSeqId());
         this.historybuffer.addLocalOperation(op);
         return op;
     }
@@ -134,27 +263,343 @@ public class OperationEngine {
      * @param op
      *            Remote operation
      * @throws OperationEngineException
-     * @return New, transformed operation object or null if the effect of the
-     *         passed operation is nothing
+     * @return the edit to make in the text without tombstones, or null if the
+     *         effect of the passed operation is nothing
      */
     public Operation pushRemoteOp(Operation op) throws OperationEngineException {
         Operation o;
         if (this.hasProcessedOp(op)) {
             this.historybuffer.addRemoteOperation(op);
-            System.out.println("Already processed");
             return null;
         } else if (this.cs.equals(op.getClientState())) {
-            o = op.copy();
+            o = op;
+            this.offsetIndex = null;
+        } else {
+            Stack<Operation> difference = null;
+            if (!this.followsOffsetIndex(op)) {
+                StateDifference cd = this.cs.subtract(op.getClientState());
+                difference = this.historybuffer.getOpsForDifference(cd);
+                this.buildOffsetIndex(op, difference);
+            }
+            if (this.offsetIndex != null && this.offsetIndex.canTransform(op)) {
+                o = this.offsetIndex.transform(op, this.cs);
+            } else {
+                if (difference == null) {
+                    StateDifference cd = this.cs.subtract(op.getClientState());
+                    difference = this.historybuffer.getOpsForDifference(cd);
+                }
+                o = this.fullTransform(op, difference, new HashMap<TransformCache.Key, Operation>());
+            }
+        }
+
+        this.integrateRemoteOp(op);
+        this.includeInOffsetIndex(op, o);
+        if (++this.sinceCollect >= COLLECT_INTERVAL) {
+            this.collectGarbage();
+        }
+        return this.toEdit(op, o);
+    }
+
+    /**
+     * Process a run of _remote_ operations in the order given, as if each
+     * were passed to pushRemoteOp, and adds the originals to the history
+     * buffer.
+     *
+     * When an operation directly follows the previous one from the same site
+     * and its context only adds that previous operation, it is concurrent
+     * with exactly the same local operations, so the sorted difference is
+     * reused instead of being computed again. Intermediate transforms are
+     * shared across the whole batch.
+     *
+     * A long difference that is a plain chain of operations is also folded
+     * into an OffsetIndex, as in pushRemoteOp.
+     *
+     * @param ops Remote operations, in delivery order
+     * @throws OperationEngineException
+     * @return the edits to make in the text without tombstones, in the same
+     *         order, leaving out the operations whose effect is nothing
+     */
+    public List<Operation> pushRemoteOps(List<Operation> ops) throws OperationEngineException {
+        List<Operation> transformed = new ArrayList<Operation>(ops.size());
+        HashMap<TransformCache.Key, Operation> memo = new HashMap<TransformCache.Key, Operation>();
+        // sorted difference of the previous op, if it had to be transformed
+        Stack<Operation> difference = null;
+        Operation last = null;
+
+        for (Operation op : ops) {
+            Operation o;
+            if (this.hasProcessedOp(op)) {
+                this.historybuffer.addRemoteOperation(op);
+                last = null;
+                continue;
+            } else if (this.cs.equals(op.getClientState())) {
+                o = op;
+                difference = null;
+                this.offsetIndex = null;
+            } else {
+                if (last == null
+                        || op.getSiteId() != last.getSiteId()
+                        || op.getSeqId() != last.getSeqId() + 1
+                        || !op.getClientState().isAdvanceOf(last.getClientState(),
+                                last.getSiteId(), last.getSeqId())) {
+                    difference = null;
+                }
+                if (!this.followsOffsetIndex(op)) {
+                    if (difference == null) {
+                        StateDifference cd = this.cs.subtract(op.getClientState());
+                        difference = this.historybuffer.getOpsForDifference(cd);
+                    }
+                    this.buildOffsetIndex(op, difference);
+                }
+                if (this.offsetIndex != null && this.offsetIndex.canTransform(op)) {
+                    o = this.offsetIndex.transform(op, this.cs);
+                } else {
+                    if (difference == null) {
+                        StateDifference cd = this.cs.subtract(op.getClientState());
+                        difference = this.historybuffer.getOpsForDifference(cd);
+                    }
+                    o = this.fullTransform(op, difference, memo);
+                }
+            }
+
+            this.integrateRemoteOp(op);
+            this.includeInOffsetIndex(op, o);
+            this.sinceCollect++;
+            Operation edit = this.toEdit(op, o);
+            if (edit != null) {
+                transformed.add(edit);
+            }
+            last = op;
+        }
+
+        // collect only once the batch is done, the reused difference may
+        // still be needed until then
+        if (this.sinceCollect >= COLLECT_INTERVAL) {
+            this.collectGarbage();
+        }
+        return transformed;
+    }
+
+    /**
+     * Records a transformed remote operation in the tombstones, and returns
+     * the edit it makes in the text without tombstones. The edit keeps the
+     * fingerprint of the operation if it did not have to be transformed,
+     * since the document is then in the state the sender's was in.
+     *
+     * @param op original remote operation
+     * @param transformed op as transformed to the local state, or null
+     * @return the edit, or null if there is none
+     */
+    private Operation toEdit(Operation op, Operation transformed) {
+        if (transformed == null) {
+            return null;
+        }
+        Operation edit = this.tombstones.apply(transformed,
+                op.getClientState().with(op.getSiteId(), op.getSeqId()));
+        if (edit != null && transformed == op) {
+            edit.setFingerprint(op.getFingerprint());
+        }
+        return edit;
+    }
+
+    /**
+     * Checks if the offset index can be used for the given remote operation:
+     * it directly follows the last operation included in the index, and
+     * nothing else was integrated since, so it is concurrent with exactly the
+     * operations the index was built from.
+     */
+    private boolean followsOffsetIndex(Operation op) {
+        Operation last = this.offsetIndexLast;
+        return this.offsetIndex != null
+                && op.getSiteId() == last.getSiteId()
+                && op.getSeqId() == last.getSeqId() + 1
+                && op.getClientState().isAdvanceOf(last.getClientState(), last.getSiteId(), last.getSeqId());
+    }
+
+    /**
+     * Folds the difference of a remote operation into a new offset index if
+     * it is long enough to be worth it, and drops the old index otherwise.
+     */
+    private void buildOffsetIndex(Operation op, Stack<Operation> difference) {
+        this.offsetIndex = (difference.size() >= OFFSET_INDEX_MIN_OPS) ? OffsetIndex.build(op, difference) : null;
+    }
+
+    /**
+     * Includes an integrated remote operation in the offset index, dropping
+     * the index if it cannot follow.
+     *
+     * @param op original remote operation
+     * @param transformed op as transformed to the local state
+     */
+    private void includeInOffsetIndex(Operation op, Operation transformed) {
+        if (this.offsetIndex != null && this.offsetIndex.include(op, transformed)) {
+            this.offsetIndexLast = op;
         } else {
-            StateDifference cd = this.cs.subtract(op.getClientState());
-            op.setImmutable(true);
-            o = this.fullTransform(op, cd);
+            this.offsetIndex = null;
+            this.offsetIndexLast = null;
         }
+    }
+
+    /**
+     * Local operations are sent as soon as they are made, so there is nothing
+     * to wait for.
+     */
+    public Operation acknowledge(int order) {
+        return null;
+    }
 
-        this.cs.setSeqForClient(op.getSiteId(), op.getSeqId());
+    /**
+     * Records a remote operation as executed at this site.
+     *
+     * @param op original remote operation
+     * @throws OperationEngineException
+     */
+    private void integrateRemoteOp(Operation op) throws OperationEngineException {
+        this.cs = this.cs.with(op.getSiteId(), op.getSeqId());
+        if (op.getSiteId() == this.siteId) {
+            // one of this site's own, pushed again after a resync, which may
+            // not be acknowledged yet (see CollabModel.resync)
+            this.historybuffer.addLocalOperation(op);
+            return;
+        }
         this.historybuffer.addRemoteOperation(op);
         this.cst.operationUpdate(op);
-        return o;
+    }
+
+    /**
+     * Returns the operations in the history that the given context vector
+     * does not include, in the order they were executed. Operations every
+     * site has seen are collected, but the context vector of a site editing
+     * the document includes those anyway.
+     *
+     * @param cv context vector
+     * @return original operations, local and remote
+     */
+    public List<Operation> getOperationsAfter(ClientState cv) {
+        return this.historybuffer.getOperationsAfter(cv);
+    }
+
+    /**
+     * Takes the history of another site as executed, so operations
+     * concurrent with it can still be transformed. The context vector and
+     * tombstones have to be restored along with it.
+     *
+     * @param ops operations of the other site's history, in the order it
+     *            executed them
+     * @throws OperationEngineException
+     */
+    public void restoreHistory(List<Operation> ops) throws OperationEngineException {
+        this.offsetIndex = null;
+        for (Operation op : ops) {
+            this.historybuffer.addRestoredOperation(op);
+            if (op.getSiteId() != this.siteId) {
+                this.cst.operationUpdate(op);
+            }
+        }
+    }
+
+    /**
+     * Discards operations and cached transforms from the history that no
+     * future remote operation can need, i.e. the ones every remote site has
+     * already seen. Nothing is collected until every expected site has sent
+     * at least one operation, since a silent site may still be behind. The
+     * tombstones of deletes below the same horizon are erased with the next
+     * local operation (see eraseStable).
+     *
+     * @return number of operations discarded
+     */
+    public int collectGarbage() {
+        this.sinceCollect = 0;
+        if (this.cst.getRemoteClientCount(this.siteId) < Math.max(1, this.expectedSites - 1)) {
+            return 0;
+        }
+        int[] stable = this.cst.getMinimumRemoteState(this.siteId);
+        if (stable == null) {
+            return 0;
+        }
+        int[] horizon = this.historybuffer.getCollectHorizon(stable);
+        this.transformCache.prune(horizon);
+        int collected = this.historybuffer.collect(horizon);
+        this.eraseHorizon = new ClientState(horizon);
+        return collected;
+    }
+
+    /**
+     * Sets the number of sites editing the document, including this one, so
+     * garbage collection can wait until it has heard from all of them.
+     *
+     * @param sites number of sites
+     */
+    public void setExpectedSites(int sites) {
+        this.expectedSites = sites;
+    }
+
+    /**
+     * Returns the deleted characters of the document, to go on with its text
+     * later or at another site (see restoreTombstones).
+     *
+     * @return runs of live and deleted characters
+     */
+    public int[] saveTombstones() {
+        return this.tombstones.save();
+    }
+
+    /**
+     * Replaces the deleted characters of the document with saved ones, to go
+     * on with the text they were saved with. Remote operations count the
+     * deleted characters, so they only fit the text along with them. The
+     * context vector has to be set first: the deleted characters are only
+     * erased once every site has the state they were saved in.
+     *
+     * @param runs runs as returned by saveTombstones
+     */
+    public void restoreTombstones(int[] runs) {
+        this.tombstones.restore(runs, this.cs);
+    }
+
+    /**
+     * Return the number of runs of deleted characters the engine keeps.
+     */
+    public int getTombstoneRuns() {
+        return this.tombstones.getTombstoneRuns();
+    }
+
+    /**
+     * Return the number of operations retained in the history buffer.
+     */
+    public int getHistorySize() {
+        return this.historybuffer.getSize();
+    }
+
+    /**
+     * Return the number of cached transforms retained by the engine.
+     */
+    public int getCachedTransformCount() {
+        return this.transformCache.size();
+    }
+
+    /**
+     * Return the number of transform cache lookups that found a transform.
+     */
+    public long getTransformCacheHits() {
+        return this.transformCache.getHits();
+    }
+
+    /**
+     * Return the number of transform cache lookups that did not find a transform.
+     */
+    public long getTransformCacheMisses() {
+        return this.transformCache.getMisses();
+    }
+
+    /**
+     * Sets the maximum number of cached transforms. Least recently used
+     * transforms are evicted first.
+     *
+     * @param size maximum number of transforms to keep
+     */
+    public void setTransformCacheSize(int size) {
+        this.transformCache.setCapacity(size);
     }
 
     /**
@@ -170,75 +615,126 @@ public class OperationEngine {
     }
 
     /**
-     * Executes a recursive step in the OT algorithm.
+     * Transforms an operation to include the effects of all operations in
+     * the given difference.
      * This method assumes it will _not_ be called if no transformation
-     * is needed in order to reduce the number of operation copies needed.
+     * is needed. Transforms return new operations, so nothing is copied.
+     *
+     * Whenever an operation from the difference is not in the same context as
+     * the op being transformed, it first has to be transformed into that
+     * context itself. Instead of recursing, such nested transforms are pushed
+     * on an explicit work stack, and their results are kept in a memo table
+     * (including the ones with no effect, which the transform cache does not
+     * hold) so no nested transform is done twice.
      * 
      * @param op operation to transform
-     * @param cd ClientState difference between the given op and the document state
+     * @param difference operations of the ClientState difference between the
+     *                   given op and the document state, in causal order
+     * @param memo nested transforms already done, by operation and context
      * @return A new operation, including the effects of all of the operations
      *         in the context difference or null if the operation can have no
      *         further effect on the document state
      * @throws OperationEngineException
      */
-    private Operation fullTransform(Operation op, StateDifference cd) throws OperationEngineException {
+    private Operation fullTransform(Operation op, Stack<Operation> difference,
+            HashMap<TransformCache.Key, Operation> memo) throws OperationEngineException {
+        ArrayDeque<TransformFrame> work = new ArrayDeque<TransformFrame>();
+        TransformCache.Key probe = new TransformCache.Key(0, 0, null);
+
         // we first the get the operations that are different, namely the
         // ones we have done locally, but were not seen yet at the remote client.
-        Stack<Operation> ops = this.historybuffer.getOpsForDifference(cd);
-        Operation prevOperation;
-        StateDifference previousStateDifference;
-        Operation prevCachedOperation;
-        Operation cachedOperation;
-
-        op = op.copy();
-
-        // transform all the ops in the difference
-        for (int i = 0; i < ops.size(); i++) {
-            prevOperation = ops.elementAt(i);
-            if (!op.getClientState().equals(prevOperation.getClientState())) {
-                // see if we've cached a transform of this op in the desired context to avoid duplicate work
-                prevCachedOperation = prevOperation.getFromCache(op.getClientState());
-                if (prevCachedOperation != null) {
-                    prevOperation = prevCachedOperation;
-                } else {
-                    // transformation is needed to update the state of
-                    // previousOperation to current Operation
-                    previousStateDifference = op.getClientState().subtract(prevOperation.getClientState());
-                    if (previousStateDifference.clients == null ||
-                            previousStateDifference.clients.size() == 0) {
-                        throw new OperationEngineException("Transformation produced empty StateDifference.");
+        work.push(new TransformFrame(op, difference));
+        Operation result = null;
+        boolean returning = false;
+
+        while (true) {
+            TransformFrame frame = work.peek();
+            Operation prevOperation;
+
+            if (returning) {
+                // a nested transform of the frame's current op just finished
+                returning = false;
+                prevOperation = frame.ops.elementAt(frame.index);
+                memo.put(new TransformCache.Key(prevOperation.siteId, prevOperation.seqId,
+                        frame.op.getClientState()), result);
+                if (result == null) {
+                    frame.op = frame.op.upgradeContextTo(prevOperation);
+                    frame.index++;
+                    continue;
+                }
+                // now we only need the transformed operation
+                prevOperation = result;
+            }
+            else {
+                if (frame.index == frame.ops.size()) {
+                    // all the ops in the difference are included
+                    work.pop();
+                    result = frame.op;
+                    if (work.isEmpty()) {
+                        return result;
+                    }
+                    returning = true;
+                    continue;
+                }
+                prevOperation = frame.ops.elementAt(frame.index);
+                if (!frame.op.getClientState().equals(prevOperation.getClientState())) {
+                    // see if we've cached a transform of this op in the desired context to avoid duplicate work
+                    Operation prevCachedOperation = this.transformCache.get(prevOperation, frame.op.getClientState());
+                    probe.set(prevOperation.siteId, prevOperation.seqId, frame.op.getClientState());
+                    if (prevCachedOperation != null) {
+                        prevOperation = prevCachedOperation;
                     }
-                    prevCachedOperation = this.fullTransform(prevOperation, previousStateDifference);
-                    if (prevCachedOperation == null) {
-                        op.upgradeContextTo(prevOperation);
+                    else if (memo.containsKey(probe)) {
+                        prevCachedOperation = memo.get(probe);
+                        if (prevCachedOperation == null) {
+                            frame.op = frame.op.upgradeContextTo(prevOperation);
+                            frame.index++;
+                            continue;
+                        }
+                        prevOperation = prevCachedOperation;
+                    }
+                    else {
+                        // transformation is needed to update the state of
+                        // previousOperation to current Operation
+                        StateDifference previousStateDifference =
+                                frame.op.getClientState().subtract(prevOperation.getClientState());
+                        if (previousStateDifference.isEmpty()) {
+                            throw new OperationEngineException("Transformation produced empty StateDifference.");
+                        }
+                        work.push(new TransformFrame(prevOperation,
+                                this.historybuffer.getOpsForDifference(previousStateDifference)));
                         continue;
                     }
-                    // now we only need the cachedOperation
-                    prevOperation = prevCachedOperation;
                 }
             }
-            if (!op.getClientState().equals(prevOperation.getClientState())) {
+
+            if (!frame.op.getClientState().equals(prevOperation.getClientState())) {
                 throw new OperationEngineException("ClientStates not convergent after updating.");
             }
-            // make a copy of the op as is before transformation
-            cachedOperation = op.copy();
+            // keep the op as is before transformation, transforms leave it alone
+            Operation cachedOperation = frame.op;
             // transform op to include previousOperation now that ClientStates match
-            op = op.transformWith(prevOperation);
-            if (op == null) {
-                // op was deleted by another earlier op so return now because no further
-                // transformations have any impact on this op
-                return null;
+            frame.op = frame.op.transformWith(prevOperation);
+            if (frame.op == null) {
+                // op was deleted by another earlier op so this frame is done because
+                // no further transformations have any impact on this op
+                work.pop();
+                result = null;
+                if (work.isEmpty()) {
+                    return null;
+                }
+                returning = true;
+                continue;
             }
             // cache the transformed op
-            op.addToCache(this.siteCount);
+            this.transformCache.put(frame.op);
 
-            prevOperation = prevOperation.copy();
             prevOperation = prevOperation.transformWith(cachedOperation);
             if (prevOperation != null) {
-                prevOperation.addToCache(this.siteCount);
+                this.transformCache.put(prevOperation);
             }
+            frame.index++;
         }
-        return op;
     }
 
     /**
@@ -247,7 +743,27 @@ public class OperationEngine {
      * @param cv context vector
      */
     public void setCV(ClientState cv) {
+        // not changed in place from now on, so it can be shared
         this.cs = cv;
-        cv.growTo(siteId);
+        this.offsetIndex = null;
+    }
+
+    /**
+     * One pending step of fullTransform: an operation being transformed to
+     * include the operations of a difference, and how far it got.
+     */
+    private static final class TransformFrame {
+        // Operation being transformed
+        private Operation op;
+        // Operations to include, in causal order
+        private final Stack<Operation> ops;
+        // Index of the next operation to include
+        private int index;
+
+        TransformFrame(Operation op, Stack<Operation> ops) {
+            this.op = op;
+            this.ops = ops;
+            this.index = 0;
+        }
     }
 }
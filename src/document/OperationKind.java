@@ -0,0 +1,51 @@
+package document;
+
+/**
+ * The kinds of operations the engine can transform. Operations dispatch on
+ * their kind instead of comparing type names, so no string comparison is
+ * needed while transforming.
+ */
+public enum OperationKind {
+    INSERT("insert"),
+    DELETE("delete"),
+    COMPOSITE("composite"),
+    RGA("rga");
+
+    // Name used for the kind in the public API
+    private final String name;
+
+    OperationKind(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Return the name of this kind, e.g. "insert"
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Looks up a kind by its name.
+     *
+     * @param name kind name, e.g. "insert"
+     * @return the kind, or null if there is no kind with that name
+     */
+    public static OperationKind fromName(String name) {
+        if (name == null) {
+            return null;
+        }
+        switch (name) {
+            case "insert":
+                return INSERT;
+            case "delete":
+                return DELETE;
+            case "composite":
+                return COMPOSITE;
+            case "rga":
+                return RGA;
+            default:
+                return null;
+        }
+    }
+}
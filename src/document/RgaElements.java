@@ -0,0 +1,26 @@
+package document;
+
+/**
+ * The element sequence of a document edited with RgaEngine, deleted elements
+ * included, in document order. Remote operations name the elements they
+ * follow and delete, so a later session or another site can only go on with
+ * the document from its text if it also has the elements.
+ */
+public class RgaElements {
+    // Element IDs, see RgaOperation
+    public final long[] ids;
+    // Characters of the elements
+    public String text;
+    // True for the elements that were deleted
+    public final boolean[] deleted;
+    // Lamport clock of the engine the elements were saved from
+    public final int clock;
+
+    public RgaElements(long[] ids, String text, boolean[] deleted, int clock)
+    {
+        this.ids = ids;
+        this.text = text;
+        this.deleted = deleted;
+        this.clock = clock;
+    }
+}
@@ -0,0 +1,713 @@
+package document;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An engine that keeps each document as a Replicated Growable Array, a
+ * sequence CRDT. Every character ever inserted stays in the sequence as an
+ * element with a unique ID; deleting it only marks it as deleted. Operations
+ * name elements instead of offsets (see RgaOperation), so a remote operation
+ * is applied as it is: there is no history buffer to transform against and no
+ * context vector difference to compute.
+ *
+ * An inserted run goes right after its anchor element, after any elements
+ * already there with a higher ID. Those were inserted later or concurrently
+ * with a higher clock, so every site ends up with the same order whatever
+ * order it receives concurrent operations in.
+ *
+ * Operations still need to arrive in causal order, which the server's total
+ * order provides. The context vector only tracks which operations were seen.
+ * The operations themselves are only kept until every site has seen them,
+ * for a site that resyncs with a snapshot of this one's document (see
+ * getOperationsAfter).
+ */
+public class RgaEngine implements DocumentEngine {
+
+    // Represents the client ID of this engine
+    private final int siteId;
+    // Operations seen so far, by site
+    private ClientState cs;
+    // Lamport clock: highest clock of any element seen so far
+    private int clock = 0;
+    // Element sequence of each document
+    private final HashMap<String, Sequence> sequences = new HashMap<String, Sequence>();
+    // Operations integrated so far, local and remote, until every site has seen them
+    private final ArrayList<Operation> log = new ArrayList<Operation>();
+    // State every other site is known to be in
+    private final ClientStateTable cst;
+
+    // Number of operations integrated between two collections of the log
+    private static final int COLLECT_INTERVAL = 64;
+    // Operations integrated since the last collection
+    private int sinceCollect = 0;
+    // Number of sites editing the document, including this one, or 0 if unknown
+    private int expectedSites = 0;
+
+    /**
+     * Creates an RgaEngine object for the given site.
+     *
+     * @param siteId client ID of this engine instance
+     * @throws OperationEngineException
+     */
+    public RgaEngine(int siteId) throws OperationEngineException {
+        this.siteId = siteId;
+        this.cs = new ClientState(new int[siteId + 1]);
+        this.cst = new ClientStateTable(this.cs, siteId);
+    }
+
+    @Override
+    public String toString() {
+        return "{siteId : " + siteId +
+                ",ClientState : " + this.cs +
+                ",clock : " + this.clock +
+                ",documents : " + this.sequences.keySet() + "}";
+    }
+
+    /**
+     * Creates a local insert or delete and pushes it into the engine. Remote
+     * operations already name their elements and have to be pushed with
+     * pushRemoteOp.
+     */
+    public Operation push(boolean local, String key, String value, String type,
+                          int position, int site, int[] cv, int order) throws OperationEngineException {
+        if (!local) {
+            throw new OperationEngineException("Remote RGA operations are pushed as they are received.");
+        }
+        OperationKind kind = OperationKind.fromName(type);
+        if (kind == OperationKind.INSERT) {
+            LocalEdits edits = new LocalEdits(this.sequenceFor(key));
+            this.insertLocal(edits, position, value);
+            return this.pushLocalOp(key, edits);
+        }
+        if (kind == OperationKind.DELETE) {
+            return this.pushLocalDelete(key, position, value.length());
+        }
+        throw new OperationEngineException("Unknown operation type: " + type);
+    }
+
+    public Operation pushLocalDelete(String key, int position, int length) {
+        LocalEdits edits = new LocalEdits(this.sequenceFor(key));
+        this.deleteLocal(edits, position, length);
+        return this.pushLocalOp(key, edits);
+    }
+
+    /**
+     * Creates a local operation from the given edits and pushes it into the
+     * engine. The edits are made in turn, and the operation inserts and
+     * deletes the resulting elements.
+     */
+    public Operation pushLocalComposite(String key, CompositeOperation.Builder edits) {
+        CompositeOperation composite = edits.build(this.siteId, 0, this.cs, key);
+        LocalEdits local = new LocalEdits(this.sequenceFor(key));
+        for (int i = 0; i < composite.getEditCount(); i++) {
+            Operation edit = composite.getEdit(i);
+            if (edit.getKind() == OperationKind.INSERT) {
+                this.insertLocal(local, edit.getOffset(), edit.getValue());
+            }
+            else {
+                this.deleteLocal(local, edit.getOffset(), edit.getLength());
+            }
+        }
+        return this.pushLocalOp(key, local);
+    }
+
+    /**
+     * Inserts local text into the sequence, right after the visible character
+     * before it, with new IDs.
+     */
+    private void insertLocal(LocalEdits edits, int position, String text) {
+        if (text.isEmpty()) {
+            return;
+        }
+        Element anchor = (position == 0) ? null : edits.sequence.visibleAt(position - 1);
+        long first = RgaOperation.elementId(this.clock + 1, this.siteId);
+        this.clock += text.length();
+        edits.sequence.insertRun(anchor, first, text);
+        edits.addRun((anchor == null) ? 0 : anchor.id, first, text);
+    }
+
+    /**
+     * Marks the given visible characters as deleted.
+     */
+    private void deleteLocal(LocalEdits edits, int position, int length) {
+        if (length > 0) {
+            edits.sequence.deleteVisible(position, length, edits);
+        }
+    }
+
+    /**
+     * Creates the operation for the given local edits and records it as seen.
+     */
+    private Operation pushLocalOp(String key, LocalEdits edits) {
+        key = (key == null) ? null : key.intern();
+        int seqId = this.cs.getSeqForClient(this.siteId) + 1;
+        Operation op = edits.build(this.siteId, seqId, this.cs, key);
+        this.cs = this.cs.with(this.siteId, seqId);
+        this.log.add(op);
+        return op;
+    }
+
+    /**
+     * Applies a remote RGA operation to the sequence of its document.
+     *
+     * @param op Remote operation
+     * @throws OperationEngineException if op is not an RGA operation or names
+     *         an element that is not known yet
+     * @return the edits to make in the local document, a composite if there
+     *         is more than one, or null if there are none
+     */
+    public Operation pushRemoteOp(Operation op) throws OperationEngineException {
+        if (op.getKind() != OperationKind.RGA) {
+            throw new OperationEngineException("Expected an RGA operation, got " + op.getKind());
+        }
+        if (this.cs.getSeqForClient(op.getSiteId()) >= op.getSeqId()) {
+            return null;
+        }
+        RgaOperation rga = (RgaOperation) op;
+        Sequence sequence = this.sequenceFor(op.key);
+        RemoteEdits edits = new RemoteEdits(op);
+
+        int textPos = 0;
+        for (int r = 0; r < rga.getRunCount(); r++) {
+            String text = op.value.substring(textPos, textPos + rga.getRunLength(r));
+            textPos += text.length();
+            long anchor = rga.getRunAnchor(r);
+            int offset = sequence.insertRun((anchor == 0) ? null : sequence.get(anchor), rga.getRunFirst(r), text);
+            edits.insert(offset, text);
+        }
+        for (int d = 0; d < rga.getDeletedCount(); d++) {
+            long id = rga.getDeletedFirst(d);
+            for (int k = 0; k < rga.getDeletedLength(d); k++, id += RgaOperation.CLOCK_STEP) {
+                Element element = sequence.get(id);
+                if (!element.deleted) {
+                    edits.delete(sequence.delete(element), element.ch);
+                }
+            }
+        }
+
+        this.clock = Math.max(this.clock, rga.getMaxClock());
+        this.cs = this.cs.with(op.getSiteId(), op.getSeqId());
+        this.log(op);
+        return edits.build(this.cs);
+    }
+
+    /**
+     * Keeps an integrated remote operation in the log, and drops the ones
+     * every site has seen from time to time.
+     */
+    private void log(Operation op) throws OperationEngineException {
+        this.log.add(op);
+        if (op.getSiteId() != this.siteId) {
+            this.cst.operationUpdate(op);
+        }
+        if (++this.sinceCollect >= COLLECT_INTERVAL) {
+            this.collectLog();
+        }
+    }
+
+    /**
+     * Drops the operations every other site has seen from the log. Nothing
+     * is dropped until every expected site has sent at least one operation,
+     * since a silent site may still be behind.
+     *
+     * @return number of operations dropped
+     */
+    public int collectLog() {
+        this.sinceCollect = 0;
+        if (this.cst.getRemoteClientCount(this.siteId) < Math.max(1, this.expectedSites - 1)) {
+            return 0;
+        }
+        int[] stable = this.cst.getMinimumRemoteState(this.siteId);
+        if (stable == null) {
+            return 0;
+        }
+        int size = this.log.size();
+        this.log.removeIf(op -> op.getSiteId() < stable.length && op.getSeqId() <= stable[op.getSiteId()]);
+        return size - this.log.size();
+    }
+
+    /**
+     * Returns the operations in the log that the given context vector does
+     * not include, in the order they were integrated.
+     *
+     * @param cv context vector
+     * @return original operations, local and remote
+     */
+    public List<Operation> getOperationsAfter(ClientState cv) {
+        List<Operation> ops = new ArrayList<Operation>();
+        for (Operation op : this.log) {
+            if (op.getSeqId() > cv.getSeqForClient(op.getSiteId())) {
+                ops.add(op);
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Takes the log of another site as integrated. Its elements and the
+     * context vector have to be restored along with it.
+     *
+     * @param ops operations of the other site's log, in the order it
+     *            integrated them
+     * @throws OperationEngineException
+     */
+    public void restoreHistory(List<Operation> ops) throws OperationEngineException {
+        for (Operation op : ops) {
+            this.log(op);
+        }
+    }
+
+    public List<Operation> pushRemoteOps(List<Operation> ops) throws OperationEngineException {
+        List<Operation> edits = new ArrayList<Operation>(ops.size());
+        for (Operation op : ops) {
+            Operation o = this.pushRemoteOp(op);
+            if (o != null) {
+                edits.add(o);
+            }
+        }
+        return edits;
+    }
+
+    /**
+     * Local operations are sent as soon as they are made, so there is nothing
+     * to wait for.
+     */
+    public Operation acknowledge(int order) {
+        return null;
+    }
+
+    /**
+     * Returns the element sequence of the given document, creating it if needed.
+     */
+    private Sequence sequenceFor(String key) {
+        Sequence sequence = this.sequences.get(key);
+        if (sequence == null) {
+            sequence = new Sequence();
+            this.sequences.put(key, sequence);
+        }
+        return sequence;
+    }
+
+    public void setCV(ClientState cv) {
+        // not changed in place from now on, so it can be shared
+        this.cs = cv;
+    }
+
+    public ClientState copyClientState() throws OperationEngineException {
+        return this.cs.copy();
+    }
+
+    /**
+     * Sets the number of sites editing the document, including this one, so
+     * the log is only collected once it has heard from all of them. Deleted
+     * elements are kept as tombstones for later inserts to anchor on anyway.
+     *
+     * @param sites number of sites
+     */
+    public void setExpectedSites(int sites) {
+        this.expectedSites = sites;
+    }
+
+    /**
+     * Return the number of elements kept for the given document, including
+     * the deleted ones.
+     */
+    public int getElementCount(String key) {
+        Sequence sequence = this.sequences.get(key);
+        return (sequence == null) ? 0 : sequence.elements.size();
+    }
+
+    /**
+     * Saves the element sequence of a document, so another engine can go on
+     * with it (see restoreElements).
+     *
+     * @param key document key
+     * @return the elements of the document, deleted ones included
+     */
+    public RgaElements saveElements(String key) {
+        Sequence sequence = this.sequenceFor(key);
+        int count = sequence.elements.size();
+        long[] ids = new long[count];
+        boolean[] deleted = new boolean[count];
+        StringBuilder text = new StringBuilder(count);
+        int i = 0;
+        for (Block block : sequence.blocks) {
+            for (Element element : block.elements) {
+                ids[i] = element.id;
+                deleted[i] = element.deleted;
+                text.append(element.ch);
+                i++;
+            }
+        }
+        return new RgaElements(ids, text.toString(), deleted, this.clock);
+    }
+
+    /**
+     * Replaces the element sequence of a document with saved elements, e.g.
+     * when a client opens the document again or takes a snapshot of another
+     * site. The context vector is set separately.
+     *
+     * @param key   document key
+     * @param saved elements as saved by saveElements
+     * @throws OperationEngineException if the saved elements do not fit together
+     */
+    public void restoreElements(String key, RgaElements saved) throws OperationEngineException {
+        if (saved.text.length() != saved.ids.length || saved.deleted.length != saved.ids.length) {
+            throw new OperationEngineException("Saved RGA elements do not match their text.");
+        }
+        Sequence sequence = new Sequence();
+        sequence.load(saved);
+        this.sequences.put(key, sequence);
+        this.clock = Math.max(this.clock, saved.clock);
+    }
+
+    /**
+     * A character of a document, deleted or not.
+     */
+    private static final class Element {
+        // Unique ID, see RgaOperation
+        private final long id;
+        // The character
+        private final char ch;
+        // True once any site deleted it
+        private boolean deleted;
+        // Block the element is currently in
+        private Block block;
+
+        Element(long id, char ch) {
+            this.id = id;
+            this.ch = ch;
+        }
+    }
+
+    /**
+     * A run of consecutive elements of a sequence, along with how many of
+     * them are visible, so offsets can skip whole blocks.
+     */
+    private static final class Block {
+        // Elements in document order
+        private final ArrayList<Element> elements;
+        // Number of elements not deleted
+        private int visible;
+        // Index of the block in the sequence
+        private int index;
+
+        Block(ArrayList<Element> elements, int index) {
+            this.elements = elements;
+            this.index = index;
+            for (Element element : elements) {
+                element.block = this;
+                if (!element.deleted) {
+                    this.visible++;
+                }
+            }
+        }
+    }
+
+    /**
+     * The elements of one document in document order, split into blocks.
+     */
+    private static final class Sequence {
+        // Most elements kept in a block after it is split
+        private static final int BLOCK_SIZE = 256;
+
+        // Blocks in document order, never empty
+        private final ArrayList<Block> blocks = new ArrayList<Block>();
+        // Every element, by ID
+        private final HashMap<Long, Element> elements = new HashMap<Long, Element>();
+
+        Sequence() {
+            this.blocks.add(new Block(new ArrayList<Element>(), 0));
+        }
+
+        /**
+         * Replaces the elements of this empty sequence with saved ones, in
+         * blocks of BLOCK_SIZE.
+         */
+        void load(RgaElements saved) {
+            this.blocks.clear();
+            for (int k = 0; k < saved.ids.length || this.blocks.isEmpty(); k += BLOCK_SIZE) {
+                int end = Math.min(saved.ids.length, k + BLOCK_SIZE);
+                ArrayList<Element> elements = new ArrayList<Element>(end - k);
+                for (int i = k; i < end; i++) {
+                    Element element = new Element(saved.ids[i], saved.text.charAt(i));
+                    element.deleted = saved.deleted[i];
+                    elements.add(element);
+                    this.elements.put(element.id, element);
+                }
+                this.blocks.add(new Block(elements, this.blocks.size()));
+            }
+        }
+
+        /**
+         * Returns the element with the given ID.
+         *
+         * @throws OperationEngineException if there is none yet
+         */
+        Element get(long id) throws OperationEngineException {
+            Element element = this.elements.get(id);
+            if (element == null) {
+                throw new OperationEngineException("Missing element for RGA operation: "
+                        + RgaOperation.clockOf(id) + "@" + (int) id);
+            }
+            return element;
+        }
+
+        /**
+         * Inserts a run of characters with consecutive IDs after the anchor,
+         * skipping the elements right after it with a higher ID than the first
+         * character. Nothing can be inserted between the characters of the run
+         * that way, so they stay together.
+         *
+         * @param anchor element the run follows, null for the start
+         * @param first ID of the first character
+         * @param text characters of the run
+         * @return offset of the first character among the visible ones
+         */
+        int insertRun(Element anchor, long first, String text) {
+            Block block = this.blocks.get(0);
+            int i = 0;
+            if (anchor != null) {
+                block = anchor.block;
+                i = block.elements.indexOf(anchor) + 1;
+            }
+            while (true) {
+                if (i == block.elements.size()) {
+                    if (block.index + 1 == this.blocks.size()) {
+                        break;
+                    }
+                    block = this.blocks.get(block.index + 1);
+                    i = 0;
+                }
+                else if (block.elements.get(i).id > first) {
+                    i++;
+                }
+                else {
+                    break;
+                }
+            }
+
+            int offset = this.visibleBefore(block, i);
+            List<Element> run = new ArrayList<Element>(text.length());
+            long id = first;
+            for (int k = 0; k < text.length(); k++, id += RgaOperation.CLOCK_STEP) {
+                Element element = new Element(id, text.charAt(k));
+                element.block = block;
+                run.add(element);
+                this.elements.put(id, element);
+            }
+            block.elements.addAll(i, run);
+            block.visible += run.size();
+            if (block.elements.size() > 2 * BLOCK_SIZE) {
+                this.split(block);
+            }
+            return offset;
+        }
+
+        /**
+         * Marks an element as deleted.
+         *
+         * @return its offset among the visible elements before it was deleted
+         */
+        int delete(Element element) {
+            Block block = element.block;
+            int offset = this.visibleBefore(block, block.elements.indexOf(element));
+            element.deleted = true;
+            block.visible--;
+            return offset;
+        }
+
+        /**
+         * Marks the given visible elements as deleted, and records their IDs.
+         */
+        void deleteVisible(int position, int length, LocalEdits edits) {
+            Element first = this.visibleAt(position);
+            Block block = first.block;
+            int i = block.elements.indexOf(first);
+            while (length > 0) {
+                if (i == block.elements.size()) {
+                    block = this.blocks.get(block.index + 1);
+                    i = 0;
+                    continue;
+                }
+                Element element = block.elements.get(i++);
+                if (!element.deleted) {
+                    element.deleted = true;
+                    block.visible--;
+                    edits.addDeleted(element.id);
+                    length--;
+                }
+            }
+        }
+
+        /**
+         * Returns the visible element at the given offset.
+         */
+        Element visibleAt(int offset) {
+            for (Block block : this.blocks) {
+                if (offset >= block.visible) {
+                    offset -= block.visible;
+                    continue;
+                }
+                for (Element element : block.elements) {
+                    if (!element.deleted && offset-- == 0) {
+                        return element;
+                    }
+                }
+            }
+            throw new IndexOutOfBoundsException("No character at offset " + offset);
+        }
+
+        /**
+         * Counts the visible elements before the given position of a block.
+         */
+        private int visibleBefore(Block block, int i) {
+            int offset = 0;
+            for (int b = 0; b < block.index; b++) {
+                offset += this.blocks.get(b).visible;
+            }
+            for (int k = 0; k < i; k++) {
+                if (!block.elements.get(k).deleted) {
+                    offset++;
+                }
+            }
+            return offset;
+        }
+
+        /**
+         * Splits a block that grew too large into blocks of BLOCK_SIZE
+         * elements, and renumbers the blocks after it.
+         */
+        private void split(Block block) {
+            List<Block> parts = new ArrayList<Block>();
+            for (int k = 0; k < block.elements.size(); k += BLOCK_SIZE) {
+                int end = Math.min(block.elements.size(), k + BLOCK_SIZE);
+                parts.add(new Block(new ArrayList<Element>(block.elements.subList(k, end)), 0));
+            }
+            this.blocks.remove(block.index);
+            this.blocks.addAll(block.index, parts);
+            for (int b = block.index; b < this.blocks.size(); b++) {
+                this.blocks.get(b).index = b;
+            }
+        }
+    }
+
+    /**
+     * Collects the runs and deleted IDs of a local operation.
+     */
+    private static final class LocalEdits {
+        // Sequence the edits are made in
+        private final Sequence sequence;
+        private final List<Long> anchors = new ArrayList<Long>();
+        private final List<Long> firsts = new ArrayList<Long>();
+        private final List<Integer> lengths = new ArrayList<Integer>();
+        private final StringBuilder text = new StringBuilder();
+        // (first ID, count) pairs, merging consecutive IDs
+        private final List<Long> deleted = new ArrayList<Long>();
+
+        LocalEdits(Sequence sequence) {
+            this.sequence = sequence;
+        }
+
+        void addRun(long anchor, long first, String value) {
+            this.anchors.add(anchor);
+            this.firsts.add(first);
+            this.lengths.add(value.length());
+            this.text.append(value);
+        }
+
+        void addDeleted(long id) {
+            int last = this.deleted.size() - 2;
+            if (last >= 0 && this.deleted.get(last) + this.deleted.get(last + 1) * RgaOperation.CLOCK_STEP == id) {
+                this.deleted.set(last + 1, this.deleted.get(last + 1) + 1);
+                return;
+            }
+            this.deleted.add(id);
+            this.deleted.add(1L);
+        }
+
+        RgaOperation build(int siteId, int seqId, ClientState clientState, String key) {
+            long[] anchors = new long[this.anchors.size()];
+            long[] firsts = new long[anchors.length];
+            int[] lengths = new int[anchors.length];
+            for (int r = 0; r < anchors.length; r++) {
+                anchors[r] = this.anchors.get(r);
+                firsts[r] = this.firsts.get(r);
+                lengths[r] = this.lengths.get(r);
+            }
+            long[] deleted = new long[this.deleted.size()];
+            for (int d = 0; d < deleted.length; d++) {
+                deleted[d] = this.deleted.get(d);
+            }
+            return new RgaOperation(siteId, seqId, clientState, key, anchors, firsts, lengths,
+                    this.text.toString(), deleted, Integer.MAX_VALUE, true);
+        }
+    }
+
+    /**
+     * Collects the offset edits a remote operation makes in the local
+     * document, each in the document as left by the ones before it.
+     * Characters deleted one after the other are merged into one delete.
+     */
+    private static final class RemoteEdits {
+        // Remote operation the edits come from
+        private final Operation op;
+        private final List<Operation> edits = new ArrayList<Operation>();
+        // Delete being merged, or null
+        private StringBuilder deletedText;
+        private int deletedOffset;
+
+        RemoteEdits(Operation op) {
+            this.op = op;
+        }
+
+        void insert(int offset, String text) {
+            this.flushDelete();
+            this.edits.add(new InsertOperation(this.op.siteId, this.op.seqId, null, this.op.key, text,
+                    offset, this.op.getOrder(), false));
+        }
+
+        void delete(int offset, char ch) {
+            if (this.deletedText != null && offset == this.deletedOffset) {
+                // the next character
+                this.deletedText.append(ch);
+                return;
+            }
+            if (this.deletedText != null && offset + 1 == this.deletedOffset) {
+                // the previous character
+                this.deletedText.insert(0, ch);
+                this.deletedOffset = offset;
+                return;
+            }
+            this.flushDelete();
+            this.deletedText = new StringBuilder().append(ch);
+            this.deletedOffset = offset;
+        }
+
+        private void flushDelete() {
+            if (this.deletedText != null) {
+                this.edits.add(new DeleteOperation(this.op.siteId, this.op.seqId, null, this.op.key,
+                        new int[] {this.deletedOffset, this.deletedText.length()},
+                        this.deletedText.toString(), this.op.getOrder(), false));
+                this.deletedText = null;
+            }
+        }
+
+        /**
+         * Returns the collected edits as a single operation in the given context.
+         */
+        Operation build(ClientState context) {
+            this.flushDelete();
+            if (this.edits.isEmpty()) {
+                return null;
+            }
+            if (this.edits.size() == 1) {
+                return this.edits.get(0).withContext(context);
+            }
+            return new CompositeOperation(this.op.siteId, this.op.seqId, context, this.op.key,
+                    this.edits.toArray(new Operation[0]), this.op.getOrder(), false);
+        }
+    }
+}
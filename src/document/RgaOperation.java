@@ -0,0 +1,163 @@
+package document;
+
+import java.util.Arrays;
+
+
+/**
+ * A subclass of the Operation class made by an RgaEngine. Instead of offsets,
+ * it names the characters it inserts and deletes by their element IDs, so it
+ * applies the same way whatever else was done concurrently and is never
+ * transformed.
+ *
+ * An element ID packs the Lamport clock of the character into the high 32 bits
+ * and the site that inserted it into the low 32 bits, so comparing IDs orders
+ * them by clock and then by site. The characters of an inserted run take
+ * consecutive clocks. The value holds the text of all runs in order.
+ */
+public class RgaOperation extends Operation {
+
+    private static final long serialVersionUID = 6217904836452230315L;
+
+    // Difference between the IDs of consecutive characters of a run
+    static final long CLOCK_STEP = 1L << 32;
+
+    // ID of the element each inserted run follows, 0 for the start of the document
+    private long[] anchors;
+    // ID of the first character of each inserted run
+    private long[] firsts;
+    // Number of characters of each inserted run
+    private int[] lengths;
+    // Deleted elements as (first ID, count) pairs of consecutive IDs
+    private long[] deleted;
+
+    /**
+     * Creates an RGA operation object directly from its values (see
+     * Operation.java for more info). Runs are inserted in order, then the
+     * deleted elements are removed. None of the arrays are copied.
+     */
+    RgaOperation(int siteId, int seqId, ClientState clientState, String key, long[] anchors,
+                 long[] firsts, int[] lengths, String value, long[] deleted, int order, boolean local) {
+        super(siteId, seqId, clientState, key, value, 0, order, local);
+        this.type = OperationKind.RGA;
+        this.anchors = anchors;
+        this.firsts = firsts;
+        this.lengths = lengths;
+        this.deleted = deleted;
+    }
+
+    /**
+     * Makes the ID of the element inserted at the given clock by the given site.
+     */
+    static long elementId(int clock, int siteId) {
+        return ((long) clock << 32) | (siteId & 0xffffffffL);
+    }
+
+    /**
+     * Return the Lamport clock of the given element ID
+     */
+    static int clockOf(long id) {
+        return (int) (id >>> 32);
+    }
+
+    /**
+     * Return the number of inserted runs
+     */
+    public int getRunCount() {
+        return this.anchors.length;
+    }
+
+    /**
+     * Return the ID of the element the given run follows
+     */
+    public long getRunAnchor(int r) {
+        return this.anchors[r];
+    }
+
+    /**
+     * Return the ID of the first character of the given run
+     */
+    public long getRunFirst(int r) {
+        return this.firsts[r];
+    }
+
+    /**
+     * Return the number of characters of the given run
+     */
+    public int getRunLength(int r) {
+        return this.lengths[r];
+    }
+
+    /**
+     * Return the number of deleted (first ID, count) ranges
+     */
+    public int getDeletedCount() {
+        return this.deleted.length / 2;
+    }
+
+    /**
+     * Return the ID of the first element of the given deleted range
+     */
+    public long getDeletedFirst(int d) {
+        return this.deleted[2 * d];
+    }
+
+    /**
+     * Return the number of elements of the given deleted range
+     */
+    public int getDeletedLength(int d) {
+        return (int) this.deleted[2 * d + 1];
+    }
+
+    /**
+     * Return the highest Lamport clock of the characters this operation inserts
+     */
+    int getMaxClock() {
+        int max = 0;
+        for (int r = 0; r < this.firsts.length; r++) {
+            max = Math.max(max, clockOf(this.firsts[r]) + this.lengths[r] - 1);
+        }
+        return max;
+    }
+
+    public int getLength() {
+        int length = 0;
+        for (int count : this.lengths) {
+            length += count;
+        }
+        for (int d = 1; d < this.deleted.length; d += 2) {
+            length += (int) this.deleted[d];
+        }
+        return length;
+    }
+
+    /**
+     * RGA operations only apply to the element sequence of an RgaEngine.
+     */
+    public void applyTo(StringBuilder doc) {
+        throw new UnsupportedOperationException("RGA operations are applied by an RgaEngine.");
+    }
+
+    protected Operation transformedWithInsert(InsertOperation op, ClientState context) {
+        throw new UnsupportedOperationException("RGA operations are not transformed.");
+    }
+
+    protected Operation transformedWithDelete(DeleteOperation op, ClientState context) {
+        throw new UnsupportedOperationException("RGA operations are not transformed.");
+    }
+
+    protected Operation transformedWithDeleteInText(DeleteOperation op) {
+        throw new UnsupportedOperationException("RGA operations are not transformed.");
+    }
+
+    protected Operation withContext(ClientState context) {
+        return new RgaOperation(this.siteId, this.seqId, context, this.key, this.anchors, this.firsts,
+                this.lengths, this.value, this.deleted, this.getOrder(), this.isLocal());
+    }
+
+    @Override
+    public String toString() {
+        String s = super.toString();
+        return s.substring(0, s.length() - 1) + ",runs : " + this.anchors.length
+                + ",deleted : " + Arrays.toString(this.deleted) + "}";
+    }
+}
@@ -0,0 +1,303 @@
+package document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An engine for the server-sequenced mode, where the total order the server
+ * assigns to every operation takes the place of context vectors, as in
+ * Jupiter and Wave.
+ *
+ * A site has at most one operation in flight: it sends an operation, then
+ * keeps later local operations in a queue until the server acknowledges the
+ * first one with its order. The queue is then sent as a single operation.
+ * Every operation carries only its base, the order of the last operation the
+ * site had received when it sent it, so it applies to the document as it was
+ * after that operation.
+ *
+ * Every site keeps the recent operations of the total order in a log, each
+ * transformed to apply right after the one before it. A remote operation is
+ * transformed with the logged operations after its base, which gives every
+ * site the same form of it, and then with the local operations the server
+ * did not acknowledge yet. The server never needs to transform anything.
+ *
+ * This engine keeps no tombstones, so operations give their positions in the
+ * text itself and are transformed with Operation.transformedInText. With
+ * every remote operation transformed against the same total order, those
+ * transforms only need to converge for two operations at a time.
+ */
+public class SequencedEngine implements DocumentEngine {
+
+    // Most operations kept in the log once it is trimmed
+    private static final int LOG_SIZE = 4096;
+
+    // Represents the client ID of this engine
+    private final int siteId;
+    // Sequence number of the last local operation
+    private int seqId = 0;
+    // Order of the last operation included in the local document, or -1
+    private int lastOrder = -1;
+    // Recent operations of the total order, each in the document as left by the ones before
+    private final List<Operation> log = new ArrayList<Operation>();
+    // Highest order dropped from the log, or -1
+    private int trimmedOrder = -1;
+
+    // True while an operation sent by this site was not acknowledged
+    private boolean awaiting = false;
+    // That operation, transformed to apply to the local document before the
+    // queued ones, or null if concurrent operations took away its effect
+    private Operation outstanding = null;
+    // Local operations not sent yet, each in the document as left by the ones before
+    private final List<Operation> queued = new ArrayList<Operation>();
+
+    /**
+     * Creates a SequencedEngine object for the given site.
+     *
+     * @param siteId client ID of this engine instance
+     */
+    public SequencedEngine(int siteId) {
+        this.siteId = siteId;
+    }
+
+    @Override
+    public String toString() {
+        return "{siteId : " + siteId +
+                ",lastOrder : " + this.lastOrder +
+                ",log : " + this.log.size() +
+                ",awaiting : " + this.awaiting +
+                ",queued : " + this.queued.size() + "}";
+    }
+
+    /**
+     * Creates a local insert or delete and pushes it into the engine. Remote
+     * operations carry their base and have to be pushed with pushRemoteOp.
+     */
+    public Operation push(boolean local, String key, String value, String type,
+                          int position, int site, int[] cv, int order) throws OperationEngineException {
+        if (!local) {
+            throw new OperationEngineException("Remote sequenced operations are pushed as they are received.");
+        }
+        Operation op = Operation.createOperationFromType(type, this.siteId, ++this.seqId, null,
+                key, value, position, Integer.MAX_VALUE, true);
+        if (op == null) {
+            throw new OperationEngineException("Unknown operation type: " + type);
+        }
+        return this.pushLocalOp(op);
+    }
+
+    public Operation pushLocalDelete(String key, int position, int length) {
+        return this.pushLocalOp(new DeleteOperation(this.siteId, ++this.seqId, null, key,
+                new int[] {position, length}, null, Integer.MAX_VALUE, true));
+    }
+
+    public Operation pushLocalComposite(String key, CompositeOperation.Builder edits) {
+        return this.pushLocalOp(edits.build(this.siteId, ++this.seqId, null, key));
+    }
+
+    /**
+     * Sends a local operation right away if nothing is in flight, and queues
+     * it otherwise.
+     *
+     * @return op, or null if it was queued
+     */
+    private Operation pushLocalOp(Operation op) {
+        if (this.awaiting) {
+            this.queued.add(op);
+            return null;
+        }
+        return this.send(op);
+    }
+
+    /**
+     * Marks an operation as in flight, made after the last operation of the
+     * total order this site has.
+     *
+     * @return a copy of op that carries its base, to send
+     */
+    private Operation send(Operation op) {
+        Operation sent = op.withOrder(op.getOrder(), this.lastOrder);
+        this.awaiting = true;
+        this.outstanding = sent;
+        return sent;
+    }
+
+    /**
+     * Records the order of the operation in flight and sends the queued
+     * operations, as one composite operation if there is more than one.
+     */
+    public Operation acknowledge(int order) {
+        if (!this.awaiting) {
+            return null;
+        }
+        if (this.outstanding != null) {
+            // the same form every other site gets for it. The operation was
+            // handed out when it was sent, so the log gets a copy with the order
+            this.log.add(this.outstanding.withOrder(order, this.outstanding.base));
+        }
+        this.lastOrder = order;
+        this.awaiting = false;
+        this.outstanding = null;
+        this.trimLog();
+
+        if (this.queued.isEmpty()) {
+            return null;
+        }
+        Operation op = this.queued.get(0);
+        if (this.queued.size() > 1) {
+            List<Operation> edits = new ArrayList<Operation>();
+            for (Operation queued : this.queued) {
+                if (queued.getKind() == OperationKind.COMPOSITE) {
+                    CompositeOperation composite = (CompositeOperation) queued;
+                    for (int i = 0; i < composite.getEditCount(); i++) {
+                        edits.add(composite.getEdit(i));
+                    }
+                }
+                else {
+                    edits.add(queued);
+                }
+            }
+            Operation last = this.queued.get(this.queued.size() - 1);
+            op = new CompositeOperation(this.siteId, last.seqId, null, last.key,
+                    edits.toArray(new Operation[0]), Integer.MAX_VALUE, true);
+        }
+        this.queued.clear();
+        return this.send(op);
+    }
+
+    /**
+     * Transforms a remote operation into the local document: first into the
+     * total order, with the logged operations after its base, then past the
+     * local operations not acknowledged yet, which are transformed to include
+     * it in turn.
+     *
+     * @param op Remote operation, with its order set
+     * @throws OperationEngineException if the log no longer has the
+     *         operations after the base of op
+     * @return the edit to make in the local document, or null if there is none
+     */
+    public Operation pushRemoteOp(Operation op) throws OperationEngineException {
+        if (op.getOrder() <= this.lastOrder) {
+            return null;
+        }
+        if (op.base < this.trimmedOrder) {
+            throw new OperationEngineException("Operation based on order " + op.base
+                    + " is older than the log.");
+        }
+
+        int start = this.log.size();
+        while (start > 0 && this.log.get(start - 1).getOrder() > op.base) {
+            start--;
+        }
+        Operation o = op;
+        for (int i = start; i < this.log.size() && o != null; i++) {
+            o = transform(o, this.log.get(i));
+        }
+        if (o != null) {
+            this.log.add(o);
+        }
+        this.lastOrder = op.getOrder();
+        this.trimLog();
+
+        // past the operation in flight and the queued ones
+        if (o != null && this.outstanding != null) {
+            Operation outstanding = transform(this.outstanding, o);
+            o = transform(o, this.outstanding);
+            this.outstanding = outstanding;
+        }
+        for (int i = 0; i < this.queued.size() && o != null; i++) {
+            Operation queued = this.queued.get(i);
+            Operation transformed = transform(queued, o);
+            o = transform(o, queued);
+            if (transformed == null) {
+                this.queued.remove(i--);
+            }
+            else {
+                this.queued.set(i, transformed);
+            }
+        }
+        return o;
+    }
+
+    public List<Operation> pushRemoteOps(List<Operation> ops) throws OperationEngineException {
+        List<Operation> edits = new ArrayList<Operation>(ops.size());
+        for (Operation op : ops) {
+            Operation o = this.pushRemoteOp(op);
+            if (o != null) {
+                edits.add(o);
+            }
+        }
+        return edits;
+    }
+
+    /**
+     * Transforms an operation to include another one applying to the same
+     * document, in the text without tombstones. There are no contexts in
+     * this mode.
+     *
+     * @return the transformed operation, or null if it has no further effect
+     */
+    private static Operation transform(Operation op, Operation other) {
+        return op.transformedInText(other);
+    }
+
+    /**
+     * Drops the oldest half of the log once it grows past twice LOG_SIZE.
+     */
+    private void trimLog() {
+        int size = this.log.size();
+        if (size > 2 * LOG_SIZE) {
+            this.trimmedOrder = this.log.get(size - LOG_SIZE - 1).getOrder();
+            this.log.subList(0, size - LOG_SIZE).clear();
+        }
+    }
+
+    /**
+     * There are no context vectors in this mode.
+     */
+    public void setCV(ClientState cv) {
+    }
+
+    /**
+     * There are no context vectors in this mode.
+     *
+     * @return null
+     */
+    public ClientState copyClientState() {
+        return null;
+    }
+
+    /**
+     * There are no context vectors in this mode, so there are no snapshots
+     * to resync with either.
+     *
+     * @return an empty list
+     */
+    public List<Operation> getOperationsAfter(ClientState cv) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * There are no context vectors in this mode.
+     */
+    public void restoreHistory(List<Operation> ops) {
+    }
+
+    public void setExpectedSites(int sites) {
+    }
+
+    /**
+     * Return the order of the last operation included in the local document,
+     * or -1 if there is none
+     */
+    public int getLastOrder() {
+        return this.lastOrder;
+    }
+
+    /**
+     * Return the number of local operations not acknowledged yet
+     */
+    public int getUnacknowledgedCount() {
+        return (this.awaiting ? 1 : 0) + this.queued.size();
+    }
+}
@@ -1,28 +1,34 @@
 package document;
 
-import java.util.Vector;
+import java.util.Arrays;
 
 /**
  * This class is a way to store the differences in state for a collection of
  * vectors. With this, it is easier to determine causality between operations,
  * and allow the recursive algorithm in the engine to determine how far back in
  * the history buffer we need to check to transform a received operation with.
+ *
+ * The difference is kept as (client, start, end) ranges of sequence numbers,
+ * so its size does not depend on how many operations it covers. Consumers walk
+ * the ranges instead of individual operation IDs.
  * 
  */
 public class StateDifference {
 
-    // Holds client IDs
-    public final Vector<Integer> clients;
-    // Holds IDs for operations
-    private final Vector<Integer> sequenceID;
+    // Holds consecutive (client ID, first sequence ID, end sequence ID) triples
+    private int[] ranges;
+    // Number of ranges stored
+    private int rangeCount;
+    // Number of operations covered by all ranges
+    private int size;
 
     /**
-     * This is the constructor for the context difference. We have two vectors:
-     * one for client IDs and one for operation (sequence) IDs
+     * This is the constructor for the context difference. It starts out empty.
      */
     public StateDifference() {
-        this.clients = new Vector<Integer>();
-        this.sequenceID = new Vector<Integer>();
+        this.ranges = new int[3 * 4];
+        this.rangeCount = 0;
+        this.size = 0;
     }
 
     /**
@@ -35,33 +41,63 @@ public class StateDifference {
      * @param end  last operation sequence number (exclusive)
      */
     public void addRange(int client, int start, int end) {
-        for (int i = start; i < end; i++) {
-            // This means that the client has a different operation at the specified
-            // sequence ID
-            this.clients.addElement(client);
-            this.sequenceID.addElement(i);
+        if (end <= start) {
+            return;
         }
+        int i = 3 * this.rangeCount;
+        if (i + 3 > this.ranges.length) {
+            this.ranges = Arrays.copyOf(this.ranges, this.ranges.length * 2);
+        }
+        this.ranges[i] = client;
+        this.ranges[i + 1] = start;
+        this.ranges[i + 2] = end;
+        this.rangeCount++;
+        this.size += end - start;
     }
 
     /**
-     * We will get all the operations in the HistoryBuffer that are specified in
-     * this contextDifference.
-     * Since we know the specific way that keys of the operation are constructed,
-     * we can recreate the key for a specific operation, and then get it from the history buffer.
-     * This will allow us to access the information about this different operation,
-     * such as its value and offset.
-     * This will be used in the __transform__ function in OperationEngine
-     * 
-     * @return Array of keys for HistoryBuffer lookups
+     * @return number of (client, start, end) ranges in this difference
      */
-    public String[] getHistoryBufferKeys() {
-        Vector<String> arr = new Vector<String>();
-        for (int i = 0; i < this.clients.size(); i++) {
-            String key = Operation.createHistoryKey(this.clients.elementAt(i), this.sequenceID.elementAt(i));
-            arr.addElement(key);
-        }
-        String[] strArr = new String[arr.size()];
-        return arr.toArray(strArr);
+    public int getRangeCount() {
+        return this.rangeCount;
+    }
+
+    /**
+     * @param range index of the range
+     * @return client ID whose operations the range covers
+     */
+    public int getClient(int range) {
+        return this.ranges[3 * range];
+    }
+
+    /**
+     * @param range index of the range
+     * @return first sequence ID of the range (inclusive)
+     */
+    public int getStart(int range) {
+        return this.ranges[3 * range + 1];
+    }
+
+    /**
+     * @param range index of the range
+     * @return last sequence ID of the range (exclusive)
+     */
+    public int getEnd(int range) {
+        return this.ranges[3 * range + 2];
+    }
+
+    /**
+     * @return total number of operations in this difference
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return True iff this difference contains no operations
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
     }
 
 }
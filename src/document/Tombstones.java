@@ -0,0 +1,598 @@
+package document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The characters of a document as OperationEngine sees them: every character
+ * ever inserted, in document order, with the deleted ones kept as tombstones.
+ * Operations give their positions in this sequence, so a delete never moves
+ * another operation, and inserts only tie when they were made at the same
+ * place. That is what lets the transforms converge with any number of sites.
+ * The text itself stays in the document; only which characters are deleted is
+ * kept here.
+ *
+ * The sequence is stored as runs of live characters and of tombstones, split
+ * into blocks that know their length and how many of their characters are
+ * live, so positions can skip whole blocks and an edit only rewrites the
+ * block it lands in. The text the document started with is not known, so the
+ * sequence goes on past the stored runs: every position after them is a live
+ * character the document started with.
+ *
+ * Each run of tombstones keeps the state its deletes were made in. Once every
+ * site has that state, no operation that can still arrive sees those
+ * characters as live, and the engine erases them (see eraseStable).
+ */
+class Tombstones {
+
+    // Most runs kept in a block after it is split
+    private static final int BLOCK_SIZE = 64;
+
+    // Blocks in document order, at least one
+    private final List<Block> blocks = new ArrayList<Block>();
+
+    Tombstones() {
+        this.blocks.add(new Block(8));
+    }
+
+    /**
+     * Records a local insert of length characters at the given position of
+     * the text without tombstones. The characters go right after the live
+     * character before them, ahead of any tombstones there.
+     *
+     * @return the position of the insert with tombstones
+     */
+    int insertLive(int position, int length) {
+        int at = this.toSequence(position);
+        this.insert(at, length);
+        return at;
+    }
+
+    /**
+     * Records a local delete of length characters at the given position of
+     * the text without tombstones.
+     *
+     * @param tag state the delete was made in, including itself
+     * @return the deleted ranges with tombstones, as (start, length) pairs,
+     *         which are never empty (see DeleteOperation)
+     */
+    int[] deleteLive(int position, int length, ClientState tag) {
+        int at = this.toSequence(position);
+        DeleteOperation.RangeBuilder out = new DeleteOperation.RangeBuilder(2, false);
+        Cursor cursor = new Cursor(at);
+        for (int left = length; left > 0; cursor.next()) {
+            if (!cursor.isDeleted()) {
+                int count = (int) Math.min(left, cursor.end() - at);
+                out.add(at, count, null, 0);
+                left -= count;
+            }
+            at = (int) Math.min(cursor.end(), Integer.MAX_VALUE);
+        }
+        if (out.isEmpty()) {
+            return new int[] {this.toSequence(position), 0};
+        }
+        int[] ranges = out.getRanges();
+        for (int r = 0; r < ranges.length; r += 2) {
+            this.delete(ranges[r], ranges[r + 1], tag);
+        }
+        return ranges;
+    }
+
+    /**
+     * Records a remote operation, transformed to the state of the engine,
+     * and returns the edit it makes in the text without tombstones.
+     *
+     * @param op insert, delete or composite operation with tombstones
+     * @param tag state op was made in, including itself
+     * @return the edit, with op's identity, or null if it changes nothing,
+     *         e.g. a delete of characters that are deleted already
+     */
+    Operation apply(Operation op, ClientState tag) {
+        switch (op.getKind()) {
+            case INSERT:
+                int position = this.countLive(op.offset);
+                this.insert(op.offset, op.getLength());
+                return new InsertOperation(op.siteId, op.seqId, op.getClientState(), op.key, op.value,
+                        position, op.getOrder(), op.isLocal());
+            case DELETE:
+                DeleteOperation delete = (DeleteOperation) op;
+                if (delete.isErase()) {
+                    this.erase(delete);
+                    return null;
+                }
+                return this.applyDelete(delete, tag);
+            case COMPOSITE:
+                CompositeOperation composite = (CompositeOperation) op;
+                List<Operation> edits = new ArrayList<Operation>(composite.getEditCount());
+                for (int i = 0; i < composite.getEditCount(); i++) {
+                    Operation edit = this.apply(composite.getEdit(i), tag);
+                    if (edit != null) {
+                        edits.add(edit);
+                    }
+                }
+                if (edits.isEmpty()) {
+                    return null;
+                }
+                return new CompositeOperation(op.siteId, op.seqId, op.getClientState(), op.key,
+                        edits.toArray(new Operation[0]), op.getOrder(), op.isLocal());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Marks the characters of a delete that are still live as deleted, and
+     * returns a delete of just those characters.
+     */
+    private Operation applyDelete(DeleteOperation op, ClientState tag) {
+        DeleteOperation.RangeBuilder out = new DeleteOperation.RangeBuilder(
+                2 * op.getRangeCount(), op.value != null);
+        int textPos = 0;
+        for (int r = 0; r < op.getRangeCount(); r++) {
+            int start = op.getRangeStart(r);
+            int end = start + op.getRangeLength(r);
+            for (Cursor cursor = new Cursor(start); ; cursor.next()) {
+                if (!cursor.isDeleted()) {
+                    int from = Math.max(cursor.start, start);
+                    int to = (int) Math.min(cursor.end(), end);
+                    out.add(cursor.live + from - cursor.start, to - from, op.value, textPos + from - start);
+                }
+                if (cursor.end() >= end) {
+                    break;
+                }
+            }
+            textPos += end - start;
+        }
+        if (out.isEmpty()) {
+            return null;
+        }
+        for (int r = 0; r < op.getRangeCount(); r++) {
+            this.delete(op.getRangeStart(r), op.getRangeLength(r), tag);
+        }
+        return new DeleteOperation(op.siteId, op.seqId, op.getClientState(), op.key, out.getRanges(),
+                out.getText(), op.getOrder(), op.isLocal());
+    }
+
+    /**
+     * Erases the tombstones every site has, i.e. the ones whose deletes were
+     * made in states the given horizon includes. The positions after them
+     * move, so the other sites have to erase the same tombstones, which the
+     * returned ranges are sent for (see DeleteOperation.erase).
+     *
+     * @param horizon state every site has
+     * @return the erased ranges as (start, length) pairs, in the sequence
+     *         before they were erased, or null if there were none
+     */
+    int[] eraseStable(ClientState horizon) {
+        DeleteOperation.RangeBuilder out = new DeleteOperation.RangeBuilder(8, false);
+        int pos = 0;
+        for (Block block : this.blocks) {
+            for (int i = 0; i < block.size; i++) {
+                ClientState tag = block.tags[i];
+                if (tag != null && horizon.includes(tag)) {
+                    out.add(pos, block.lengths[i], null, 0);
+                }
+                pos += block.lengths[i];
+            }
+        }
+        if (out.isEmpty()) {
+            return null;
+        }
+        int[] ranges = out.getRanges();
+        this.erase(ranges);
+        return ranges;
+    }
+
+    /**
+     * Erases the tombstones of an erase made at another site.
+     */
+    private void erase(DeleteOperation op) {
+        int[] ranges = new int[2 * op.getRangeCount()];
+        for (int r = 0; r < op.getRangeCount(); r++) {
+            ranges[2 * r] = op.getRangeStart(r);
+            ranges[2 * r + 1] = op.getRangeLength(r);
+        }
+        this.erase(ranges);
+    }
+
+    /**
+     * Removes the tombstones in the given ranges from the sequence, last
+     * range first so the positions of the others stay valid. Live characters
+     * in the ranges stay, though an erase never covers any.
+     */
+    private void erase(int[] ranges) {
+        for (int r = ranges.length - 2; r >= 0; r -= 2) {
+            int start = ranges[r];
+            int end = start + ranges[r + 1];
+            int pos = 0;
+            for (int b = 0; b < this.blocks.size() && pos < end; b++) {
+                Block block = this.blocks.get(b);
+                int blockEnd = pos + block.length;
+                if (blockEnd > start) {
+                    Block out = new Block(block.size);
+                    int runStart = pos;
+                    for (int i = 0; i < block.size; i++) {
+                        int runEnd = runStart + block.lengths[i];
+                        int from = Math.min(Math.max(runStart, start), runEnd);
+                        int to = Math.max(Math.min(runEnd, end), from);
+                        out.add(from - runStart, block.tags[i]);
+                        if (block.tags[i] == null) {
+                            out.add(to - from, null);
+                        }
+                        out.add(runEnd - to, block.tags[i]);
+                        runStart = runEnd;
+                    }
+                    b += this.replace(b, out) - 1;
+                }
+                pos = blockEnd;
+            }
+        }
+    }
+
+    /**
+     * Returns the position with tombstones right after the live character
+     * before the given position of the text without tombstones.
+     */
+    private int toSequence(int position) {
+        if (position == 0) {
+            return 0;
+        }
+        int pos = 0;
+        for (Block block : this.blocks) {
+            if (position <= block.live) {
+                for (int i = 0; ; i++) {
+                    if (block.tags[i] == null) {
+                        if (position <= block.lengths[i]) {
+                            return pos + position;
+                        }
+                        position -= block.lengths[i];
+                    }
+                    pos += block.lengths[i];
+                }
+            }
+            position -= block.live;
+            pos += block.length;
+        }
+        return pos + position;
+    }
+
+    /**
+     * Returns the number of live characters before the given position with
+     * tombstones.
+     */
+    private int countLive(int position) {
+        Cursor cursor = new Cursor(position);
+        return cursor.live + (cursor.isDeleted() ? 0 : position - cursor.start);
+    }
+
+    /**
+     * Inserts length live characters at the given position with tombstones.
+     * Inside a run of tombstones, the run is split around them.
+     */
+    private void insert(int position, int length) {
+        this.cover(position);
+        int pos = 0;
+        for (int b = 0; b < this.blocks.size(); b++) {
+            Block block = this.blocks.get(b);
+            if (position > pos + block.length) {
+                pos += block.length;
+                continue;
+            }
+            for (int i = 0; i < block.size; i++) {
+                int end = pos + block.lengths[i];
+                if (block.tags[i] == null && position <= end) {
+                    block.lengths[i] += length;
+                    block.length += length;
+                    block.live += length;
+                    return;
+                }
+                if (block.tags[i] != null && position < end) {
+                    // split the tombstones
+                    Block out = new Block(block.size + 2);
+                    for (int k = 0; k < block.size; k++) {
+                        if (k == i) {
+                            out.add(position - pos, block.tags[k]);
+                            out.add(length, null);
+                            out.add(end - position, block.tags[k]);
+                        }
+                        else {
+                            out.add(block.lengths[k], block.tags[k]);
+                        }
+                    }
+                    this.replace(b, out);
+                    return;
+                }
+                pos = end;
+            }
+        }
+        // the stored runs end with tombstones right before the insert
+        this.blocks.get(this.blocks.size() - 1).add(length, null);
+    }
+
+    /**
+     * Marks the characters in the given range with tombstones as deleted by
+     * a delete made in the given state.
+     */
+    private void delete(int start, int length, ClientState tag) {
+        if (length <= 0) {
+            return;
+        }
+        int end = start + length;
+        this.cover(end);
+        int pos = 0;
+        for (int b = 0; b < this.blocks.size() && pos < end; b++) {
+            Block block = this.blocks.get(b);
+            int blockEnd = pos + block.length;
+            if (blockEnd > start) {
+                Block out = new Block(block.size + 2);
+                int runStart = pos;
+                for (int i = 0; i < block.size; i++) {
+                    int runEnd = runStart + block.lengths[i];
+                    int from = Math.min(Math.max(runStart, start), runEnd);
+                    int to = Math.max(Math.min(runEnd, end), from);
+                    out.add(from - runStart, block.tags[i]);
+                    out.add(to - from, (block.tags[i] == null) ? tag : latest(block.tags[i], tag));
+                    out.add(runEnd - to, block.tags[i]);
+                    runStart = runEnd;
+                }
+                b += this.replace(b, out) - 1;
+            }
+            pos = blockEnd;
+        }
+    }
+
+    /**
+     * Returns a state that includes both given ones.
+     */
+    private static ClientState latest(ClientState a, ClientState b) {
+        if (a.includes(b)) {
+            return a;
+        }
+        if (b.includes(a)) {
+            return b;
+        }
+        int[] seqs = new int[Math.max(a.getSize(), b.getSize())];
+        for (int i = 0; i < seqs.length; i++) {
+            seqs[i] = Math.max(a.getSeqForClient(i), b.getSeqForClient(i));
+        }
+        return new ClientState(seqs);
+    }
+
+    /**
+     * Makes the stored runs reach at least the given position, by adding
+     * characters the document started with.
+     */
+    private void cover(int position) {
+        int length = 0;
+        for (Block block : this.blocks) {
+            length += block.length;
+        }
+        if (length < position) {
+            this.blocks.get(this.blocks.size() - 1).add(position - length, null);
+        }
+    }
+
+    /**
+     * Replaces the block at the given index with a rewritten one, split into
+     * blocks of BLOCK_SIZE runs if it grew too large, or dropped if it is
+     * empty and not the only block.
+     *
+     * @return the number of blocks that took its place
+     */
+    private int replace(int index, Block block) {
+        if (block.size == 0 && this.blocks.size() > 1) {
+            this.blocks.remove(index);
+            return 0;
+        }
+        if (block.size <= 2 * BLOCK_SIZE) {
+            this.blocks.set(index, block);
+            return 1;
+        }
+        List<Block> parts = new ArrayList<Block>();
+        for (int k = 0; k < block.size; k += BLOCK_SIZE) {
+            Block part = new Block(BLOCK_SIZE);
+            for (int i = k; i < Math.min(block.size, k + BLOCK_SIZE); i++) {
+                part.add(block.lengths[i], block.tags[i]);
+            }
+            parts.add(part);
+        }
+        this.blocks.remove(index);
+        this.blocks.addAll(index, parts);
+        return parts.size();
+    }
+
+    /**
+     * Returns the runs, to restore them later or at another site: their
+     * lengths, alternating between live characters at even indexes and
+     * tombstones at odd ones, starting and ending with a live run that may
+     * be empty.
+     */
+    int[] save() {
+        int[] out = new int[8];
+        int n = 1;
+        for (Block block : this.blocks) {
+            for (int i = 0; i < block.size; i++) {
+                if (n + 1 >= out.length) {
+                    out = Arrays.copyOf(out, 2 * out.length);
+                }
+                n = append(out, n, block.tags[i] != null, block.lengths[i]);
+            }
+        }
+        if (n % 2 == 0) {
+            // end with a live run again
+            out[n++] = 0;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Appends a run to out, which holds n runs, merging it with the last one
+     * if both are live or both deleted.
+     *
+     * @return the number of runs in out
+     */
+    private static int append(int[] out, int n, boolean deleted, int length) {
+        if (length == 0) {
+            return n;
+        }
+        if ((n % 2 == 0) == deleted) {
+            out[n - 1] += length;
+            return n;
+        }
+        out[n] = length;
+        return n + 1;
+    }
+
+    /**
+     * Replaces the runs with saved ones.
+     *
+     * @param runs runs as returned by save
+     * @param tag state the runs were saved in, which their deletes were
+     *            made in as well
+     */
+    void restore(int[] runs, ClientState tag) {
+        this.blocks.clear();
+        Block block = new Block(Math.min(runs.length, 2 * BLOCK_SIZE));
+        for (int i = 0; i < runs.length; i++) {
+            if (block.size == 2 * BLOCK_SIZE) {
+                this.blocks.add(block);
+                block = new Block(2 * BLOCK_SIZE);
+            }
+            block.add(runs[i], (i % 2 == 1) ? tag : null);
+        }
+        this.blocks.add(block);
+    }
+
+    /**
+     * Return the number of runs of tombstones
+     */
+    int getTombstoneRuns() {
+        int count = 0;
+        boolean deleted = false;
+        for (Block block : this.blocks) {
+            for (int i = 0; i < block.size; i++) {
+                if (block.tags[i] != null && !deleted) {
+                    count++;
+                }
+                deleted = block.tags[i] != null;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs of characters next to each other in the sequence, along with
+     * their total length and how many of them are live.
+     */
+    private static final class Block {
+        // Run lengths, never zero
+        private int[] lengths;
+        // State the deletes of each run of tombstones were made in, null for live runs
+        private ClientState[] tags;
+        // Number of runs
+        private int size;
+        // Number of characters
+        private int length;
+        // Number of live characters
+        private int live;
+
+        Block(int capacity) {
+            this.lengths = new int[Math.max(capacity, 1)];
+            this.tags = new ClientState[this.lengths.length];
+        }
+
+        /**
+         * Appends a run, merging it with the last one if both are live or
+         * both are tombstones of deletes made in the same state.
+         */
+        void add(int length, ClientState tag) {
+            if (length == 0) {
+                return;
+            }
+            this.length += length;
+            if (tag == null) {
+                this.live += length;
+            }
+            ClientState last = (this.size > 0) ? this.tags[this.size - 1] : null;
+            if (this.size > 0 && (tag == last || (tag != null && last != null && tag.equals(last)))) {
+                this.lengths[this.size - 1] += length;
+                return;
+            }
+            if (this.size == this.lengths.length) {
+                this.lengths = Arrays.copyOf(this.lengths, 2 * this.size);
+                this.tags = Arrays.copyOf(this.tags, 2 * this.size);
+            }
+            this.lengths[this.size] = length;
+            this.tags[this.size] = tag;
+            this.size++;
+        }
+    }
+
+    /**
+     * Walks the runs from the one holding a given position, and then past
+     * the stored runs, where the live characters the document started with
+     * go on without end.
+     */
+    private final class Cursor {
+        // Index of the block and of the run in it, or the number of blocks past the stored runs
+        private int block;
+        private int run;
+        // Position with tombstones where the run starts
+        private int start;
+        // Number of live characters before the run
+        private int live;
+
+        /**
+         * Starts at the run holding the given position.
+         */
+        Cursor(int position) {
+            List<Block> blocks = Tombstones.this.blocks;
+            while (this.block < blocks.size() && this.start + blocks.get(this.block).length <= position) {
+                this.start += blocks.get(this.block).length;
+                this.live += blocks.get(this.block).live;
+                this.block++;
+            }
+            if (this.block < blocks.size()) {
+                Block block = blocks.get(this.block);
+                while (this.start + block.lengths[this.run] <= position) {
+                    this.next();
+                }
+            }
+        }
+
+        boolean isDeleted() {
+            List<Block> blocks = Tombstones.this.blocks;
+            return this.block < blocks.size() && blocks.get(this.block).tags[this.run] != null;
+        }
+
+        /**
+         * Return the position where the run ends, past int range after the stored runs
+         */
+        long end() {
+            List<Block> blocks = Tombstones.this.blocks;
+            return (this.block < blocks.size())
+                    ? this.start + blocks.get(this.block).lengths[this.run] : Long.MAX_VALUE;
+        }
+
+        /**
+         * Moves on to the next run.
+         */
+        void next() {
+            List<Block> blocks = Tombstones.this.blocks;
+            if (this.block == blocks.size()) {
+                return;
+            }
+            Block block = blocks.get(this.block);
+            if (block.tags[this.run] == null) {
+                this.live += block.lengths[this.run];
+            }
+            this.start += block.lengths[this.run];
+            this.run++;
+            while (this.block < blocks.size() && this.run == blocks.get(this.block).size) {
+                this.block++;
+                this.run = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package document;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This cache remembers operations that were already transformed into some
+ * context, so the engine does not have to repeat the work when the same
+ * operation has to be brought into that context again.
+ *
+ * Entries are keyed by the ID of the original operation (site and sequence
+ * number) and the context it was transformed into. The cache holds at most a
+ * fixed number of entries and evicts the least recently used one first.
+ * Like the rest of the engine it is only used from one thread.
+ */
+class TransformCache {
+
+    // Cached transforms, in least recently used order
+    private final LinkedHashMap<Key, Operation> entries;
+    // Maximum number of entries
+    private int capacity;
+    // Reusable key for lookups, so get does not allocate
+    private final Key probe = new Key(0, 0, null);
+
+    // Number of lookups that found a transform
+    private long hits;
+    // Number of lookups that did not
+    private long misses;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity maximum number of transforms to keep
+     */
+    public TransformCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, Operation>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Operation> eldest) {
+                return this.size() > TransformCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets a version of the given operation previously transformed into the
+     * given context if available.
+     *
+     * @param op operation to look for
+     * @param cv context of the transformed op to seek
+     * @return the cached transform, or null if not in cache
+     */
+    public Operation get(Operation op, ClientState cv) {
+        this.probe.set(op.siteId, op.seqId, cv);
+        Operation xop = this.entries.get(this.probe);
+        this.probe.context = null;
+        if (xop == null) {
+            this.misses++;
+        } else {
+            this.hits++;
+        }
+        return xop;
+    }
+
+    /**
+     * Caches the given transformed operation under its current context.
+     *
+     * @param op transformed operation
+     */
+    public void put(Operation op) {
+        this.entries.put(new Key(op.siteId, op.seqId, op.getClientState()), op);
+    }
+
+    /**
+     * Drops the transforms that can no longer be looked up once the history
+     * below the given horizon is discarded: transforms of discarded operations,
+     * and transforms into a context that does not include the horizon.
+     *
+     * @param horizon sequence numbers every future context is known to include
+     */
+    public void prune(int[] horizon) {
+        Iterator<Key> it = this.entries.keySet().iterator();
+        while (it.hasNext()) {
+            Key key = it.next();
+            boolean discarded = key.site < horizon.length && key.seq <= horizon[key.site];
+            if (discarded || !key.context.covers(horizon)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Changes the maximum number of entries, evicting old ones if needed.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        Iterator<Key> it = this.entries.keySet().iterator();
+        while (this.entries.size() > capacity && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Return the number of cached transforms.
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Return the number of lookups that found a transform.
+     */
+    public long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Return the number of lookups that did not find a transform.
+     */
+    public long getMisses() {
+        return this.misses;
+    }
+
+    @Override
+    public String toString() {
+        return "{size : " + this.entries.size() + ",capacity : " + this.capacity +
+                ",hits : " + this.hits + ",misses : " + this.misses + "}";
+    }
+
+    /**
+     * Identifies a transform by the original operation and the context it
+     * was transformed into. The context is not copied.
+     */
+    static final class Key {
+        private int site;
+        private int seq;
+        private int hash;
+        private ClientState context;
+
+        Key(int site, int seq, ClientState context) {
+            if (context != null) {
+                this.set(site, seq, context);
+            }
+        }
+
+        void set(int site, int seq, ClientState context) {
+            this.site = site;
+            this.seq = seq;
+            this.context = context;
+            this.hash = 31 * (31 * site + seq) + context.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return this.hash == key.hash && this.site == key.site && this.seq == key.seq
+                    && this.context.equals(key.context);
+        }
+    }
+}
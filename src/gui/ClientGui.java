@@ -34,6 +34,7 @@ import controller.CaretListenerLabel;
 import controller.RedoAction;
 import controller.TextChangeListener;
 import controller.UnDoAction;
+import document.EngineKind;
 import document.OperationEngineException;
 
 import java.io.FileNotFoundException;
@@ -75,12 +76,19 @@ public class ClientGui extends JPanel {
      * Create GUI for the client
      */
     public ClientGui(String init, CollabInterface cc, String label) throws OperationEngineException {
+        this(init, cc, label, EngineKind.OT);
+    }
+
+    /**
+     * Create GUI for the client, editing the document with the given kind of engine
+     */
+    public ClientGui(String init, CollabInterface cc, String label, EngineKind engine) throws OperationEngineException {
         this.label = label;
         this.init = init;
         // create the GUI for this user
         createGUI();
         // create the model that take in the content of the textArea and a site id
-        collabModel = new CollabModel(textArea, cc);
+        collabModel = new CollabModel(textArea, cc, engine);
         // listen to change in the document
         textArea.getDocument().addDocumentListener(new TextChangeListener(collabModel));
     }
@@ -357,8 +365,9 @@ public class ClientGui extends JPanel {
     /**
      * This will access the CollabModel and set the document key
      * @param str key
+     * @throws OperationEngineException
      */
-    public void setModelKey(String str) {
+    public void setModelKey(String str) throws OperationEngineException {
         this.collabModel.setKey(str);
     }
 }
\ No newline at end of file
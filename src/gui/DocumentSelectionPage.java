@@ -1,8 +1,8 @@
 package gui;
 
-import document.Pair;
 import org.apache.commons.lang3.RandomStringUtils;
 import server_client.CollabClient;
+import server_client.Message;
 
 import javax.swing.*;
 import javax.swing.border.Border;
@@ -90,7 +90,7 @@ public class DocumentSelectionPage extends JFrame {
                 String docName = (String) listDocumentModel.get(index);
                 client.setDocument(docName);
                 try {
-                    client.transmit(new Pair(docName, client.readDocument()));
+                    client.transmit(Message.openDocument(docName, client.readDocument()));
                 } catch (IOException e1) {
                     e1.printStackTrace();
                 }
@@ -105,13 +105,13 @@ public class DocumentSelectionPage extends JFrame {
 		refreshButton.addActionListener(e -> {
             try {
                 //asks the server for the list of documents.
-                client.transmit("refresh");
+                client.transmit(Message.refresh());
             } catch (IOException e1) {
                 e1.printStackTrace();
             }
             try {
                 updateDocumentsList(client.readNewDocumentsList());
-            } catch (IOException | ClassNotFoundException e1) {
+            } catch (IOException e1) {
                 e1.printStackTrace();
             }
         });
@@ -151,14 +151,12 @@ public class DocumentSelectionPage extends JFrame {
                 //when the client creates a new document, we ask them to provide the list of clients that can access the document.
                 ArrayList<String> userList = new ArrayList<>();
                 try {
-                    client.transmit(userList);
+                    client.transmit(Message.listClients());
                     userList = client.getRegisteredUserList();
                     userList.remove(client.getUsername());
                 }
                 catch (IOException e) {
                     e.printStackTrace();
-                } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
                 }
 
                 //create a new window where the client sees the list of registered users and can add/remove them.
@@ -239,8 +237,8 @@ public class DocumentSelectionPage extends JFrame {
 
                         try {
                             //give the document name (and a boolean indicating you never entered it) and client list to the server.
-                            client.transmit(new Pair(documentInput.getText(), false));
-                            client.transmit(clientNames);
+                            client.transmit(Message.openDocument(documentInput.getText(), false));
+                            client.transmit(Message.clientList(clientNames));
                         }
                         catch (IOException ex) {
                             ex.printStackTrace();
@@ -318,7 +316,7 @@ public class DocumentSelectionPage extends JFrame {
             String tokenStr = RandomStringUtils.randomAlphanumeric(10);
             try {
                 //no need to check with the server if it exists - see comment in collabserver
-                client.transmit(tokenStr);
+                client.transmit(Message.addToken(tokenStr));
             } catch (IOException e1) {
                 e1.printStackTrace();
             }
@@ -0,0 +1,40 @@
+package server_client;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The server's end of the connection to one client, whichever way the server
+ * does its I/O. Messages are sent in the order send is called, and send may
+ * be called from any thread. Sending never waits for the client: messages wait
+ * in a bounded queue, and a client that falls too far behind is disconnected.
+ */
+interface ClientConnection {
+
+    /**
+     * Sends a message to the client. Once the connection is closed, the
+     * message is kept with the unsent ones instead.
+     *
+     * @param m message to send
+     * @throws IOException if the connection is broken
+     */
+    void send(Message m) throws IOException;
+
+    /**
+     * Closes the connection once the messages sent so far are written, so
+     * the client gets the last ones, such as why its session ended.
+     */
+    void finish();
+
+    /**
+     * Closes the connection. Messages not written yet stay unsent.
+     */
+    void close();
+
+    /**
+     * Returns the messages the client did not get, in the order they were
+     * sent: the ones still waiting when the connection closed, and the ones
+     * sent after. Only complete once nothing is sent anymore.
+     */
+    List<Message> unsent();
+}
@@ -51,6 +51,16 @@ public class CollabClient implements CollabInterface {
     private static final int TIMEOUT = 2000;
     /** unique to each client. Used to differentiate operations */
 	private int siteID = -1;
+	/** number of operations this site already sent to the document in earlier sessions */
+	private int sentOps = 0;
+	/** order of the last operation of the document this client received, or -1 if not known yet */
+	private volatile int lastOrder = -1;
+	/** order of the last operation received when this client last asked for a snapshot, which has to include it */
+	private volatile int resyncOrder = -1;
+	/** number of times this client asked for a snapshot, to ask the members of the document in turn */
+	private int resyncRequests = 0;
+	/** parts of the history of the document received so far, until the last one comes */
+	private ArrayList<EncryptedMessage> history = new ArrayList<>();
 	/** document the client is editing */
 	private String document = "";
 	/** list of clients current doc is shared with */
@@ -78,10 +88,10 @@ public class CollabClient implements CollabInterface {
     /** Error message **/
 	private String errorMessage = "Server Disconnected.";
 
-	/** outputstream to send objects to server */
-    private ObjectOutputStream out = null;
-	/** inputstream to receive objects from server */
-    private ObjectInputStream in = null;
+	/** outputstream to send messages to server, see WireProtocol */
+    private DataOutputStream out = null;
+	/** inputstream to receive messages from server */
+    private DataInputStream in = null;
 	/** client GUI used to display the document */
     private ClientGui gui;
 
@@ -163,8 +173,11 @@ public class CollabClient implements CollabInterface {
 
 		//if the user is in a document, then also write document information
 		if(!document.equals("")) {
-			//write document text and context vector
-			DocumentState documentState = new DocumentState(gui.getCollabModel().getDocumentText(), gui.getCollabModel().copyOfCV());
+			//write document text and context vector, and the elements of the text with the RGA engine or
+			//its tombstones with the OT engine
+			CollabModel model = gui.getCollabModel();
+			DocumentState documentState = new DocumentState(model.getDocumentText(), model.copyOfCV(),
+					model.copyOfElements(), model.copyOfTombstones());
 			fileName = dir + "/doc-" + document + ".txt";
 			File documentStateFile = new File(fileName);
             documentStateFile.createNewFile();
@@ -210,7 +223,7 @@ public class CollabClient implements CollabInterface {
 
 	//reads and sets document information upon client requesting a document.
 	public boolean readDocument() throws IOException {
-		Class<?>[] classes = new Class[] {DocumentState.class, HashMap.class, ClientSessionCipher.class};
+		Class<?>[] classes = new Class[] {DocumentState.class, RgaElements.class, HashMap.class, ClientSessionCipher.class};
 		XStream xs = new XStream(new DomDriver());
 		XStream.setupDefaultSecurity(xs);
 		xs.allowTypesByWildcard(new String[] {"org.whispersystems.libsignal.**"});
@@ -222,6 +235,9 @@ public class CollabClient implements CollabInterface {
 
 		//java translates newline to \r\n - change to just \n
 		documentState.documentText = StringUtils.remove(documentState.documentText, (char) 13);
+		if (documentState.elements != null) {
+			documentState.elements.text = StringUtils.remove(documentState.elements.text, (char) 13);
+		}
 
 		File sessionCiphersFile = new File(dir + "/sessions-" + document + ".txt");
 		xml = readAllFile(sessionCiphersFile);
@@ -290,43 +306,46 @@ public class CollabClient implements CollabInterface {
 
 		// Connection established. Communicates with server
 		try {
-			out = new ObjectOutputStream(s.getOutputStream());
-			in = new ObjectInputStream(s.getInputStream());
+			out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			WireProtocol.writeHello(out);
+			out.flush();
+			WireProtocol.readHello(in);
 
 			//determine if we have information for this server. Register if we don't, tell the server if we do.
 			boolean returning = readFromFile();
 
 			try {
                 if(!returning) {
-                    transmit(new Pair(this.name, register()));
+                    send(Message.loginNew(this.name, register()));
                 }
                 else {
-                    transmit(new Pair(this.name, true)); //send that we already registered
+                    send(Message.loginReturning(this.name)); //send that we already registered
                 }
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 
-            Object o = in.readObject();
-			// boolean --> username not in use
-            if(o instanceof Boolean) {
+            Message m = WireProtocol.read(in);
+			// ok --> username not in use
+            if(m.getType() == MessageType.OK) {
                 if (!returning) {
                     String tokenValue = JOptionPane.showInputDialog(null, "Please enter your token:", null);
-                    transmit(tokenValue);
-                    o = in.readObject();
+                    send(Message.token(tokenValue == null ? "" : tokenValue));
+                    m = WireProtocol.read(in);
 
                     //if server sent an error message
-                    if(o instanceof String) {
-                        errorMessage = (String) o;
+                    if(m.getType() == MessageType.ERROR) {
+                        errorMessage = m.getReason();
                     }
                 }
             }
-            // string --> username in use or returning user with missing info in server
-            else {
-                errorMessage = (String) o;
+            // error --> username in use or returning user with missing info in server
+            else if(m.getType() == MessageType.ERROR) {
+                errorMessage = m.getReason();
             }
 
-			o = in.readObject();
+			m = WireProtocol.read(in);
 
 
 			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -340,12 +359,11 @@ public class CollabClient implements CollabInterface {
 				}
 			}));
 
-			if(!(o instanceof ArrayList<?>)) {
-                throw new RuntimeException("Expected ArrayList of documents");
+			if(m.getType() != MessageType.DOCUMENTS) {
+                throw new RuntimeException("Expected list of documents, got " + m.getType());
             }
-			// Popup for user to select document. We already checked above for object type
-            @SuppressWarnings("unchecked")
-            JFrame f = new DocumentSelectionPage((ArrayList<String>) o,this);
+			// Popup for user to select document. We already checked above for message type
+            JFrame f = new DocumentSelectionPage(m.getDocuments(),this);
             // Waits until user selects document to edit. Calls setDocument() on return
             // to set the document to edit
 		    while (f.isVisible()) {
@@ -356,16 +374,11 @@ public class CollabClient implements CollabInterface {
                 }
 		    }
 
-			// Reads in operations from the server
-			o = in.readObject();
-			while (o != null) {
-			    parseInput(o);
-				o = in.readObject();
-
+			// Reads in operations from the server until it disconnects
+			while (true) {
+			    parseInput(WireProtocol.read(in));
 			}
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		}  finally {
+		} finally {
 		    // Close connection
 			JOptionPane.showMessageDialog(null, errorMessage, "Error", JOptionPane.ERROR_MESSAGE);
 
@@ -377,37 +390,59 @@ public class CollabClient implements CollabInterface {
 	}
 
 	/**
-	 * Takes an object that was received from the server and parses it according
-	 * to its type. Performs the appropriate calls and updates based on the object received
-	 * @param o - object sent from the server to parse
-	 * @throws IOException - caused if the operation object is corrupt, or if the socket connection breaks
+	 * Takes a message that was received from the server and parses it according
+	 * to its type. Performs the appropriate calls and updates based on the message received
+	 * @param m - message sent from the server to parse
+	 * @throws IOException - caused if the socket connection breaks
      */
-	@SuppressWarnings("unchecked")
-    private void parseInput(Object o) throws IOException {
-	    //the server mostly sends pairs to the client - with an operation and its order, or a pair of the list of documents and list of users, or with a history of operations and document instance.
-	    if (o instanceof Pair) {
-	    	Pair p = (Pair) o;
-	    	Object plaintext = p.first;
-			// We'll change the temp in the if to the decrypted variable
-			if (plaintext instanceof ArrayList) {
-				// Updates list of current users and documents
-				ArrayList<String> users = (ArrayList<String>) plaintext;
-				ArrayList<String> documents = (ArrayList<String>) p.second;
-				this.gui.updateUsers(users.toArray());
-				this.gui.updateDocumentsList(documents.toArray());
-			} else if (plaintext instanceof DocumentInstance) {
-			    //we got history and documentinstance from the server, so update this user to the current state using the history.
-				ArrayList<EncryptedMessage> history = (ArrayList) p.second;
-				if (history.size() > 0) {
-					documentState.documentText = updateFromHistory(history, documentState.documentText);
+    private void parseInput(Message m) throws IOException {
+	    switch (m.getType()) {
+			case USERS: {
+				// Updates list of current users and documents. One that comes before the document
+				// is skipped, the server sends another once this client sends its username.
+				if (this.gui == null) {
+					return;
+				}
+				this.gui.updateUsers(m.getUsers().toArray());
+				this.gui.updateDocumentsList(m.getDocuments().toArray());
+				break;
+			}
+			case HISTORY: {
+			    //a long history comes in several parts, which are put together first
+				this.history.addAll(m.getHistory());
+				if (!m.isLastHistory()) {
+					break;
 				}
+			    //we got the history from the server, so update this user to the current state using it.
+				ArrayList<EncryptedMessage> history = this.history;
+				this.history = new ArrayList<>();
+				// the operations after the history come right after its last one
+				lastOrder = history.isEmpty() ? -1 : history.get(history.size() - 1).order;
+				EngineKind engine = engineFor(document);
+				// the RGA engine can only go on with the saved text if it has its elements, otherwise
+				// the history holds every operation of the document and it starts from nothing.
+				boolean restore = engine != EngineKind.RGA || documentState.elements != null;
 				try {
-					this.gui = new ClientGui(documentState.documentText, this, label);
+					this.gui = new ClientGui(restore ? documentState.documentText : "", this, label, engine);
+					this.gui.setModelKey(document);
+					if (engine == EngineKind.RGA && restore) {
+						this.gui.getCollabModel().restoreElements(documentState.elements);
+						this.gui.getCollabModel().setCV(documentState.contextVector);
+					}
+					if (engine == EngineKind.OT) {
+						// saves made before the OT engine kept tombstones have none, and the
+						// saved text is all there is of the document
+						int[] tombstones = (documentState.tombstones != null) ? documentState.tombstones
+								: new int[] {documentState.documentText.length()};
+						this.gui.getCollabModel().setCV(documentState.contextVector);
+						this.gui.getCollabModel().restoreTombstones(tombstones);
+					}
 				}
 				catch (OperationEngineException e) {
 					e.printStackTrace();
 				}
-				this.gui.setModelKey(document);
+				ArrayList<ClientSessionCipher> members = sessionCiphers.get(document);
+				this.gui.getCollabModel().setExpectedSites(members == null ? 1 : members.size() + 1);
 
 				JFrame frame = new JFrame("Collabypto - Demo");
 				frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -417,64 +452,88 @@ public class CollabClient implements CollabInterface {
 				frame.pack();
 				frame.setVisible(true);
 
-				// Updates the ContextVector of the GUI with the one sent by the server. We use the context vector of the last operation.
-				if (history.size() > 0) {
-					Operation lastOp = null;
+				// every operation of the history goes through the engine, including this site's own;
+				// the ones the restored context vector holds are skipped. In the sequenced mode the
+				// history holds the operations after the saved text, in order.
+				for (EncryptedMessage message : history) {
+					Operation op = decrypt(message);
+					if (op == null) continue;
+					op.setOrder(message.order);
 					try {
-						lastOp = decrypt(history.get(history.size() - 1));
+						gui.getCollabModel().remoteOp(op);
 					}
-					catch (Exception e) {
+					catch (OperationEngineException e) {
 						e.printStackTrace();
 					}
-					if(documentState.contextVector != null) {
-						gui.getCollabModel().setCV(documentState.contextVector);
+				}
+
+				if (engine == EngineKind.OT) {
+					// The site ID is the same in every session, so continue after the operations
+					// this site already sent, or the other clients would take new ones as duplicates.
+					try {
+						ClientState cV = gui.getCollabModel().copyOfCV();
+						if (cV.getSeqForClient(getID()) < sentOps) {
+							gui.getCollabModel().setCV(cV.with(getID(), sentOps));
+						}
+					}
+					catch (OperationEngineException e) {
+						e.printStackTrace();
 					}
-					ClientState cV = lastOp.getClientState();
-					gui.getCollabModel().setCV(cV);
-					lastOp.setOrder(history.size() - 1);
-					updateDoc(lastOp);
 				}
+				break;
 			}
-		}
-		else if (o instanceof EncryptedMessage) {
-			try {
-				EncryptedMessage message = (EncryptedMessage) o;
-				Operation op = decrypt(message);
-				if (getID() == op.getSiteId()) {
-					System.err.println("site ID is the same " + getID());
-					return; //shouldn't happen when server sends to specific users
+			case SITE:
+				// The server is sending the site ID of this client in the document,
+				// and how many operations it already sent to the document
+				setSiteID(m.getSiteID());
+				sentOps = m.getSentOps();
+				break;
+			case MESSAGE: {
+				EncryptedMessage message = m.getEncryptedMessage();
+				if (message.control) {
+					// A message from another client that is not an operation
+					Object plaintext = decryptObject(message);
+					if (plaintext instanceof ResyncRequest) {
+						sendSnapshot(message.senderID);
+					} else if (plaintext instanceof DocumentState
+							&& ((DocumentState) plaintext).order >= resyncOrder) {
+						this.gui.getCollabModel().resync((DocumentState) plaintext);
+					}
+					break;
 				}
-				op.setOrder(message.order);
-				updateDoc(op);
-			}
-			catch (Exception e) {
-				e.printStackTrace();
+				try {
+					checkOrder(message.order);
+					Operation op = decrypt(message);
+					if (getID() == op.getSiteId()) {
+						System.err.println("site ID is the same " + getID());
+						return; //shouldn't happen when server sends to specific users
+					}
+					op.setOrder(message.order);
+					updateDoc(op);
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+				break;
 			}
-		}
-        else if (o instanceof Integer) {
-            // The server is sending the unique client identifiers
-			if(siteID != -1) return; //siteID is already set
-            this.siteID = ((Integer) o).intValue();
-            if (this.name.equals("Anonymous")) {
-				this.name += "" + this.siteID;
+			case ORDER_ACK: {
+				// The server assigned its order to the last operation this client sent
+				int order = m.getOrder();
+				checkOrder(order);
+				this.gui.getCollabModel().acknowledge(order);
+				break;
 			}
-			//TODO: we shouldn't be writing/reading the username twice but removing it seems to make the client/document list disappear.
-            out.writeObject(this.name);
-            out.flush();
-            label = this.name + " is editing document: " + this.document;
+			//The server is sending a list of sessioninfos.
+			case SESSIONS:
+				try {
+					buildSessions(m.getSessions());
+				}
+				catch (Exception e) {
+					e.printStackTrace(); }
+				break;
+			default:
+				throw new RuntimeException("Unexpected message received by client: " + m.getType());
 		}
-		//The server is sending a list of sessioninfos.
-		else if (o instanceof ArrayList) {
-	        ArrayList lst = (ArrayList) o;
-	        try {
-	            buildSessions((ArrayList<SessionInfo>) lst);
-	        }
-	        catch (Exception e) {
-	            e.printStackTrace(); }
-	    }
-		else {
-            throw new RuntimeException("Unrecognized object type received by client");
-        }
 	}
 
 	//builds sessions for the first time from a list given by the server
@@ -497,8 +556,14 @@ public class CollabClient implements CollabInterface {
 		}
 	}
 
-    //encrypt a message pairwise and send to the server
+    //encrypt an operation pairwise and send to the server
 	private void encrypt(Object plaintext) throws IOException, UntrustedIdentityException {
+		encrypt(plaintext, false, null);
+	}
+
+	//encrypt a message pairwise and send to the server, for a single member of the document or all of them if recipient
+	//is null. Control messages are only relayed by the server, without an order.
+	private void encrypt(Object plaintext, boolean control, String recipient) throws IOException, UntrustedIdentityException {
 		Class<?>[] classes = new Class[] { Operation.class};
 		XStream xs = new XStream(new DomDriver());
 		XStream.setupDefaultSecurity(xs);
@@ -507,8 +572,9 @@ public class CollabClient implements CollabInterface {
 		//find the appropriate sessioncipher to encrypt with
 		ClientSessionCipher clientSessionCipher;
 		if(sessionCiphers.get(document) == null) return;
-		EncryptedMessage[] messages = new EncryptedMessage[sessionCiphers.get(document).size()];
+		EncryptedMessage[] messages = new EncryptedMessage[recipient == null ? sessionCiphers.get(document).size() : 1];
 		for(ClientSessionCipher sessionCipher : sessionCiphers.get(document)) {
+			if (recipient != null && !recipient.equals(sessionCipher.senderID)) continue;
 			clientSessionCipher = sessionCipher;
 			//turn it into a string so we can send it easily
 			String xml = xs.toXML(plaintext);
@@ -518,16 +584,25 @@ public class CollabClient implements CollabInterface {
 
 			//create an encrypted message out of the data
 			messages[i] = new EncryptedMessage(clientSessionCipher.senderID, getUsername(), message.serialize());
+			messages[i].control = control;
 			i++;
 		}
-		out.writeObject(messages);
-		out.flush();
+		//the recipient left the document
+		if (i < messages.length) return;
+		send(Message.operation(messages));
 	}
 
-	//decrypt a received message
+	//decrypt a received operation
 	private Operation decrypt(EncryptedMessage signalMessage){
+		Object message = decryptObject(signalMessage);
+		return (message instanceof Operation) ? (Operation) message : null;
+	}
+
+	//decrypt a received message, an operation or a control message
+	private Object decryptObject(EncryptedMessage signalMessage){
 		try {
-			Class<?>[] classes = new Class[]{InsertOperation.class, DeleteOperation.class, Operation.class};
+			Class<?>[] classes = new Class[]{InsertOperation.class, DeleteOperation.class, CompositeOperation.class, RgaOperation.class, Operation.class, OperationKind.class,
+					ResyncRequest.class, DocumentState.class, RgaElements.class, ClientState.class};
 			XStream xs = new XStream(new DomDriver());
 			XStream.setupDefaultSecurity(xs);
 			xs.allowTypes(classes);
@@ -556,7 +631,7 @@ public class CollabClient implements CollabInterface {
 			String xml = new String(plaintext);
 
 			//convert the xml message to the operation that was sent
-			return (Operation) xs.fromXML(xml);
+			return xs.fromXML(xml);
 		}
 		catch (Exception e) {
 			System.err.println(e.getMessage());
@@ -573,52 +648,74 @@ public class CollabClient implements CollabInterface {
 	public void updateDoc(Operation o) {
 		try {
 			if (getID() == o.getSiteId()) return;
-			if (o instanceof InsertOperation) {
-				this.gui.getCollabModel().remoteOp(o, true);
-			} else if (o instanceof DeleteOperation) {
-				this.gui.getCollabModel().remoteOp(o, false);
-			} else {
+			if (o.getKind() == null) {
 				throw new RuntimeException("Shouldn't reach here");
 			}
+			this.gui.getCollabModel().remoteOp(o);
 		} catch (OperationEngineException e) {
 			new ErrorDialog(e.toString());
 		}
 	}
 
-	//simulates the history of operations on a stringbuilder to quickly get to the current document state.
-    private String updateFromHistory(ArrayList<EncryptedMessage> history, String text) {
-		StringBuilder doc = new StringBuilder();
-		Operation[] operations = new Operation[history.size()];
-		int i = 0;
-		for(EncryptedMessage message : history) {
-			try {
-				//do not use the last operation - we need it to update the context vector
-				if(i != operations.length - 1) operations[i] = decrypt(message);
-				i++;
-			}
-			catch (Exception e) {
-				e.printStackTrace();
+	/**
+	 * Checks that an operation of the document comes right after the last one
+	 * this client received. The server gives the operations of each document
+	 * orders without gaps, and this client receives every one of them, either
+	 * as an operation or as the acknowledgement of its own, so a gap means some
+	 * were lost on the way, and the local copy is resynced.
+	 *
+	 * @param order order of the operation received
+	 */
+	private void checkOrder(int order) {
+		if (lastOrder >= 0 && order != lastOrder + 1) {
+			System.err.println("Expected operation " + (lastOrder + 1) + " of " + document
+					+ " but received " + order + ", resyncing.");
+			if (this.gui != null) {
+				this.gui.getCollabModel().requestResync();
 			}
 		}
+		lastOrder = order;
+	}
+
+	/**
+	 * Asks one of the other clients editing the document for a snapshot of
+	 * it, after the local copy was found to differ from theirs or operations
+	 * were lost. The snapshot has to include every operation received so far.
+	 * Called by the model, which asks again while no snapshot arrives, and
+	 * the next member is asked each time; use CollabModel.requestResync().
+	 */
+	@Override
+	public void requestResync() {
+		ArrayList<ClientSessionCipher> members = sessionCiphers.get(document);
+		if (members == null || members.isEmpty()) return;
+		resyncOrder = lastOrder;
+		String responder = members.get(resyncRequests++ % members.size()).senderID;
 		try {
-			doc.append(text);
-			for (i = 0; i < operations.length - 1; i++) {
-					Operation op = operations[i];
-					op.setOrder(i);
-				if (op.getKey().equals(document)) {
-					if (op instanceof InsertOperation) {
-						doc.insert(op.getOffset(), op.getValue());
-					}
-					else if (op instanceof DeleteOperation) {
-						doc.delete(op.getOffset(), op.getOffset() + op.getValue().length());
-					}
-				}
-			}
+			encrypt(new ResyncRequest(getID()), true, responder);
+		} catch (IOException | UntrustedIdentityException e) {
+			e.printStackTrace();
 		}
-		catch (Exception e) {
+	}
+
+	//answers a resync request with a snapshot of the local copy of the document for the client that asked, if the
+	//engine can make one. It includes every operation received so far, up to lastOrder.
+	private void sendSnapshot(String requester) {
+		try {
+			DocumentState snapshot = this.gui.getCollabModel().snapshot(lastOrder);
+			if (snapshot != null) {
+				encrypt(snapshot, true, requester);
+			}
+		} catch (IOException | UntrustedIdentityException | OperationEngineException e) {
 			e.printStackTrace();
 		}
-		return doc.toString();
+	}
+
+	//the kind of engine a document is edited with, from the collabypto.engine.<document> or collabypto.engine
+	//system property. Every client editing the document has to use the same kind.
+	private static EngineKind engineFor(String document) {
+		String name = System.getProperty("collabypto.engine." + document, System.getProperty("collabypto.engine", "ot"));
+		EngineKind kind = EngineKind.fromName(name);
+		return (kind == null) ? EngineKind.OT : kind;
 	}
 
 	/**
@@ -635,8 +732,24 @@ public class CollabClient implements CollabInterface {
 	}
 
 	/**
-	 * Transmits local changes to the server via an operatoin
-	 * @param o the operation to transmit to server
+	 * Sets the site ID sent by the server, and sends the username back.
+	 * @param id site ID of this client in the document
+	 * @throws IOException if the OutputStream is corrupted or broken
+	 */
+	private void setSiteID(int id) throws IOException {
+		if(siteID != -1) return; //siteID is already set
+		this.siteID = id;
+		if (this.name.equals("Anonymous")) {
+			this.name += "" + this.siteID;
+		}
+		//TODO: we shouldn't be writing/reading the username twice but removing it seems to make the client/document list disappear.
+		send(Message.username(this.name));
+		label = this.name + " is editing document: " + this.document;
+	}
+
+	/**
+	 * Transmits local changes to the server via an operatoin, or a Message as it is
+	 * @param o the operation to transmit to server, or the Message to send without encryption
 	 * @throws IOException if the OutputStream is corrupted or broken
 	 */
 	public void transmit(Object o, ENCRYPTION_METHOD encryption) throws IOException {
@@ -644,8 +757,7 @@ public class CollabClient implements CollabInterface {
 			throw new RuntimeException("Socket not initialized.");
 		switch (encryption) {
 			case NONE:
-				out.writeObject(o);
-				out.flush();
+				send((Message) o);
 				break;
 			case SIGNAL:
 				try {
@@ -659,17 +771,24 @@ public class CollabClient implements CollabInterface {
 		}
 	}
 
+	/**
+	 * Sends a message to the server. The GUI and the thread reading from the
+	 * server both send, so a message is written whole before the next one.
+	 * @param m the message to send
+	 * @throws IOException if the OutputStream is corrupted or broken
+	 */
+	private synchronized void send(Message m) throws IOException {
+		WireProtocol.write(out, m);
+		out.flush();
+	}
+
 	//update list of available documents
-	public Object[] readNewDocumentsList() throws IOException, ClassNotFoundException {
-		Object o = in.readObject();
-		if(o == null) {
-			return null;
-		}
-		if(!(o instanceof ArrayList)) {
-			throw new SocketException("Expected documents list, got " + o.getClass());
+	public Object[] readNewDocumentsList() throws IOException {
+		Message m = WireProtocol.read(in);
+		if(m.getType() != MessageType.DOCUMENTS) {
+			throw new SocketException("Expected documents list, got " + m.getType());
 		}
-		ArrayList<String> documentsList = (ArrayList<String>) o;
-		return documentsList.toArray();
+		return m.getDocuments().toArray();
 	}
 
 	/**
@@ -681,12 +800,12 @@ public class CollabClient implements CollabInterface {
 	}
 
 	//get list of registered users
-	public ArrayList<String> getRegisteredUserList() throws IOException, ClassNotFoundException {
-		Object input = in.readObject();
-		if(!(input instanceof  ArrayList)) {
-			throw new IOException("Expected arraylist of registered users");
+	public ArrayList<String> getRegisteredUserList() throws IOException {
+		Message m = WireProtocol.read(in);
+		if(m.getType() != MessageType.CLIENTS) {
+			throw new IOException("Expected list of registered users, got " + m.getType());
 		}
-		return (ArrayList<String>) input;
+		return m.getClients();
 	}
 
 	/** @return username of client */
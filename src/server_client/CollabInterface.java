@@ -47,5 +47,12 @@ public interface CollabInterface {
      */
     void updateDoc(Operation o);
 
+    /**
+     * Asks another site for a copy of the document, after the local copy was
+     * found to differ from theirs, and another one each time it is called
+     * again. The copy arrives through the model's resync.
+     */
+    void requestResync();
+
 
 }
@@ -1,9 +1,18 @@
 package server_client;
 
+import document.CausalDeliveryQueue;
 import document.ClientState;
+import document.CompositeOperation;
+import document.DeleteOperation;
+import document.DocumentEngine;
+import document.DocumentFingerprint;
+import document.DocumentState;
+import document.EngineKind;
 import document.Operation;
 import document.OperationEngine;
 import document.OperationEngineException;
+import document.RgaElements;
+import document.RgaEngine;
 import server_client.CollabClient.ENCRYPTION_METHOD;
 
 import javax.swing.*;
@@ -13,6 +22,9 @@ import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.SimpleAttributeSet;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * to Hold the main Document of the Collab edit, might implement on top of gap
@@ -34,9 +46,44 @@ public class CollabModel extends DefaultStyledDocument {
     private final JTextPane mainDocument;
 
     /**
-     * This is the client's local operationEngine
+     * Kind of engine the document is edited with
      */
-    private OperationEngine oe;
+    private final EngineKind engineKind;
+
+    /**
+     * This is the client's local engine for the document, an
+     * OperationEngine unless the document uses another kind. It is only
+     * used on the event dispatch thread, through onEngine.
+     */
+    private DocumentEngine oe;
+
+    /**
+     * Holds remote operations until the ones they depend on arrived
+     */
+    private CausalDeliveryQueue delivery;
+
+    /**
+     * Fingerprint of the text of the main document, kept up to date with
+     * every local and remote change
+     */
+    private DocumentFingerprint fingerprint;
+
+    /**
+     * True after the document was found to differ from the other sites',
+     * until a snapshot of theirs arrives
+     */
+    private boolean resyncPending = false;
+
+    /**
+     * Number of times the document was found to differ from the other sites'
+     */
+    private int divergences = 0;
+
+    /**
+     * Number of sites editing the document, including this one, or 0 if not
+     * known yet
+     */
+    private int expectedSites = 0;
 
     /**
      * This is the collabInterface, either a server or client
@@ -68,6 +115,45 @@ public class CollabModel extends DefaultStyledDocument {
      */
     private final int siteID;
 
+    /**
+     * Idle time in milliseconds after which a coalesced local edit is sent
+     */
+    private final static int COALESCE_DELAY = 300;
+
+    /**
+     * Time in milliseconds after which another site is asked for its copy if
+     * the snapshot of the one asked before did not arrive
+     */
+    private final static int RESYNC_TIMEOUT = 5000;
+
+    /**
+     * Maximum number of characters typed into a single local insert
+     */
+    private final static int COALESCE_LIMIT = 256;
+
+    /**
+     * Local edit already in the document but not yet pushed to the operation
+     * engine, or null if there is none
+     */
+    private PendingEdit pending;
+
+    /**
+     * Pending delete that the pending insert replaces, e.g. the selection a
+     * paste went over, or null if there is none. Both are sent as a single
+     * composite operation.
+     */
+    private PendingEdit replaced;
+
+    /**
+     * Sends the pending edit once the user stops typing
+     */
+    private final Timer coalesceTimer;
+
+    /**
+     * Asks again for a copy of the document while none arrives
+     */
+    private final Timer resyncTimer;
+
 
     /**
      * This constructor will be the primary constructor. We will also add
@@ -80,11 +166,41 @@ public class CollabModel extends DefaultStyledDocument {
      */
     public CollabModel(JTextPane mainDocument, CollabInterface collab)
             throws OperationEngineException {
+        this(mainDocument, collab, EngineKind.OT);
+    }
+
+    /**
+     * Creates the model with the given kind of engine, which every client
+     * editing the document has to use.
+     *
+     * @param mainDocument
+     * @param collab
+     * @param engine kind of engine for the document
+     * @throws OperationEngineException
+     */
+    public CollabModel(JTextPane mainDocument, CollabInterface collab, EngineKind engine)
+            throws OperationEngineException {
         // this.buffer = new StringBuilder(mainDocument.getText());
         this.mainDocument = mainDocument;
         this.siteID = collab.getID();
-        this.oe = new OperationEngine(siteID);
+        this.engineKind = engine;
+        this.oe = engine.create(siteID);
+        this.delivery = new CausalDeliveryQueue(oe);
+        this.fingerprint = new DocumentFingerprint(mainDocument.getText());
         this.collab = collab;
+        this.coalesceTimer = new Timer(COALESCE_DELAY, e -> {
+            try {
+                flushLocalEdits();
+            } catch (OperationEngineException ex) {
+                ex.printStackTrace();
+            }
+        });
+        this.coalesceTimer.setRepeats(false);
+        this.resyncTimer = new Timer(RESYNC_TIMEOUT, e -> {
+            if (resyncPending) {
+                collab.requestResync();
+            }
+        });
     }
 
 
@@ -92,6 +208,8 @@ public class CollabModel extends DefaultStyledDocument {
      * This is called by the TextChangeListener to update the local
      * OperationEngine and the StringBuilder This function will also call the
      * collabClient, and tell it to send an operation to the server.
+     * Text typed right after the previous insert is merged into it, and the
+     * operation is only sent once typing stops (see flushLocalEdits).
      *
      * @param offset
      *            , requires to be less than length of the builder. This is the
@@ -104,16 +222,25 @@ public class CollabModel extends DefaultStyledDocument {
      */
     public void addString(int offset, String text)
             throws OperationEngineException {
-        int[] temp = new int[0];
-        Operation top = oe.push(true, OPKEY, text, INSERT, offset, siteID, temp, 0);
-        // buffer.insert(offset, text);
-        if (collab != null) {
-            try {
-                collab.transmit(top, ENCRYPTION_METHOD.SIGNAL);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (pending != null && pending.insert
+                && offset == pending.offset + pending.length()
+                && pending.length() + text.length() <= COALESCE_LIMIT) {
+            // typing continues right after the pending insert
+            pending.text.append(text);
+        } else if (pending != null && !pending.insert
+                && offset == pending.offset) {
+            // text replacing the pending delete, e.g. a paste over a selection
+            replaced = pending;
+            pending = new PendingEdit(true, offset, text.length());
+            pending.text.append(text);
+        } else {
+            flushLocalEdits();
+            pending = new PendingEdit(true, offset, text.length());
+            pending.text.append(text);
         }
+        // after the flush, whose operation does not include this change
+        fingerprint.insert(offset, text);
+        coalesceTimer.restart();
     }
 
     /**
@@ -131,10 +258,11 @@ public class CollabModel extends DefaultStyledDocument {
      * @throws OperationEngineException
      */
     public Operation insertString(int offset, String text, int siteID) throws OperationEngineException {
+        flushLocalEdits();
         int[] temp = new int[0];
-        Operation top = oe.push(true, OPKEY, text, INSERT, offset, siteID, temp, 0);
+        Operation top = onEngine(e -> e.push(true, OPKEY, text, INSERT, offset, siteID, temp, 0));
         // buffer.insert(offset, text);
-        if (collab != null) {
+        if (collab != null && top != null) {
             try {
                 collab.transmit(top, ENCRYPTION_METHOD.SIGNAL);
             } catch (IOException e) {
@@ -149,20 +277,77 @@ public class CollabModel extends DefaultStyledDocument {
      * This is called by the TextChangeListener to update the OperationEngine
      * and the StringBuilder This function will also call the collabClient, and
      * tell it to send an operation to the server.
+     * Backspaces and forward deletes next to the previous delete are merged
+     * into it, and deleting text that was just typed and not sent yet simply
+     * drops it.
      * <p>
      * NEED TO ADD PARAMS (THEIRS WAS WRONG) @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@
      */
     public void deleteString(int offset, int length)
             throws OperationEngineException {
+        if (pending != null && pending.insert
+                && offset + length == pending.offset + pending.length()
+                && length <= pending.length()) {
+            // backspace over characters that were never sent
+            pending.text.setLength(pending.length() - length);
+            if (pending.length() == 0) {
+                pending = replaced;
+                replaced = null;
+            }
+        } else if (pending != null && !pending.insert
+                && offset + length == pending.offset) {
+            // backspace right before the pending delete
+            pending.offset = offset;
+            pending.deleted += length;
+        } else if (pending != null && !pending.insert
+                && offset == pending.offset) {
+            // forward delete at the pending delete
+            pending.deleted += length;
+        } else {
+            flushLocalEdits();
+            pending = new PendingEdit(false, offset, length);
+        }
+        // after the flush, whose operation does not include this change
+        fingerprint.delete(offset, length);
+        coalesceTimer.restart();
+    }
+
+    /**
+     * Pushes the pending local edit, if any, to the OperationEngine and tells
+     * the collabClient to send it to the server. Must be called on the event
+     * dispatch thread, before anything else reads or changes the state of the
+     * OperationEngine.
+     *
+     * @throws OperationEngineException
+     */
+    public void flushLocalEdits() throws OperationEngineException {
+        coalesceTimer.stop();
+        PendingEdit edit = pending;
+        if (edit == null) {
+            return;
+        }
+        pending = null;
+
         int[] temp = new int[0];
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < length; i++) {
-            sb.append("a");
+        Operation top;
+        if (replaced != null) {
+            CompositeOperation.Builder edits = new CompositeOperation.Builder()
+                    .delete(replaced.offset, replaced.deleted)
+                    .insert(edit.offset, edit.text.toString());
+            replaced = null;
+            top = onEngine(e -> e.pushLocalComposite(OPKEY, edits));
+        } else if (edit.insert) {
+            top = onEngine(e -> e.push(true, OPKEY, edit.text.toString(), INSERT, edit.offset, siteID, temp, 0));
+        } else {
+            // only the length is sent, however much was deleted
+            top = onEngine(e -> e.pushLocalDelete(OPKEY, edit.offset, edit.deleted));
         }
-        Operation top = oe.push(true, OPKEY, sb.toString(), DELETE, offset,
-                siteID, temp, 0);
-        // buffer.delete(offset, offset+length);
-        if (collab != null) {
+        // the engine may hold the operation back until the previous one is acknowledged.
+        // Sent right away, it applies to the document as it is now.
+        if (top != null) {
+            top.setFingerprint(fingerprint.value());
+        }
+        if (collab != null && top != null) {
             try {
                 collab.transmit(top, ENCRYPTION_METHOD.SIGNAL);
             } catch (IOException e) {
@@ -181,75 +366,376 @@ public class CollabModel extends DefaultStyledDocument {
      * @throws OperationEngineException
      * @throws BadLocationException     - thrown when an invalid insert occurs
      */
-    public void remoteOp(Operation op, boolean insert)
+    public void remoteOp(Operation op)
             throws OperationEngineException {
         if (op.getKey() == null) {
             return;
         }
         if (op.getKey().equals(OPKEY)) {
-            final Operation top = oe.pushRemoteOp(op);
-            if (top == null) {
-                return;
+            // local edits and the engine are only touched on the event
+            // dispatch thread, so the pending edit cannot change under us
+            final OperationEngineException[] failure = new OperationEngineException[1];
+            runOnEventThread(() -> {
+                try {
+                    // the remote op has to be transformed against what was typed so far
+                    flushLocalEdits();
+                    // it may have to wait for operations it depends on, or release waiting ones
+                    for (Operation top : onEngine(e -> delivery.deliver(op))) {
+                        if (applyRemoteOp(top)) {
+                            verifyFingerprint(top);
+                        }
+                    }
+                } catch (OperationEngineException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        } else {
+            // op's key does not equal the document key
+        }
+    }
+
+    /**
+     * Called by the collabClient when the server acknowledges an operation
+     * this client sent, with the order it assigned. Sends the local edits the
+     * engine held back until then, if any.
+     *
+     * @param order order the server assigned to the operation
+     */
+    public void acknowledge(int order) {
+        runOnEventThread(() -> {
+            try {
+                Operation next = onEngine(e -> e.acknowledge(order));
+                if (collab != null && next != null) {
+                    collab.transmit(next, ENCRYPTION_METHOD.SIGNAL);
+                }
+            } catch (OperationEngineException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Applies a transformed remote operation to the main document. An
+     * operation that does not fit the document means the copies diverged,
+     * since the engine already counts it as applied, so the other sites are
+     * asked for their copy.
+     *
+     * @param top transformed operation
+     * @return true if the operation was applied
+     */
+    private boolean applyRemoteOp(Operation top) {
+        if (mainDocument == null) {
+            return true;
+        }
+        mainDocument.setEditable(false);
+        int offset = top.getOffset();
+        try {
+            applyToDocument(top);
+            // update the caret position
+            int caretPos = mainDocument.getCaretPosition();
+            if (offset < caretPos) {
+                int max = mainDocument.getDocument().getLength();
+                int newpos = Math.min(caretPos, max);
+                newpos = Math.max(0, newpos);
+                mainDocument.setCaretPosition(newpos);
+            }
+            return true;
+        } catch (BadLocationException | RuntimeException e) {
+            remote = false;
+            divergences++;
+            System.err.println("Operation " + top.getSeqId() + " of site " + top.getSiteId()
+                    + " does not fit the document: " + e.getMessage());
+            requestResync();
+            return false;
+        } finally {
+            mainDocument.setEditable(true);
+        }
+    }
+
+    /**
+     * Makes the changes of a transformed remote operation in the main
+     * document. The remote flag is set before every single change, since the
+     * TextChangeListener clears it on each event it ignores.
+     *
+     * @param op transformed operation
+     * @throws BadLocationException if the operation does not fit the document
+     */
+    private void applyToDocument(Operation op) throws BadLocationException {
+        AttributeSet temp = new SimpleAttributeSet();
+        switch (op.getKind()) {
+            case INSERT:
+                remote = true;
+                mainDocument.getDocument().insertString(op.getOffset(), op.getValue(), temp);
+                fingerprint.insert(op.getOffset(), op.getValue());
+                break;
+            case DELETE:
+                // remove the deleted ranges last one first
+                DeleteOperation delete = (DeleteOperation) op;
+                for (int r = delete.getRangeCount() - 1; r >= 0; r--) {
+                    remote = true;
+                    mainDocument.getDocument().remove(delete.getRangeStart(r), delete.getRangeLength(r));
+                    fingerprint.delete(delete.getRangeStart(r), delete.getRangeLength(r));
+                }
+                break;
+            case COMPOSITE:
+                CompositeOperation composite = (CompositeOperation) op;
+                for (int i = 0; i < composite.getEditCount(); i++) {
+                    applyToDocument(composite.getEdit(i));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Checks the document against the fingerprint a remote operation carries,
+     * and asks the other sites for their copy if it differs. Only operations
+     * the engine did not have to transform keep their fingerprint, since the
+     * document is then in the same state the sender's was in.
+     *
+     * @param top remote operation, as applied to the document
+     */
+    private void verifyFingerprint(Operation top) {
+        if (top.getFingerprint() == DocumentFingerprint.NONE
+                || top.getFingerprint() == fingerprint.value()) {
+            return;
+        }
+        divergences++;
+        System.err.println("Document differs from the one of site " + top.getSiteId()
+                + " after its operation " + top.getSeqId());
+        requestResync();
+    }
+
+    /**
+     * Asks another site for its copy of the document, unless this site
+     * already waits for one, and asks again every RESYNC_TIMEOUT until one
+     * arrives. Only a snapshot that arrives after this call is taken, so
+     * every divergence the model or the collabClient notices has to go
+     * through here. Engines without context vectors cannot go on from a
+     * snapshot, so nothing is asked for then.
+     */
+    public void requestResync() {
+        runOnEventThread(() -> {
+            if (!resyncPending && collab != null && engineKind != EngineKind.SEQUENCED) {
+                resyncPending = true;
+                resyncTimer.start();
+                collab.requestResync();
+            }
+        });
+    }
+
+    /**
+     * Makes a snapshot of the document for another site that found its copy
+     * to differ, with everything typed so far. It holds the operations the
+     * engine kept as well, so the other site can still integrate operations
+     * concurrent with them, and its own that this site has not seen yet.
+     *
+     * @param order order of the last operation of the document the server
+     *              sent to this site, which the text includes
+     * @return the snapshot, or null if the engine has no context vector to go
+     *         with the text or this site waits for a snapshot itself
+     * @throws OperationEngineException
+     */
+    public DocumentState snapshot(int order) throws OperationEngineException {
+        final DocumentState[] snapshot = new DocumentState[1];
+        final OperationEngineException[] failure = new OperationEngineException[1];
+        runOnEventThread(() -> {
+            try {
+                flushLocalEdits();
+                ClientState cv = onEngine(DocumentEngine::copyClientState);
+                if (cv != null && !resyncPending) {
+                    List<Operation> ops = onEngine(e -> e.getOperationsAfter(new ClientState(new int[0])));
+                    snapshot[0] = new DocumentState(mainDocument.getText(), cv, saveElements(), saveTombstones(),
+                            ops.toArray(new Operation[0]), order);
+                }
+            } catch (OperationEngineException e) {
+                failure[0] = e;
             }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return snapshot[0];
+    }
 
+    /**
+     * Goes on from a snapshot of another site, if a resync was requested.
+     * The engine starts over from the snapshot's context vector and
+     * operations, along with the elements of the RGA engine or the
+     * tombstones of the OT engine. Then the operations this site integrated
+     * that the snapshot does not include are pushed in again on top of it:
+     * local edits, whether acknowledged or not, and remote operations the
+     * other site did not have yet. Remote operations still waiting for their
+     * context wait in front of the new engine, unless the snapshot has them. Only the first snapshot after
+     * a request is used; the collabClient only passes the ones that include
+     * every operation it received before asking.
+     *
+     * @param snapshot snapshot of another site's document (see snapshot)
+     */
+    public void resync(DocumentState snapshot) {
+        runOnEventThread(() -> {
+            if (!resyncPending || snapshot.contextVector == null || snapshot.operations == null
+                    || (engineKind == EngineKind.RGA && snapshot.elements == null)
+                    || (engineKind == EngineKind.OT && snapshot.tombstones == null)) {
+                return;
+            }
+            resyncPending = false;
+            resyncTimer.stop();
             try {
-                SwingUtilities.invokeAndWait(() -> {
-                    mainDocument.setEditable(false);
-                    int offset = top.getOffset();
-                    String value = top.getValue();
-
-                    AttributeSet temp = new SimpleAttributeSet();
-                    if (mainDocument != null) {
-                        remote = true;
-                        try {
-                            // operation is an insert
-                            if (insert) {
-                                mainDocument.getDocument().insertString(offset, value, temp);
-                            }
-                            // operation is a delete
-                            else {
-                                mainDocument.getDocument().remove(offset, value.length());
-                            }
-                            // update the caret position
-                            int caretPos = mainDocument.getCaretPosition();
-                            if (offset < caretPos) {
-                                int max = mainDocument.getDocument().getLength();
-                                int newpos = Math.min(caretPos, max);
-                                newpos = Math.max(0, newpos);
-                                mainDocument.setCaretPosition(newpos);
-                            }
-                        } catch (BadLocationException e) {
-                            throw new RuntimeException(e);
+                // what was typed so far is sent, and goes on top of the snapshot as well
+                flushLocalEdits();
+                List<Operation> missing = oe.getOperationsAfter(snapshot.contextVector);
+                List<Operation> waiting = delivery.getWaiting();
+
+                oe = engineKind.create(siteID);
+                delivery = new CausalDeliveryQueue(oe);
+                if (expectedSites > 0) {
+                    setExpectedSites(expectedSites);
+                }
+                setCV(snapshot.contextVector);
+                if (engineKind == EngineKind.RGA) {
+                    restoreElements(snapshot.elements);
+                }
+                if (engineKind == EngineKind.OT) {
+                    restoreTombstones(snapshot.tombstones);
+                }
+                oe.restoreHistory(Arrays.asList(snapshot.operations));
+
+                remote = true;
+                mainDocument.getDocument().remove(0, mainDocument.getDocument().getLength());
+                remote = true;
+                mainDocument.getDocument().insertString(0, snapshot.documentText, new SimpleAttributeSet());
+                remote = false;
+                fingerprint = new DocumentFingerprint(mainDocument.getText());
+
+                for (Operation edit : oe.pushRemoteOps(missing)) {
+                    applyRemoteOp(edit);
+                }
+                for (Operation op : waiting) {
+                    if (op.getSeqId() > snapshot.contextVector.getSeqForClient(op.getSiteId())) {
+                        for (Operation edit : delivery.deliver(op)) {
+                            applyRemoteOp(edit);
                         }
-                        mainDocument.setEditable(true);
                     }
-                });
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (InvocationTargetException e) {
+                }
+            } catch (OperationEngineException e) {
                 e.printStackTrace();
+                requestResync();
+            } catch (BadLocationException e) {
+                throw new RuntimeException(e);
             }
-        } else {
-            // op's key does not equal the document key
+        });
+    }
+
+    /**
+     * Runs the given task on the event dispatch thread and waits for it.
+     *
+     * @param task task to run
+     */
+    private void runOnEventThread(Runnable task) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            task.run();
+            return;
+        }
+        try {
+            SwingUtilities.invokeAndWait(task);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * This will get the associated operationEngine
+     * Runs work with the engine of the document on the event dispatch
+     * thread, where the model uses it, and waits for it. Work on the event
+     * dispatch thread runs right away.
      *
-     * @return OperationEngine associated with this client
+     * @param task work to run
+     * @return the result of the work
+     * @throws OperationEngineException
+     */
+    private <T> T onEngine(EngineTask<T> task) throws OperationEngineException {
+        if (SwingUtilities.isEventDispatchThread()) {
+            return task.run(oe);
+        }
+        final List<T> result = new ArrayList<T>(1);
+        final OperationEngineException[] failure = new OperationEngineException[1];
+        runOnEventThread(() -> {
+            try {
+                result.add(task.run(oe));
+            } catch (OperationEngineException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * This will get the associated engine
+     *
+     * @return engine associated with this client
      */
-    public OperationEngine getOE() {
+    public DocumentEngine getOE() {
         return this.oe;
     }
 
+    /**
+     * Sets the number of sites editing the document, including this one
+     *
+     * @param sites number of sites
+     */
+    public void setExpectedSites(int sites) {
+        this.expectedSites = sites;
+        try {
+            onEngine(e -> {
+                e.setExpectedSites(sites);
+                return null;
+            });
+        } catch (OperationEngineException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Return the number of times the document was found to differ from the
+     * other sites'
+     */
+    public int getDivergences() {
+        return this.divergences;
+    }
+
+    /**
+     * Return the number of remote operations waiting for operations they
+     * depend on
+     */
+    public int getQueuedRemoteOps() {
+        return this.delivery.getDepth();
+    }
+
     /**
      * Sets the ClientState associated with this client
      *
      * @param cv
      */
     public void setCV(ClientState cv) {
-        oe.setCV(cv);
+        try {
+            onEngine(e -> {
+                e.setCV(cv);
+                return null;
+            });
+        } catch (OperationEngineException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -259,19 +745,163 @@ public class CollabModel extends DefaultStyledDocument {
      * @throws OperationEngineException
      */
     public ClientState copyOfCV() throws OperationEngineException {
-        return oe.copyClientState();
+        // the copy has to include what was typed so far
+        runOnEventThread(() -> {
+            try {
+                flushLocalEdits();
+            } catch (OperationEngineException e) {
+                e.printStackTrace();
+            }
+        });
+        return onEngine(DocumentEngine::copyClientState);
     }
 
     /**
-     * Sets the document key
+     * Return a copy of the element sequence of the document, with what was
+     * typed so far
+     *
+     * @return the elements, or null unless the document is edited with the
+     *         RGA engine
+     * @throws OperationEngineException
+     */
+    public RgaElements copyOfElements() throws OperationEngineException {
+        if (engineKind != EngineKind.RGA) {
+            return null;
+        }
+        runOnEventThread(() -> {
+            try {
+                flushLocalEdits();
+            } catch (OperationEngineException e) {
+                e.printStackTrace();
+            }
+        });
+        return saveElements();
+    }
+
+    /**
+     * Replaces the element sequence of the document with saved elements, to
+     * go on with the text they were saved with. Only used with the RGA
+     * engine, whose remote operations name the elements.
+     *
+     * @param elements elements as saved by copyOfElements
+     * @throws OperationEngineException if they do not fit together
+     */
+    public void restoreElements(RgaElements elements) throws OperationEngineException {
+        onEngine(e -> {
+            ((RgaEngine) e).restoreElements(OPKEY, elements);
+            return null;
+        });
+    }
+
+    /**
+     * Saves the element sequence of the document if it is edited with the
+     * RGA engine.
+     */
+    private RgaElements saveElements() throws OperationEngineException {
+        if (engineKind != EngineKind.RGA) {
+            return null;
+        }
+        return onEngine(e -> ((RgaEngine) e).saveElements(OPKEY));
+    }
+
+    /**
+     * Return a copy of the deleted characters of the document, with what was
+     * typed so far
+     *
+     * @return the tombstones, or null unless the document is edited with the
+     *         OT engine
+     * @throws OperationEngineException
+     */
+    public int[] copyOfTombstones() throws OperationEngineException {
+        if (engineKind != EngineKind.OT) {
+            return null;
+        }
+        runOnEventThread(() -> {
+            try {
+                flushLocalEdits();
+            } catch (OperationEngineException e) {
+                e.printStackTrace();
+            }
+        });
+        return saveTombstones();
+    }
+
+    /**
+     * Replaces the deleted characters of the document with saved ones, to go
+     * on with the text they were saved with. Only used with the OT engine,
+     * whose remote operations count the deleted characters.
+     *
+     * @param tombstones tombstones as saved by copyOfTombstones
+     * @throws OperationEngineException
+     */
+    public void restoreTombstones(int[] tombstones) throws OperationEngineException {
+        onEngine(e -> {
+            ((OperationEngine) e).restoreTombstones(tombstones);
+            return null;
+        });
+    }
+
+    /**
+     * Saves the deleted characters of the document if it is edited with the
+     * OT engine.
+     */
+    private int[] saveTombstones() throws OperationEngineException {
+        if (engineKind != EngineKind.OT) {
+            return null;
+        }
+        return onEngine(e -> ((OperationEngine) e).saveTombstones());
+    }
+
+    /**
+     * Sets the document key, and starts a new engine for that document
      *
      * @param str
+     * @throws OperationEngineException
      */
-    public void setKey(String str) {
+    public void setKey(String str) throws OperationEngineException {
+        if (str.equals(this.OPKEY)) {
+            return;
+        }
         this.OPKEY = str;
+        this.oe = engineKind.create(siteID);
+        this.delivery = new CausalDeliveryQueue(oe);
     }
 
     public String getDocumentText() { return this.mainDocument.getText(); }
+
+    /**
+     * Work to run with the engine of the document.
+     *
+     * @param <T> type of the result
+     */
+    private interface EngineTask<T> {
+        T run(DocumentEngine engine) throws OperationEngineException;
+    }
+
+    /**
+     * A run of local typing or deleting that is merged into one operation
+     * before it is sent.
+     */
+    private static final class PendingEdit {
+        // true for an insert, false for a delete
+        private final boolean insert;
+        // offset of the first character inserted or deleted
+        private int offset;
+        // characters inserted so far
+        private final StringBuilder text = new StringBuilder();
+        // number of characters deleted so far
+        private int deleted;
+
+        PendingEdit(boolean insert, int offset, int length) {
+            this.insert = insert;
+            this.offset = offset;
+            this.deleted = insert ? 0 : length;
+        }
+
+        int length() {
+            return insert ? text.length() : deleted;
+        }
+    }
 }
 
 
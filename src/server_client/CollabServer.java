@@ -1,6 +1,5 @@
 package server_client;
 
-import document.DocumentInstance;
 import document.OperationEngineException;
 import document.Pair;
 import gui.ErrorDialog;
@@ -9,20 +8,30 @@ import signal.EncryptedMessage;
 import signal.RegistrationInfo;
 import signal.SessionInfo;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Creates a server that relay information between clients. It will block
  * until a client connects, and then send a copy of the requested document to the client.
- * It will start a new thread to handle each new client connection.
+ * By default it will start a new thread to handle each new client connection, which is a
+ * virtual thread in the virtual mode; in the nio mode a few event loops handle all of them
+ * (see SelectorServer).
  * Each time a client makes a change to the document, it will send it to the server, which will relay it to the rest of the clients.
+ * Clients and server exchange Messages in the format of WireProtocol.
  * Note: a server must be present before a client can connect.
  */
 
@@ -30,7 +39,7 @@ import java.util.HashMap;
 public class CollabServer {
 
     /**
-     * maximum number of clients allowed at a time
+     * maximum number of clients allowed at a time, with two threads per client
      */
     private static final int MAX_CLIENTS = 30;
     /**
@@ -38,28 +47,29 @@ public class CollabServer {
      */
     private final Object lock = new Object();
     /**
-     * server socket that accepts client connections
+     * server socket that accepts client connections, in the threads mode
      */
     private ServerSocket serverSocket;
     /**
-     * number of clients actively connected
+     * server channel that accepts client connections, in the nio mode
      */
-    private int users = 0;
-
+    private ServerSocketChannel serverChannel;
     /**
-     * order of the operations
+     * how the server does its I/O
      */
-    private int order;
-
-    private int clientID = 0;
-
+    private final ServerMode mode;
     /**
-     * A hash of socket to its associated input/output streams. We want to use these
-     * two streams each time we need to communicate between a particular client and the server.
+     * creates the threads of the connections in the threads and virtual modes
      */
-    private final HashMap<Socket, Pair<ObjectInputStream, ObjectOutputStream>> socketStreams = new HashMap<>();
-
-
+    private final ThreadFactory threads;
+    /**
+     * most messages waiting to be sent to a client before it is disconnected
+     */
+    private final int queueLimit = Integer.getInteger("collabypto.server.queue", 4096);
+    /**
+     * number of clients actively connected
+     */
+    private int users = 0;
 
     //List of all online users
     private final ArrayList<String> usernames = new ArrayList<>();
@@ -70,27 +80,45 @@ public class CollabServer {
     //List of clients that are in each documents.
     private final HashMap<String, String[]> clientLists = new HashMap<>();
 
-     //Neccessary for the initial implementation, but should be changed
-    private final HashMap<String, DocumentInstance> documentInstances = new HashMap<>();
+    //ordering domain of each document, which orders and relays its operations
+    private final ConcurrentHashMap<String, DocumentDomain> domains = new ConcurrentHashMap<>();
 
     //map of username to info the server has on the user
-    private final HashMap<String, UserInfo> clientInfos = new HashMap<>();
+    private final ConcurrentHashMap<String, UserInfo> clientInfos = new ConcurrentHashMap<>();
 
     //list of valid unused tokens
     private final ArrayList<String> tokens = new ArrayList<>();
 
     /**
      * Constructor for making a server. It will set the port number and create a server socket.
-     * List of documents and socket names are also initialized
+     * List of documents and socket names are also initialized.
+     * The mode comes from the collabypto.server.mode system property.
      *
      * @param port - targeted port number
      */
-
     public CollabServer(int port) {
+        this(port, modeFromConfig());
+    }
+
+    /**
+     * Constructor for making a server that does its I/O in the given mode.
+     *
+     * @param port - targeted port number
+     * @param mode - how to handle the client connections
+     */
+    public CollabServer(int port, ServerMode mode) {
+        this.mode = mode;
+        this.threads = threadFactory(mode);
         // Sets server info
         // Create a server socket for clients to connect to
         try {
-            this.serverSocket = new ServerSocket(port);
+            if (mode == ServerMode.NIO) {
+                this.serverChannel = ServerSocketChannel.open();
+                this.serverChannel.bind(new InetSocketAddress(port));
+            }
+            else {
+                this.serverSocket = new ServerSocket(port);
+            }
         }
         catch (IOException e) {
             System.err.println("Cannot create server socket at port: " + port);
@@ -100,6 +128,12 @@ public class CollabServer {
         System.out.println("Server created.");
     }
 
+    //the server mode from the collabypto.server.mode system property, threads by default
+    private static ServerMode modeFromConfig() {
+        ServerMode mode = ServerMode.fromName(System.getProperty("collabypto.server.mode", "threads"));
+        return (mode == null) ? ServerMode.THREADS : mode;
+    }
+
     /**
      * start up a server by calling the connect() method.
      *
@@ -107,7 +141,14 @@ public class CollabServer {
      */
     public void start() {
         try {
-            this.serve();
+            if (this.mode == ServerMode.NIO) {
+                int loops = Integer.getInteger("collabypto.server.loops",
+                        Runtime.getRuntime().availableProcessors());
+                new SelectorServer(this, this.serverChannel, loops, this.queueLimit).serve();
+            }
+            else {
+                this.serve();
+            }
         } catch (Exception e) {
             new ErrorDialog(e.toString());
         }
@@ -121,27 +162,23 @@ public class CollabServer {
      *                     individual clients do *not* terminate serve()).
      */
     private void serve() {
-
         while (true) {
-            if (this.users > MAX_CLIENTS) {
+            //virtual threads are cheap enough not to need the limit
+            if (this.mode == ServerMode.THREADS && this.users > MAX_CLIENTS) {
                 throw new RuntimeException("Too many clients!");
             }
             // block until a client connects
             try {
                 final Socket socket = serverSocket.accept();
+                //every send is flushed right away, waiting to fill packets only adds latency
+                socket.setTcpNoDelay(true);
 
                 // New client detected; create new thread to handle each connection
-                Thread thread = new Thread(() -> {
+                Thread thread = this.threads.newThread(() -> {
                     try {
                         handleConnection(socket);
                     } catch (IOException e) {
-
-                    } finally {
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                            new ErrorDialog(e.toString());
-                        }
+                        //the connection is closed already
                     }
                 });
                 thread.start();
@@ -152,235 +189,428 @@ public class CollabServer {
         }
     }
 
+    /**
+     * Returns what creates the thread of each connection: virtual threads in
+     * the virtual mode, platform threads otherwise. Virtual threads are looked
+     * up at run time, so the server still builds and runs on older Java
+     * versions, where the virtual mode falls back to platform threads.
+     *
+     * @param mode how the server does its I/O
+     */
+    private static ThreadFactory threadFactory(ServerMode mode) {
+        if (mode == ServerMode.VIRTUAL) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                        .getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads need Java 21 or later, using platform threads.");
+            }
+        }
+        return Thread::new;
+    }
+
     /**
      * Handle a single client connection. Returns when client disconnects, after
-     * closing all the appropriate sockets and streams. This is where
+     * closing the socket, or leaving it to the connection to close once the
+     * last messages are written. This is where
      * information exchange will be done between the client and server.
      *
      * @param socket socket via which the client is connected
      * @throws IOException if connection has an error or terminates unexpectedly
      */
     private void handleConnection(Socket socket) throws IOException {
-        String documentID;
-        String clientName = null;
-        Boolean returningUser;
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-        // Add stream to HashMap
-        socketStreams.put(socket, new Pair<>(in, out));
-        UserInfo clientInfo = null;
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), WireProtocol.STREAM_BUFFER));
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), WireProtocol.STREAM_BUFFER));
         try {
-            Object input;
-            //waits for client to write their name and saves it along with registration info of the user.
-            input = in.readObject();
-
-            if (input instanceof Pair) {
-                Pair p = (Pair) input;
-                clientName = (String) p.first;
-                clientInfo = clientInfos.get(clientName);
-
-                //client is new
-                for(String user : clientInfos.keySet()) {
-                    if(user.equals(clientName)) {
-                        if(!(p.second instanceof Boolean)) {
-                            System.err.println(clientName + " already taken.");
-                            out.writeObject(clientName + " is already taken. Please enter a new username");
-                            return;
-                        }
-                        else {
-                            out.writeObject(true);
-                        }
-                    }
-                }
-                if(clientInfo == null) {
+            WireProtocol.writeHello(out);
+            out.flush();
+            WireProtocol.readHello(in);
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Session session = new Session(new StreamConnection(socket, this.queueLimit, this.threads));
+        try {
+            while (!session.isClosed()) {
+                session.receive(WireProtocol.read(in));
+            }
+        }
+        catch (EOFException e) {
+            //the client left
+        }
 
-                    //client sent indication that they are returning even though they are new
-                    if(p.second instanceof Boolean) {
-                        System.err.println(clientName + " attempted to log in as returning user without info");
-                        out.writeObject("Missing user information in server.");
-                        return;
-                    }
+        //Clean up. The connection closes the socket, which its writer may still be using.
+        finally {
+            session.disconnect();
+        }
+    }
 
-                    out.writeObject(true);
+    /**
+     * Creates the session for a new connection.
+     *
+     * @param connection connection to the client
+     * @return the session, to give every message received from the client to
+     */
+    Session newSession(ClientConnection connection) {
+        return new Session(connection);
+    }
 
-                    Object token = in.readObject();
+    /**
+     * The state of one client connection: logging in, choosing a document,
+     * joining it, and then relaying its operations. Each message received from
+     * the client moves it along, so it does not matter which thread reads
+     * them, as long as it is one at a time.
+     */
+    class Session {
+
+        private final ClientConnection connection;
+        private State state = State.LOGIN;
+        private String clientName = null;
+        private UserInfo clientInfo = null;
+        // registration info of a new client, until its token is checked
+        private RegistrationInfo registration;
+        private String documentID;
+        private Boolean returningUser;
+        private int siteID = 0;
+        private boolean joined = false;
+
+        Session(ClientConnection connection) {
+            this.connection = connection;
+        }
 
-                    if(!(token instanceof String) || token == null) {
-                        System.err.println(clientName + " attempted to register without token");
-                        out.writeObject("Missing token.");
-                        return;
-                    }
-                    else {
-                        //check token
-                        if(tokens.contains(token)) {
-                            clientInfo = new UserInfo();
-                            clientInfos.put(clientName, clientInfo);
-                            clientInfo.registrationInfo = (RegistrationInfo) p.second;
-                            tokens.remove(token);
-                            out.writeObject(true);
-                        }
-                        else {
-                            System.err.println(clientName + " attempted to register with invalid token");
-                            out.writeObject("Invalid token.");
-                            return;
-                        }
+        /**
+         * Return true once the session ended, and the connection has to be
+         * closed
+         */
+        boolean isClosed() {
+            return state == State.CLOSED;
+        }
+
+        /**
+         * Handles the next message received from the client.
+         *
+         * @param input message received
+         * @throws IOException if the client sent something unexpected, or the
+         *                     connection breaks
+         */
+        void receive(Message input) throws IOException {
+            switch (state) {
+                case LOGIN:
+                    login(input);
+                    break;
+                case TOKEN:
+                    register(input);
+                    break;
+                case SELECTING:
+                    select(input);
+                    break;
+                case CLIENT_LIST:
+                    createDocument(input);
+                    break;
+                case USERNAME:
+                    //Receives username of client. Updates users.
+                    expect(input, MessageType.USERNAME);
+                    synchronized (lock) {
+                        usernames.add(clientName);
                     }
-                }
+                    updateUsers();
+                    //Receives operations from client. That's all the server is expecting from the client from now on.
+                    state = State.RELAY;
+                    break;
+                case RELAY:
+                    expect(input, MessageType.OPERATION);
+                    parseInput(input.getEncryptedMessages(), documentID, clientInfo);
+                    break;
+                default:
+                    break;
             }
-            else {
+        }
+
+        //fails unless the message has the type the session is waiting for
+        private void expect(Message input, MessageType type) throws IOException {
+            if (input.getType() != type) {
+                throw new IOException("Expected " + type + " from " + clientName + ", got " + input.getType());
+            }
+        }
+
+        //waits for client to write their name and saves it along with registration info of the user.
+        private void login(Message input) throws IOException {
+            boolean returning = input.getType() == MessageType.LOGIN_RETURNING;
+            if (!returning && input.getType() != MessageType.LOGIN_NEW) {
                 throw new IOException("Expected client name");
             }
+            clientName = input.getName();
+            clientInfo = clientInfos.get(clientName);
+
+            //name is registered
+            if(clientInfo != null) {
+                if(!returning) {
+                    System.err.println(clientName + " already taken.");
+                    connection.send(Message.error(clientName + " is already taken. Please enter a new username"));
+                    state = State.CLOSED;
+                    return;
+                }
+                connection.send(Message.ok());
+                showDocuments();
+                return;
+            }
 
-            clientInfo.currentDocument = "";
-            ArrayList<String> clientDocuments = filteredDocumentList(clientName);
-            out.writeObject(clientDocuments);
-            out.flush();
+            //client sent indication that they are returning even though they are new
+            if(returning) {
+                System.err.println(clientName + " attempted to log in as returning user without info");
+                connection.send(Message.error("Missing user information in server."));
+                state = State.CLOSED;
+                return;
+            }
 
-            //Stays here waiting for the user to choose a document.
-            while(true) {
-                //Receives which document to edit, a document/user list request, or a token generated by the user.
-                input = in.readObject();
-                if(input instanceof String) {
-                    if(input.equals("refresh")) {
-                        // Sends list of documents to client
-                        clientDocuments = filteredDocumentList(clientName);
-                        out.writeObject(clientDocuments);
-                        out.flush();
-                    }
-                    //else, client generated a token
-                    else tokens.add((String) input);
-                }
+            connection.send(Message.ok());
+            registration = input.getRegistrationInfo();
+            state = State.TOKEN;
+        }
 
-                //client is requesting list of registered clients
-                else if(input instanceof  ArrayList) {
-                    out.writeObject(new ArrayList(clientInfos.keySet()));
-                }
+        private void register(Message input) throws IOException {
+            if(input.getType() != MessageType.TOKEN) {
+                System.err.println(clientName + " attempted to register without token");
+                connection.send(Message.error("Missing token."));
+                state = State.CLOSED;
+                return;
+            }
+            String token = input.getToken();
+            //check token
+            if(tokens.contains(token)) {
+                clientInfo = new UserInfo();
+                clientInfos.put(clientName, clientInfo);
+                clientInfo.registrationInfo = registration;
+                tokens.remove(token);
+                connection.send(Message.ok());
+                showDocuments();
+            }
+            else {
+                System.err.println(clientName + " attempted to register with invalid token");
+                connection.send(Message.error("Invalid token."));
+                state = State.CLOSED;
+            }
+        }
 
-                //got document name + returning user boolean pair
-                else if (input instanceof Pair) {
-                    returningUser = (Boolean) ((Pair)input).second;
+        private void showDocuments() throws IOException {
+            connection.send(Message.documents(filteredDocumentList(clientName)));
+            state = State.SELECTING;
+        }
+
+        //Stays here waiting for the user to choose a document.
+        //Receives which document to edit, a document/user list request, or a token generated by the user.
+        private void select(Message input) throws IOException {
+            switch (input.getType()) {
+                case REFRESH:
+                    // Sends list of documents to client
+                    connection.send(Message.documents(filteredDocumentList(clientName)));
                     break;
-                }
+                //client generated a token
+                case ADD_TOKEN:
+                    tokens.add(input.getToken());
+                    break;
+                //client is requesting list of registered clients
+                case LIST_CLIENTS:
+                    connection.send(Message.clients(new ArrayList<>(clientInfos.keySet())));
+                    break;
+                //got document name + returning user boolean
+                case OPEN_DOCUMENT:
+                    openDocument(input.getDocumentID(), input.isReturningUser());
+                    break;
+                default:
+                    throw new IOException("Unexpected " + input.getType() + " from " + clientName);
             }
+        }
 
+        private void openDocument(String documentID, boolean returningUser) {
+            this.returningUser = returningUser;
+            // TODO: client crashes if you use an existing document name. Maybe fix
+            this.documentID = documentID;
             synchronized (lock) {
-                // TODO: client crashes if you use an existing document name. Maybe fix
-                documentID = (String) ((Pair) input).first;
-                clientInfo.currentDocument = documentID;
+                //If document does not exist, the client sends who to create it with
+                if (!documents.contains(documentID)) {
+                    state = State.CLIENT_LIST;
+                    return;
+                }
+            }
+            join();
+        }
 
-                //If document does not exist, create it
+        //expecting a list of clients the user invited to the document
+        private void createDocument(Message input) throws IOException {
+            expect(input, MessageType.CLIENT_LIST);
+            synchronized (lock) {
+                //another client may have created it in the meantime
                 if (!documents.contains(documentID)) {
                     documents.add(documentID);
-                    documentInstances.put(documentID, new DocumentInstance(""));
-                    input = in.readObject();
-
-                    //expecting a list of clients the user invited to the document
-                    if (input instanceof ArrayList) {
-                        String[] clientList = ((ArrayList<String>)input).toArray(new String[0]);
-                        clientLists.put(documentID, clientList);
-
-                        //build sessioninfo for document creator with the rest of the users. Assumes everyone is registered.
-                        for(String client : clientList) {
-                            UserInfo curUser = clientInfos.get(client);
-                            if(clientInfos.get(client).registrationInfo == null) {
-                                //shouldn't happen under normal circumstances (client using the GUI)
-                                throw new IllegalArgumentException("Client in list does not exist.");
-                            }
-                            //create an empty history list for each user in the document
-                            curUser.histories.put(documentID, new ArrayList<>());
-                            if(curUser.socket == null) curUser.socket = new Pair(null, false); //don't know the client's socket yet
+                    domains.put(documentID, new DocumentDomain(documentID));
+                    String[] clientList = input.getClients().toArray(new String[0]);
+                    clientLists.put(documentID, clientList);
+
+                    //build sessioninfo for document creator with the rest of the users. Assumes everyone is registered.
+                    for(int i = 0; i < clientList.length; i++) {
+                        String client = clientList[i];
+                        UserInfo curUser = clientInfos.get(client);
+                        if(clientInfos.get(client).registrationInfo == null) {
+                            //shouldn't happen under normal circumstances (client using the GUI)
+                            throw new IllegalArgumentException("Client in list does not exist.");
                         }
+                        //create an empty history list for each user in the document
+                        curUser.histories.put(documentID, new ArrayList<>());
+                        //the site ID is the position in the client list, so IDs stay dense and
+                        //the same across reconnects. 0 is never used as a site ID.
+                        curUser.siteIDs.put(documentID, i + 1);
+                        if(curUser.connection == null) curUser.connection = new Pair<>(null, false); //don't know the client's connection yet
+                    }
 
-                        //create session info between every 2 clients
-                        for(String client : clientList) {
-                            UserInfo curUser = clientInfos.get(client);
-                            RegistrationInfo registrationInfo = curUser.registrationInfo;
+                    //create session info between every 2 clients
+                    for(String client : clientList) {
+                        UserInfo curUser = clientInfos.get(client);
+                        RegistrationInfo registrationInfo = curUser.registrationInfo;
 
-                            for(String otherClient : clientList) {
-                                if(otherClient.equals(client)) continue;
-                                SessionInfo session = registrationInfo.createSessionInfo(client, documentID);
-                                clientInfos.get(otherClient).sessionInfos.add(session);
-                            }
+                        for(String otherClient : clientList) {
+                            if(otherClient.equals(client)) continue;
+                            SessionInfo session = registrationInfo.createSessionInfo(client, documentID);
+                            clientInfos.get(otherClient).sessionInfos.add(session);
                         }
                     }
-                    else {
-                        throw new IOException("Expected client list");
-                    }
                 }
-                this.users++;
-                //set user as joined and associate with their socket
-                // TODO: move this to the correct place. (active socket is only used by their code and works here, but logic is incorrect)
-                clientInfo.socket = new Pair<>(socket, true);
-
-                //increment client ID
-                clientID++;
             }
+            join();
+        }
 
-            // Sends client the client ID
-            out.writeObject(clientID);
-            out.flush();
-
-            //if this is the first time the user entered this document, give them the session information.
-            if(!returningUser) {
-                //TODO: remove unneccessary session infos?
-                out.writeObject(clientInfos.get(clientName).sessionInfos);
-                out.flush();
-            }
-
-            //send the client the history of the document.
-            out.writeObject(new Pair(documentInstances.get(documentID), clientInfo.histories.get(documentID)));
-            out.flush();
-
-            //now that client received the history, we empty it again so it only contains messages they didn't receive.
-            clientInfo.histories.get(documentID).clear();
-
-            //Receives username of client. Updates users.
-            input = in.readObject();
-            if (!(input instanceof String)) {
-                throw new RuntimeException("Expected client username");
-            }
+        private void join() {
+            ArrayList<SessionInfo> sessionInfos;
             synchronized (lock) {
-                usernames.add(clientName);
+                this.joined = true;
+                users++;
+                //set user as joined and associate with their connection
+                clientInfo.connection = new Pair<>(connection, true);
+
+                siteID = clientInfo.siteIDs.get(documentID);
+                //other documents may add session infos while they are sent
+                sessionInfos = new ArrayList<>(clientInfo.sessionInfos);
             }
 
-            updateUsers();
+            //the client enters the document between two operations, so it gets each one either
+            //in the history or from the relay, never twice or not at all
+            domains.get(documentID).execute(() -> {
+                clientInfo.currentDocument = documentID;
+                try {
+                    // Sends client its site ID in the document, along with the number of operations it already
+                    // sent, so a returning client continues its sequence numbers where it left off
+                    connection.send(Message.site(siteID, clientInfo.sentOps.getOrDefault(documentID, 0)));
+
+                    //if this is the first time the user entered this document, give them the session information.
+                    if(!returningUser) {
+                        //TODO: remove unneccessary session infos?
+                        connection.send(Message.sessions(sessionInfos));
+                    }
 
-            //Receives operations from client. That's all the server is expecting from the client from now on.
-            input = in.readObject();
-            while (input != null) {
-                parseInput(input, documentID);
-                input = in.readObject();
-            }
-        }
-        catch (ClassNotFoundException e) {
-            e.printStackTrace();
+                    //send the client the history of the document, in parts so a long one fits the frames,
+                    //copied since it may be written after it is cleared.
+                    ArrayList<EncryptedMessage> history = clientInfo.histories.get(documentID);
+                    for (Message part : WireProtocol.historyMessages(history)) {
+                        connection.send(part);
+                    }
+
+                    //now that client received the history, we empty it again so it only contains messages they didn't receive.
+                    history.clear();
+                } catch (IOException e) {
+                    //the session ends when reading from the connection fails as well
+                    System.err.println("Could not send " + documentID + " to " + clientName);
+                }
+            });
+            state = State.USERNAME;
         }
 
-        //Clean up, close connections
-        finally {
-            System.out.println("Connection to client #" + clientID + " lost.");
+        /**
+         * Ends the session when the connection is lost or closed, and tells
+         * the other clients. Does nothing the second time.
+         */
+        void disconnect() {
+            boolean ended;
+            synchronized (lock) {
+                if (state == State.DISCONNECTED) {
+                    return;
+                }
+                ended = state == State.CLOSED;
+                state = State.DISCONNECTED;
+            }
+            System.out.println("Connection to client #" + siteID + " lost.");
 
             //set connection as closed
             synchronized (lock) {
                 try {
                     //set client as inactive
-                    clientInfo.socket.second = false;
-                    clientInfo.currentDocument = "";
-                    this.users--;
-                    usernames.remove(clientName);
+                    if (joined && clientInfo.connection.first == connection) {
+                        clientInfo.connection.second = false;
+                        //later operations go to the history, unless the client already joined again
+                        domains.get(documentID).execute(() -> {
+                            if (clientInfo.connection.first == connection) {
+                                clientInfo.currentDocument = "";
+                                //so do the ones it did not get, e.g. when it was too far behind
+                                ArrayList<EncryptedMessage> history = clientInfo.histories.get(documentID);
+                                for (Message m : connection.unsent()) {
+                                    if (m.getType() == MessageType.MESSAGE
+                                            && !m.getEncryptedMessage().control) {
+                                        history.add(m.getEncryptedMessage());
+                                    }
+                                }
+                            }
+                        });
+                    }
+                    if (joined) {
+                        users--;
+                        usernames.remove(clientName);
+                    }
                     //need to update the view of who still in the edit room
                 } catch (Exception e) {
                     System.err.println("Client not found");
                 }
             }
             //update user lists
-            updateUsers();
-            out.close();
-            in.close();
+            try {
+                updateUsers();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            //the client still gets why the server ended the session
+            if (ended) {
+                connection.finish();
+            }
+            else {
+                connection.close();
+            }
         }
     }
 
+    /**
+     * Steps of a client session
+     */
+    private enum State {
+        // waiting for the client name and registration info
+        LOGIN,
+        // waiting for the token of a new client
+        TOKEN,
+        // waiting for the client to choose a document
+        SELECTING,
+        // waiting for the clients invited to a new document
+        CLIENT_LIST,
+        // waiting for the username, after sending the document
+        USERNAME,
+        // relaying operations
+        RELAY,
+        // the session is over and the connection has to be closed
+        CLOSED,
+        // the connection was cleaned up
+        DISCONNECTED
+    }
+
     public String generateToken() {
         String generatedString = RandomStringUtils.randomAlphanumeric(10);
 
@@ -408,16 +638,16 @@ public class CollabServer {
     }
 
     /**
-     * Takes an object that was received from the client and parses it. It
-     * should be an encrypted message the client created.
+     * Takes an operation that was received from the client and parses it. It
+     * should be the encrypted messages the client created.
      *
-     * @param input      - object sent from the client to parse
+     * @param messages   - encrypted messages sent from the client, one per recipient
      * @param documentID - the document that the client is editing
-     * @throws IOException - caused if the operation object is corrupt, or if the socket
-     *                     connection breaks
+     * @param sender     - the client that sent the operation
+     * @throws IOException - caused if the socket connection breaks
      */
-    private void parseInput(Object input, String documentID) throws IOException {
-        transmit(input, documentID);
+    private void parseInput(EncryptedMessage[] messages, String documentID, UserInfo sender) throws IOException {
+        transmit(messages, documentID, sender);
     }
 
     /**
@@ -425,51 +655,91 @@ public class CollabServer {
      * send the changes to all the other clients in the documents, who will then apply their
      * own OT algorithm to generate the most recent copy of the document.
      *
+     * @param sender the client that sent the change
      * @throws IOException if the input/output stream is corrupt
      */
-    private void transmit(Object o, String documentID) throws IOException {
-        ObjectOutputStream out;
-        // Increment the order so the Operation Engine can determine
-        // the relative position of all the operations
-
+    private void transmit(EncryptedMessage[] messages, String documentID, UserInfo sender) throws IOException {
         //we receive an array of encrypted messages, each to be sent to a specific client in the document.
-        EncryptedMessage[] messages = (EncryptedMessage[]) o;
-        synchronized (lock) {
+        if (messages.length > 0 && messages[0].control) {
+            relay(messages, documentID);
+            return;
+        }
+        ClientConnection senderConnection = sender.connection.first;
+        DocumentDomain domain = domains.get(documentID);
+
+        //the domain of the document orders and sends the messages, so every client receives them in order
+        domain.execute(() -> {
+            // Take the next order of the document so the Operation Engine can determine
+            // the relative position of all the operations
+            int assigned = domain.assignOrder();
             for(int i = 0; i < messages.length; i++) {
-                messages[i].setOrder(order);
+                messages[i].setOrder(assigned);
             }
-            order++;
-        }
+            sender.sentOps.merge(documentID, 1, Integer::sum);
+
+            //tell the sender which order its operation got
+            send(senderConnection, Message.orderAck(assigned));
 
-        for(int i = 0; i < messages.length; i++) {
-            EncryptedMessage message = messages[i];
-
-            //find the socket of the recipient of the message
-            UserInfo recipientInfo = clientInfos.get(message.recipientID);
-            Pair<Socket, Boolean> p = recipientInfo.socket;
-            Socket currentSocket = p.first;
-            Boolean activeSocket = p.second;
-            if (recipientInfo.currentDocument.equals(documentID)) {
-                out = socketStreams.get(currentSocket).second;
-                out.writeObject(message);
-                out.flush();
+            for(int i = 0; i < messages.length; i++) {
+                EncryptedMessage message = messages[i];
+
+                //find the connection of the recipient of the message
+                UserInfo recipientInfo = clientInfos.get(message.recipientID);
+                if (recipientInfo.currentDocument.equals(documentID)) {
+                    send(recipientInfo.connection.first, Message.message(message));
+                }
+                else {
+                    //client is not in the document, add message to their history so they can update when they next join.
+                    recipientInfo.histories.get(documentID).add(message);
+                }
             }
-            else {
-                //client is not in the document, add message to their history so they can update when they next join.
-                recipientInfo.histories.get(documentID).add(message);
+        });
+    }
+
+    /**
+     * Sends control messages between clients, such as resync requests and
+     * document snapshots, to the recipients currently in the document. They
+     * get no order and are not kept for clients that are away, since they
+     * only matter while the clients are connected.
+     *
+     * @param messages   encrypted messages, one per recipient
+     * @param documentID the document the sender is editing
+     */
+    private void relay(EncryptedMessage[] messages, String documentID) {
+        domains.get(documentID).execute(() -> {
+            for (EncryptedMessage message : messages) {
+                UserInfo recipientInfo = clientInfos.get(message.recipientID);
+                if (recipientInfo != null && recipientInfo.currentDocument.equals(documentID)) {
+                    send(recipientInfo.connection.first, Message.message(message));
+                }
             }
+        });
+    }
+
+    /**
+     * Sends a message to a client from the domain of a document. A broken
+     * connection only loses the message for that client, whose session ends
+     * when reading from it fails as well.
+     *
+     * @param connection connection to the client
+     * @param m          message to send
+     */
+    private static void send(ClientConnection connection, Message m) {
+        try {
+            connection.send(m);
+        } catch (IOException e) {
+            System.err.println("Could not send to a client: " + e);
         }
     }
 
     /**
-     * Sends a Pair of users and documents to all active clients to update the
+     * Sends the users and documents to all active clients to update the
      * right pane. It is called each time a new client joins or leaves.
      *
      * @throws IOException - if the socket connection is corrupted
      */
     @SuppressWarnings("unchecked")
     private void updateUsers() throws IOException {
-        ObjectOutputStream out;
         ArrayList<String> docs = new ArrayList<>(documents);
         //Sorts the document list in alphabetical order
         Collections.sort(docs);
@@ -477,29 +747,18 @@ public class CollabServer {
         //For each client
         for (String clientName : clientInfos.keySet()) {
             if (clientName == null) continue;
-            //retrieve the sockets for the client
-            Pair<Socket, Boolean> p = clientInfos.get(clientName).socket;
+            //retrieve the connection of the client
+            Pair<ClientConnection, Boolean> p = clientInfos.get(clientName).connection;
             if (p == null) continue;
-            Socket currentSocket = p.first;
-            Boolean activeSocket = p.second;
+            ClientConnection currentConnection = p.first;
+            Boolean activeConnection = p.second;
 
             //Connection is already closed, So we don't send.
-            if (!activeSocket) continue;
-
-            //Makes sure socket exists in map
-            if (!socketStreams.containsKey(currentSocket)) {
-                throw new RuntimeException("Socket not found in HashMap");
-            }
+            if (!activeConnection || currentConnection == null) continue;
 
-            out = socketStreams.get(currentSocket).second;
-            //Creates a cloned pair of usernames and documents
-            Pair<ArrayList<String>, ArrayList<String>> pair = new Pair<>(
-                    (ArrayList<String>) usernames.clone(),
-                    filteredDocumentList(clientName));
-
-            //Sends it to the client
-            out.writeObject(pair);
-            out.flush();
+            //Sends a clone of the usernames and the documents of the client
+            currentConnection.send(Message.users((ArrayList<String>) usernames.clone(),
+                    filteredDocumentList(clientName)));
         }
     }
 }
\ No newline at end of file
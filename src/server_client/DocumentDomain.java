@@ -0,0 +1,92 @@
+package server_client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Everything that happens in the order of one document: assigning orders to
+ * its operations, relaying them, and clients joining and leaving it. Each of
+ * these runs as a task of the document's domain, and the tasks of a domain
+ * run one at a time, in the order they were given, so the domain is the only
+ * writer of its state and needs no lock. Every client in the document
+ * receives the operations in the order they got.
+ *
+ * Domains of different documents run at the same time on a shared pool, so
+ * edits to one document never wait for another.
+ */
+class DocumentDomain {
+
+    // Tasks a domain runs before letting other domains have its thread
+    private static final int BATCH = 256;
+
+    // Threads the domains run on. Sending only queues the message on the
+    // connection (see ClientConnection), so tasks never wait and one thread
+    // per processor keeps every core busy.
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), task -> {
+        Thread thread = new Thread(task, "document-domain");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String documentID;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // True while the tasks are running or about to
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    // Order of the next operation, only used by the tasks
+    private int nextOrder = 0;
+
+    /**
+     * Creates the domain of a new document, whose first operation gets order 0.
+     *
+     * @param documentID document name
+     */
+    DocumentDomain(String documentID) {
+        this.documentID = documentID;
+    }
+
+    /**
+     * Runs a task after all the tasks given before it, without waiting for it.
+     *
+     * @param task task to run
+     */
+    void execute(Runnable task) {
+        this.tasks.add(task);
+        this.schedule();
+    }
+
+    /**
+     * Returns the order of the next operation of the document. Orders have no
+     * gaps, so a client can tell when it missed one. Only to be called by a
+     * task of this domain.
+     */
+    int assignOrder() {
+        return this.nextOrder++;
+    }
+
+    private void schedule() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            POOL.execute(this::runTasks);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        int ran = 0;
+        while (ran++ < BATCH && (task = this.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Task of document " + this.documentID + " failed. See below.");
+                e.printStackTrace();
+            }
+        }
+        this.scheduled.set(false);
+        // tasks that came in while stopping, or after a full batch
+        if (!this.tasks.isEmpty()) {
+            this.schedule();
+        }
+    }
+}
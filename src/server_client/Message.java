@@ -0,0 +1,278 @@
+package server_client;
+
+import signal.EncryptedMessage;
+import signal.RegistrationInfo;
+import signal.SessionInfo;
+
+import java.util.ArrayList;
+
+/**
+ * A message between client and server: its type, and up to two values whose
+ * meaning depends on the type, as listed in MessageType. Messages are created
+ * with the factory method of their type, and read with the getters of the
+ * values of that type, which throw an IllegalStateException for a message of
+ * another type.
+ */
+public class Message {
+
+    private final MessageType type;
+    private final Object first;
+    private final Object second;
+
+    Message(MessageType type, Object first, Object second) {
+        this.type = type;
+        this.first = first;
+        this.second = second;
+    }
+
+    /**
+     * Return the type of this message
+     */
+    public MessageType getType() {
+        return this.type;
+    }
+
+    /**
+     * Return the name of the client, of a LOGIN_NEW, LOGIN_RETURNING or
+     * USERNAME message
+     */
+    public String getName() {
+        expect(MessageType.LOGIN_NEW, MessageType.LOGIN_RETURNING, MessageType.USERNAME);
+        return (String) this.first;
+    }
+
+    /**
+     * Return the registration info of a LOGIN_NEW message
+     */
+    public RegistrationInfo getRegistrationInfo() {
+        expect(MessageType.LOGIN_NEW);
+        return (RegistrationInfo) this.second;
+    }
+
+    /**
+     * Return the token of a TOKEN or ADD_TOKEN message
+     */
+    public String getToken() {
+        expect(MessageType.TOKEN, MessageType.ADD_TOKEN);
+        return (String) this.first;
+    }
+
+    /**
+     * Return the reason of an ERROR message
+     */
+    public String getReason() {
+        expect(MessageType.ERROR);
+        return (String) this.first;
+    }
+
+    /**
+     * Return the document of an OPEN_DOCUMENT message
+     */
+    public String getDocumentID() {
+        expect(MessageType.OPEN_DOCUMENT);
+        return (String) this.first;
+    }
+
+    /**
+     * Return whether the client edited the document before, of an
+     * OPEN_DOCUMENT message
+     */
+    public boolean isReturningUser() {
+        expect(MessageType.OPEN_DOCUMENT);
+        return (Boolean) this.second;
+    }
+
+    /**
+     * Return the clients of a CLIENT_LIST or CLIENTS message
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<String> getClients() {
+        expect(MessageType.CLIENT_LIST, MessageType.CLIENTS);
+        return (ArrayList<String>) this.first;
+    }
+
+    /**
+     * Return the online users of a USERS message
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<String> getUsers() {
+        expect(MessageType.USERS);
+        return (ArrayList<String>) this.first;
+    }
+
+    /**
+     * Return the documents of a DOCUMENTS or USERS message
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<String> getDocuments() {
+        expect(MessageType.DOCUMENTS, MessageType.USERS);
+        return (ArrayList<String>) ((this.type == MessageType.USERS) ? this.second : this.first);
+    }
+
+    /**
+     * Return the copies of the operation of an OPERATION message, one for
+     * each recipient
+     */
+    public EncryptedMessage[] getEncryptedMessages() {
+        expect(MessageType.OPERATION);
+        return (EncryptedMessage[]) this.first;
+    }
+
+    /**
+     * Return the encrypted message of a MESSAGE message
+     */
+    public EncryptedMessage getEncryptedMessage() {
+        expect(MessageType.MESSAGE);
+        return (EncryptedMessage) this.first;
+    }
+
+    /**
+     * Return the site ID of a SITE message
+     */
+    public int getSiteID() {
+        expect(MessageType.SITE);
+        return (Integer) this.first;
+    }
+
+    /**
+     * Return how many operations the client already sent to the document,
+     * of a SITE message
+     */
+    public int getSentOps() {
+        expect(MessageType.SITE);
+        return (Integer) this.second;
+    }
+
+    /**
+     * Return the session infos of a SESSIONS message
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<SessionInfo> getSessions() {
+        expect(MessageType.SESSIONS);
+        return (ArrayList<SessionInfo>) this.first;
+    }
+
+    /**
+     * Return the part of the history a HISTORY message holds
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<EncryptedMessage> getHistory() {
+        expect(MessageType.HISTORY);
+        return (ArrayList<EncryptedMessage>) this.first;
+    }
+
+    /**
+     * Return whether a HISTORY message holds the last part of the history
+     */
+    public boolean isLastHistory() {
+        expect(MessageType.HISTORY);
+        return (Boolean) this.second;
+    }
+
+    /**
+     * Return the order of an ORDER_ACK message
+     */
+    public int getOrder() {
+        expect(MessageType.ORDER_ACK);
+        return (Integer) this.first;
+    }
+
+    //checks that the message is of one of the types a getter is for
+    private void expect(MessageType... types) {
+        for (MessageType t : types) {
+            if (this.type == t) {
+                return;
+            }
+        }
+        throw new IllegalStateException("No such value in a " + this.type + " message");
+    }
+
+    @Override
+    public String toString() {
+        return this.type + "(" + this.first + ", " + this.second + ")";
+    }
+
+    // client to server
+
+    public static Message loginNew(String name, RegistrationInfo registrationInfo) {
+        return new Message(MessageType.LOGIN_NEW, name, registrationInfo);
+    }
+
+    public static Message loginReturning(String name) {
+        return new Message(MessageType.LOGIN_RETURNING, name, null);
+    }
+
+    public static Message token(String token) {
+        return new Message(MessageType.TOKEN, token, null);
+    }
+
+    public static Message refresh() {
+        return new Message(MessageType.REFRESH, null, null);
+    }
+
+    public static Message addToken(String token) {
+        return new Message(MessageType.ADD_TOKEN, token, null);
+    }
+
+    public static Message listClients() {
+        return new Message(MessageType.LIST_CLIENTS, null, null);
+    }
+
+    public static Message openDocument(String documentID, boolean returningUser) {
+        return new Message(MessageType.OPEN_DOCUMENT, documentID, returningUser);
+    }
+
+    public static Message clientList(ArrayList<String> clients) {
+        return new Message(MessageType.CLIENT_LIST, clients, null);
+    }
+
+    public static Message username(String name) {
+        return new Message(MessageType.USERNAME, name, null);
+    }
+
+    public static Message operation(EncryptedMessage[] messages) {
+        return new Message(MessageType.OPERATION, messages, null);
+    }
+
+    // server to client
+
+    public static Message ok() {
+        return new Message(MessageType.OK, null, null);
+    }
+
+    public static Message error(String reason) {
+        return new Message(MessageType.ERROR, reason, null);
+    }
+
+    public static Message documents(ArrayList<String> documents) {
+        return new Message(MessageType.DOCUMENTS, documents, null);
+    }
+
+    public static Message clients(ArrayList<String> clients) {
+        return new Message(MessageType.CLIENTS, clients, null);
+    }
+
+    public static Message site(int siteID, int sentOps) {
+        return new Message(MessageType.SITE, siteID, sentOps);
+    }
+
+    public static Message sessions(ArrayList<SessionInfo> sessionInfos) {
+        return new Message(MessageType.SESSIONS, sessionInfos, null);
+    }
+
+    public static Message history(ArrayList<EncryptedMessage> history, boolean last) {
+        return new Message(MessageType.HISTORY, history, last);
+    }
+
+    public static Message users(ArrayList<String> users, ArrayList<String> documents) {
+        return new Message(MessageType.USERS, users, documents);
+    }
+
+    public static Message message(EncryptedMessage message) {
+        return new Message(MessageType.MESSAGE, message, null);
+    }
+
+    public static Message orderAck(int order) {
+        return new Message(MessageType.ORDER_ACK, order, null);
+    }
+}
@@ -0,0 +1,88 @@
+package server_client;
+
+/**
+ * The kinds of messages client and server exchange, each with the code that
+ * identifies it on the wire (see WireProtocol). Codes are never reused, so
+ * a receiver can reject a message it does not know.
+ */
+public enum MessageType {
+    // client to server
+
+    // name and registration info of a new client
+    LOGIN_NEW(1),
+    // name of a client that registered before
+    LOGIN_RETURNING(2),
+    // token a new client registers with
+    TOKEN(3),
+    // asks for the list of documents
+    REFRESH(4),
+    // token the client generated to invite someone
+    ADD_TOKEN(5),
+    // asks for the list of registered clients
+    LIST_CLIENTS(6),
+    // name of the document to edit, and whether the client edited it before
+    OPEN_DOCUMENT(7),
+    // clients that may edit the new document
+    CLIENT_LIST(8),
+    // username, once the client has the document
+    USERNAME(9),
+    // an operation or control message, encrypted once for each recipient
+    OPERATION(10),
+
+    // server to client
+
+    // the last request succeeded
+    OK(20),
+    // the last request failed, with the reason
+    ERROR(21),
+    // documents the client may edit
+    DOCUMENTS(22),
+    // registered clients
+    CLIENTS(23),
+    // site ID of the client in the document, and how many operations it sent to it
+    SITE(24),
+    // session infos to build sessions with the other clients
+    SESSIONS(25),
+    // messages the client missed while away from the document, in parts if there are
+    // many, and whether this is the last part
+    HISTORY(26),
+    // online users and the documents of the client
+    USERS(27),
+    // an operation or control message from another client
+    MESSAGE(28),
+    // order the server assigned to the last operation the client sent
+    ORDER_ACK(29);
+
+    // Message types by code
+    private static final MessageType[] BY_CODE = new MessageType[32];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    // Code of the message type on the wire
+    private final int code;
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    /**
+     * Return the code of this message type on the wire
+     */
+    public int getCode() {
+        return this.code;
+    }
+
+    /**
+     * Looks up a message type by its code.
+     *
+     * @param code code on the wire
+     * @return the message type, or null if there is none with that code
+     */
+    public static MessageType fromCode(int code) {
+        return (code >= 0 && code < BY_CODE.length) ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,20 @@
+package server_client;
+
+import java.io.Serializable;
+
+/**
+ * Sent, encrypted, by a client whose document no longer matches the
+ * fingerprint of an operation it received, or that missed operations, to one
+ * other client editing the document. That client answers with a snapshot of
+ * its own for the sender only (see CollabModel.snapshot), and the sender asks
+ * the next one if none arrives.
+ */
+public class ResyncRequest implements Serializable {
+    private static final long serialVersionUID = 1341;
+
+    public final int siteId;
+
+    public ResyncRequest(int siteId) {
+        this.siteId = siteId;
+    }
+}
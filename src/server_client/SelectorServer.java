@@ -0,0 +1,389 @@
+package server_client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The nio mode of the server: a few event loops, each with a selector,
+ * share all of the connections, so an idle client costs a socket and a few
+ * buffers instead of a thread.
+ *
+ * Messages come in frames that carry their length (see WireProtocol), so the
+ * event loop keeps the bytes of a connection until a frame is complete, then
+ * decodes it and hands it to the session of the connection itself. Sessions
+ * never block on a client, so no other threads are needed. Sending encodes
+ * the message right away and leaves the bytes for the event loop to write,
+ * so sending never blocks, even under the server lock. A client with too
+ * many messages waiting is disconnected.
+ */
+class SelectorServer {
+
+    // Bytes read from a socket at a time
+    private static final int READ_BUFFER = 64 * 1024;
+    // Bytes kept for the incomplete frame of a connection, unless it is larger
+    private static final int INBOUND_BUFFER = 1024;
+    // The hello each connection starts with
+    private static final byte[] HELLO = hello();
+
+    private final CollabServer server;
+    private final ServerSocketChannel channel;
+    private final EventLoop[] loops;
+    // Most messages waiting to be written to a client before it is disconnected
+    private final int queueLimit;
+
+    /**
+     * Creates a server that accepts clients on the given channel.
+     *
+     * @param server server the sessions of the clients belong to
+     * @param channel bound server channel
+     * @param loops number of event loop threads
+     * @param queueLimit most messages waiting to be written to a client
+     * @throws IOException if a selector cannot be opened
+     */
+    SelectorServer(CollabServer server, ServerSocketChannel channel, int loops, int queueLimit) throws IOException {
+        this.server = server;
+        this.channel = channel;
+        this.queueLimit = queueLimit;
+        this.loops = new EventLoop[Math.max(1, loops)];
+        for (int i = 0; i < this.loops.length; i++) {
+            this.loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Starts the event loops and accepts clients, handing them to the loops
+     * in turn. Never returns unless the server channel breaks.
+     *
+     * @throws IOException if the server channel is broken
+     */
+    void serve() throws IOException {
+        for (EventLoop loop : this.loops) {
+            loop.start();
+        }
+        int next = 0;
+        while (true) {
+            SocketChannel client = this.channel.accept();
+            try {
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+                new NioConnection(client, this.loops[next]);
+                next = (next + 1) % this.loops.length;
+            } catch (IOException e) {
+                System.err.println("An exception occured. See below.");
+                e.printStackTrace();
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * A thread waiting on a selector for its connections to be readable or
+     * writable, which also runs tasks given to it by other threads.
+     */
+    private static final class EventLoop extends Thread {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER);
+
+        EventLoop(int index) throws IOException {
+            super("event-loop-" + index);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        /**
+         * Runs a task on this loop, waking it up if it is waiting.
+         */
+        void execute(Runnable task) {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    this.selector.select();
+                    Runnable task;
+                    while ((task = this.tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        // writes first, so the hello goes out even if the client's is refused
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read(this.readBuffer);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("Event loop stopped. See below.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Return the bytes of the hello
+     */
+    private static byte[] hello() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(WireProtocol.HELLO_LENGTH);
+        try {
+            WireProtocol.writeHello(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            // not thrown by a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A connection to one client, served by an event loop.
+     */
+    private final class NioConnection implements ClientConnection {
+
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final CollabServer.Session session;
+        private SelectionKey key;
+
+        // Messages sent and their bytes, not written to the socket yet
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private boolean closed = false;
+        // True once the connection closes when nothing is pending
+        private boolean finishing = false;
+
+        // Bytes received and not decoded yet, only used by the event loop
+        private ByteBuffer inbound = ByteBuffer.allocate(INBOUND_BUFFER);
+        private boolean helloReceived = false;
+
+        NioConnection(SocketChannel channel, EventLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            // the hello goes out first
+            this.pending.add(new Pending(null, ByteBuffer.wrap(HELLO)));
+            this.session = server.newSession(this);
+            loop.execute(() -> {
+                try {
+                    this.key = channel.register(loop.selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+                } catch (IOException e) {
+                    this.close();
+                }
+            });
+        }
+
+        public void send(Message m) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(WireProtocol.encode(m));
+            boolean wasEmpty;
+            synchronized (this) {
+                if (this.closed) {
+                    this.pending.add(new Pending(m, null));
+                    return;
+                }
+                if (this.pending.size() >= queueLimit) {
+                    this.pending.add(new Pending(m, null));
+                    System.err.println("Client fell " + queueLimit + " messages behind, disconnecting.");
+                    this.close();
+                    return;
+                }
+                wasEmpty = this.pending.isEmpty();
+                this.pending.add(new Pending(m, bytes));
+            }
+            // the loop is already writing otherwise
+            if (wasEmpty) {
+                this.loop.execute(this::write);
+            }
+        }
+
+        public void finish() {
+            synchronized (this) {
+                this.finishing = true;
+            }
+            this.loop.execute(this::write);
+        }
+
+        /**
+         * Closes the connection and ends its session, on the event loop.
+         */
+        public void close() {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+            }
+            this.loop.execute(() -> {
+                if (this.key != null) {
+                    this.key.cancel();
+                }
+                try {
+                    this.channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                this.session.disconnect();
+            });
+        }
+
+        public synchronized List<Message> unsent() {
+            List<Message> unsent = new ArrayList<>();
+            for (Pending p : this.pending) {
+                if (p.message != null) {
+                    unsent.add(p.message);
+                }
+            }
+            return unsent;
+        }
+
+        /**
+         * Reads what the socket has, on the event loop, and hands the
+         * messages completed by it to the session.
+         */
+        void read(ByteBuffer buffer) {
+            synchronized (this) {
+                if (this.closed || this.finishing) {
+                    return;
+                }
+            }
+            try {
+                buffer.clear();
+                int n = this.channel.read(buffer);
+                if (n < 0) {
+                    // the client left
+                    this.close();
+                    return;
+                }
+                buffer.flip();
+                this.append(buffer);
+                this.decode();
+            } catch (Exception e) {
+                // the connection broke, or the client sent something unexpected
+                this.close();
+            }
+        }
+
+        /**
+         * Keeps the bytes read, growing the buffer if they do not fit.
+         */
+        private void append(ByteBuffer data) {
+            if (this.inbound.remaining() < data.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(
+                        Math.max(2 * this.inbound.capacity(), this.inbound.position() + data.remaining()));
+                this.inbound.flip();
+                grown.put(this.inbound);
+                this.inbound = grown;
+            }
+            this.inbound.put(data);
+        }
+
+        /**
+         * Decodes the complete frames received and hands their messages to
+         * the session, keeping the bytes of an incomplete one.
+         *
+         * @throws IOException if the client does not speak the protocol, or
+         *                     the session fails
+         */
+        private void decode() throws IOException {
+            ByteBuffer in = this.inbound;
+            in.flip();
+            try {
+                if (!this.helloReceived) {
+                    if (in.remaining() < WireProtocol.HELLO_LENGTH) {
+                        return;
+                    }
+                    WireProtocol.checkHello(in.getInt(), in.getShort() & 0xffff);
+                    this.helloReceived = true;
+                }
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    WireProtocol.checkLength(length);
+                    if (in.remaining() < 4 + length) {
+                        break;
+                    }
+                    Message m = WireProtocol.decode(in.array(), in.arrayOffset() + in.position() + 4, length);
+                    in.position(in.position() + 4 + length);
+                    this.session.receive(m);
+                    if (this.session.isClosed()) {
+                        this.session.disconnect();
+                        return;
+                    }
+                }
+            } finally {
+                in.compact();
+            }
+            // a large frame is done with, so its buffer is not kept
+            if (in.position() == 0 && in.capacity() > READ_BUFFER) {
+                this.inbound = ByteBuffer.allocate(INBOUND_BUFFER);
+            }
+        }
+
+        /**
+         * Writes as much of the pending bytes as the socket takes, on the
+         * event loop, and waits for the socket to be writable again if some
+         * are left.
+         */
+        void write() {
+            if (this.key == null || !this.key.isValid()) {
+                return;
+            }
+            boolean done;
+            try {
+                synchronized (this) {
+                    if (this.closed) {
+                        return;
+                    }
+                    while (!this.pending.isEmpty()) {
+                        ByteBuffer buffer = this.pending.peek().bytes;
+                        this.channel.write(buffer);
+                        if (buffer.hasRemaining()) {
+                            break;
+                        }
+                        this.pending.poll();
+                    }
+                    this.key.interestOps(this.pending.isEmpty()
+                            ? SelectionKey.OP_READ
+                            : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    done = this.finishing && this.pending.isEmpty();
+                }
+            } catch (IOException e) {
+                done = true;
+            }
+            if (done) {
+                this.close();
+            }
+        }
+    }
+
+    /**
+     * A message sent to a client, and its bytes. The hello has no message,
+     * and messages sent after the connection closed have no bytes.
+     */
+    private static final class Pending {
+        private final Message message;
+        private final ByteBuffer bytes;
+
+        Pending(Message message, ByteBuffer bytes) {
+            this.message = message;
+            this.bytes = bytes;
+        }
+    }
+}
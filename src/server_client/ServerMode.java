@@ -0,0 +1,49 @@
+package server_client;
+
+/**
+ * The ways the server can do its I/O. Clients cannot tell them apart.
+ */
+public enum ServerMode {
+    // two blocking threads for every connection, one reading and one writing
+    THREADS("threads"),
+    // the same with virtual threads, on Java 21 or later
+    VIRTUAL("virtual"),
+    // a few event loops on java.nio selectors, for many mostly idle connections
+    NIO("nio");
+
+    // Name used for the mode in the configuration
+    private final String name;
+
+    ServerMode(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Return the name of this mode, e.g. "nio"
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Looks up a mode by its name.
+     *
+     * @param name mode name, e.g. "nio"
+     * @return the mode, or null if there is no mode with that name
+     */
+    public static ServerMode fromName(String name) {
+        if (name == null) {
+            return null;
+        }
+        switch (name) {
+            case "threads":
+                return THREADS;
+            case "virtual":
+                return VIRTUAL;
+            case "nio":
+                return NIO;
+            default:
+                return null;
+        }
+    }
+}
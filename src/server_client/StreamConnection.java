@@ -0,0 +1,198 @@
+package server_client;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection with threads of its own, blocking on the streams of its
+ * socket: the session thread reads, and a writer thread writes what was
+ * sent, so a client that stops reading only holds up its own writer. That
+ * makes two threads for every client. The writer flushes once the queue is
+ * empty, so a burst of messages goes out in as few packets as possible. The
+ * buffer also flushes on its own when it fills up, so the writer counts the
+ * bytes that reached the socket, and a message only counts as sent once all
+ * of it did. Only the messages not written yet count towards the limit; the
+ * ones in the buffer are on their way.
+ */
+class StreamConnection implements ClientConnection {
+
+    private final Socket socket;
+    // Bytes written to the buffered stream, and the ones of them that reached the socket
+    private final Counter buffered;
+    private final Counter flushed;
+    private final DataOutputStream out;
+    // Most messages waiting to be written before the client is disconnected
+    private final int limit;
+
+    // not synchronized, which would pin a virtual thread to its carrier while it waits
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    // Messages not written yet
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    // Messages written to the buffered stream that did not reach the socket yet
+    private final ArrayDeque<Message> written = new ArrayDeque<>();
+    // Number of bytes written when the message at the same place in written ended
+    private final ArrayDeque<Long> writtenEnds = new ArrayDeque<>();
+    private boolean closed = false;
+    // True once the connection closes when the queue is empty
+    private boolean finishing = false;
+
+    /**
+     * Creates the connection and starts its writer.
+     *
+     * @param socket  socket of the client, the hello already sent and flushed
+     * @param limit   most messages waiting to be written
+     * @param threads creates the writer thread
+     * @throws IOException if the socket has no stream to write to
+     */
+    StreamConnection(Socket socket, int limit, ThreadFactory threads) throws IOException {
+        this.socket = socket;
+        this.flushed = new Counter(socket.getOutputStream());
+        this.buffered = new Counter(new BufferedOutputStream(this.flushed, WireProtocol.STREAM_BUFFER));
+        this.out = new DataOutputStream(this.buffered);
+        this.limit = limit;
+        threads.newThread(this::write).start();
+    }
+
+    public void send(Message m) throws IOException {
+        boolean overflow = false;
+        lock.lock();
+        try {
+            if (!closed && queue.size() >= limit) {
+                overflow = true;
+            }
+            queue.add(m);
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (overflow) {
+            System.err.println("Client fell " + limit + " messages behind, disconnecting.");
+            close();
+        }
+    }
+
+    public void finish() {
+        lock.lock();
+        try {
+            finishing = true;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public List<Message> unsent() {
+        lock.lock();
+        try {
+            List<Message> unsent = new ArrayList<>(written);
+            unsent.addAll(queue);
+            return unsent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //writes what was sent until the connection closes, or nothing is left once it finishes
+    private void write() {
+        try {
+            while (true) {
+                Message m;
+                lock.lock();
+                try {
+                    while (queue.isEmpty() && !closed && !finishing) {
+                        ready.await();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    if (queue.isEmpty()) {
+                        break;
+                    }
+                    m = queue.peek();
+                } finally {
+                    lock.unlock();
+                }
+
+                WireProtocol.write(out, m);
+
+                boolean more;
+                lock.lock();
+                try {
+                    written.add(queue.poll());
+                    writtenEnds.add(buffered.count);
+                    more = !queue.isEmpty();
+                } finally {
+                    lock.unlock();
+                }
+                if (!more) {
+                    out.flush();
+                }
+                lock.lock();
+                try {
+                    // whatever reached the socket, with this flush or when the buffer was full
+                    while (!writtenEnds.isEmpty() && writtenEnds.peek() <= flushed.count) {
+                        writtenEnds.poll();
+                        written.poll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // closed below
+        }
+        close();
+    }
+
+    /**
+     * Counts the bytes written through it. Only the writer thread writes.
+     */
+    private static final class Counter extends FilterOutputStream {
+        private long count = 0;
+
+        Counter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -5,25 +5,35 @@ import signal.EncryptedMessage;
 import signal.RegistrationInfo;
 import signal.SessionInfo;
 
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 //database for all the information the server knows about a client.
 
 class UserInfo {
-    //client socket and whether it's active or not
-    public Pair<Socket, Boolean> socket;
+    //client connection and whether it's active or not
+    public volatile Pair<ClientConnection, Boolean> connection;
     public RegistrationInfo registrationInfo;
     public final ArrayList<SessionInfo> sessionInfos;
-    public String currentDocument;
+    //only changed by the domain of the document, see DocumentDomain
+    public volatile String currentDocument;
 
     //hashmap between document name and its history
-    public final HashMap<String, ArrayList<EncryptedMessage>> histories;
+    public final ConcurrentHashMap<String, ArrayList<EncryptedMessage>> histories;
+
+    //hashmap between document name and the site ID of the client in that document
+    public final HashMap<String, Integer> siteIDs;
+
+    //hashmap between document name and the number of operations the client sent to it
+    public final ConcurrentHashMap<String, Integer> sentOps;
 
     //constructor initializes some structures. The server sets the information as it gets information about the client.
     public UserInfo() {
-        histories = new HashMap<>();
+        currentDocument = "";
+        histories = new ConcurrentHashMap<>();
         sessionInfos = new ArrayList<>();
+        siteIDs = new HashMap<>();
+        sentOps = new ConcurrentHashMap<>();
     }
 }
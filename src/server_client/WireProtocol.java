@@ -0,0 +1,482 @@
+package server_client;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import signal.EncryptedMessage;
+import signal.RegistrationInfo;
+import signal.SessionInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary format of the messages between client and server, which does
+ * not need Java serialization and keeps no state between messages.
+ *
+ * Each side starts by sending a hello: the magic number and the version of
+ * the protocol, both checked by the other side. After that, every message is
+ * a frame: its length as an int, counting everything after it, the code of
+ * its type as a byte, and its values. All numbers are big-endian, strings are
+ * written with writeUTF, and lists are preceded by their size. Receivers
+ * ignore bytes after the values they know, so later versions may add values
+ * at the end of a message.
+ */
+public class WireProtocol {
+
+    /**
+     * First bytes each side sends, "CLBP"
+     */
+    public static final int MAGIC = 0x434C4250;
+    /**
+     * Version of the protocol
+     */
+    public static final int VERSION = 1;
+    /**
+     * Length of the hello: the magic number and the version
+     */
+    public static final int HELLO_LENGTH = 6;
+    /**
+     * Longest frame accepted, so a corrupt length cannot make the receiver
+     * allocate without bounds
+     */
+    public static final int MAX_FRAME = 64 * 1024 * 1024;
+    /**
+     * Most bytes of encrypted messages a HISTORY message holds, unless it
+     * holds a single larger one. A longer
+     * history is sent in several of them, so it never comes near MAX_FRAME.
+     */
+    public static final int HISTORY_FRAME = 1024 * 1024;
+    /**
+     * Size of the buffers of the streams a server keeps for each client.
+     * Most messages are small, and larger ones go past the buffers.
+     */
+    public static final int STREAM_BUFFER = 1024;
+
+    private WireProtocol() {
+    }
+
+    /**
+     * Writes the hello that starts a connection.
+     *
+     * @param out stream to the other side
+     * @throws IOException if the stream is broken
+     */
+    public static void writeHello(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+    }
+
+    /**
+     * Reads the hello of the other side and checks it.
+     *
+     * @param in stream from the other side
+     * @throws IOException if the other side does not speak this protocol
+     */
+    public static void readHello(DataInputStream in) throws IOException {
+        checkHello(in.readInt(), in.readUnsignedShort());
+    }
+
+    /**
+     * Checks the hello of the other side.
+     *
+     * @param magic   magic number received
+     * @param version version received
+     * @throws IOException if the other side does not speak this protocol
+     */
+    public static void checkHello(int magic, int version) throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("Not a Collabypto connection");
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version " + version + ", expected " + VERSION);
+        }
+    }
+
+    /**
+     * Writes a message as a frame, without flushing.
+     *
+     * @param out stream to the other side
+     * @param m   message to write
+     * @throws IOException if the stream is broken
+     */
+    public static void write(DataOutputStream out, Message m) throws IOException {
+        out.write(encode(m));
+    }
+
+    /**
+     * Reads the next frame and the message in it.
+     *
+     * @param in stream from the other side
+     * @return the message
+     * @throws EOFException if the other side closed the connection
+     * @throws IOException  if the stream is broken or the frame is malformed
+     */
+    public static Message read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return decode(frame, 0, length);
+    }
+
+    /**
+     * Checks the length of a frame before reading it.
+     *
+     * @param length length read
+     * @throws IOException if no frame can have that length
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length < 1 || length > MAX_FRAME) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    /**
+     * Encodes a message as a frame, with its length.
+     *
+     * @param m message to encode
+     * @return the bytes of the frame
+     */
+    public static byte[] encode(Message m) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0);
+            out.writeByte(m.getType().getCode());
+            writeValues(out, m);
+        } catch (IOException e) {
+            // not thrown by a byte array
+            throw new IllegalStateException(e);
+        }
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * Decodes the message in a frame, without its length.
+     *
+     * @param frame  bytes holding the frame
+     * @param offset where the frame starts
+     * @param length length of the frame
+     * @return the message
+     * @throws IOException if the frame is malformed
+     */
+    public static Message decode(byte[] frame, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, offset, length));
+        int code = in.readUnsignedByte();
+        MessageType type = MessageType.fromCode(code);
+        if (type == null) {
+            throw new IOException("Unknown message type " + code);
+        }
+        try {
+            return readValues(in, type);
+        } catch (EOFException e) {
+            throw new IOException("Truncated " + type + " message");
+        }
+    }
+
+    private static void writeValues(DataOutputStream out, Message m) throws IOException {
+        switch (m.getType()) {
+            case LOGIN_NEW:
+                out.writeUTF(m.getName());
+                writeRegistrationInfo(out, m.getRegistrationInfo());
+                break;
+            case LOGIN_RETURNING:
+            case USERNAME:
+                out.writeUTF(m.getName());
+                break;
+            case TOKEN:
+            case ADD_TOKEN:
+                out.writeUTF(m.getToken());
+                break;
+            case ERROR:
+                out.writeUTF(m.getReason());
+                break;
+            case REFRESH:
+            case LIST_CLIENTS:
+            case OK:
+                break;
+            case OPEN_DOCUMENT:
+                out.writeUTF(m.getDocumentID());
+                out.writeBoolean(m.isReturningUser());
+                break;
+            case CLIENT_LIST:
+            case CLIENTS:
+                writeStrings(out, m.getClients());
+                break;
+            case DOCUMENTS:
+                writeStrings(out, m.getDocuments());
+                break;
+            case USERS:
+                writeStrings(out, m.getUsers());
+                writeStrings(out, m.getDocuments());
+                break;
+            case OPERATION:
+                EncryptedMessage[] messages = m.getEncryptedMessages();
+                out.writeInt(messages.length);
+                for (EncryptedMessage message : messages) {
+                    writeEncryptedMessage(out, message);
+                }
+                break;
+            case HISTORY:
+                List<EncryptedMessage> history = m.getHistory();
+                out.writeInt(history.size());
+                for (EncryptedMessage message : history) {
+                    writeEncryptedMessage(out, message);
+                }
+                out.writeBoolean(m.isLastHistory());
+                break;
+            case MESSAGE:
+                writeEncryptedMessage(out, m.getEncryptedMessage());
+                break;
+            case SITE:
+                out.writeInt(m.getSiteID());
+                out.writeInt(m.getSentOps());
+                break;
+            case ORDER_ACK:
+                out.writeInt(m.getOrder());
+                break;
+            case SESSIONS:
+                List<SessionInfo> sessions = m.getSessions();
+                out.writeInt(sessions.size());
+                for (SessionInfo session : sessions) {
+                    writePreKeyBundle(out, session.preKey);
+                    out.writeUTF(session.senderID);
+                    out.writeUTF(session.documentID);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("No encoding for " + m.getType());
+        }
+    }
+
+    private static Message readValues(DataInputStream in, MessageType type) throws IOException {
+        switch (type) {
+            case LOGIN_NEW:
+                return Message.loginNew(in.readUTF(), readRegistrationInfo(in));
+            case LOGIN_RETURNING:
+            case TOKEN:
+            case ADD_TOKEN:
+            case USERNAME:
+            case ERROR:
+                return new Message(type, in.readUTF(), null);
+            case REFRESH:
+            case LIST_CLIENTS:
+            case OK:
+                return new Message(type, null, null);
+            case OPEN_DOCUMENT:
+                return Message.openDocument(in.readUTF(), in.readBoolean());
+            case CLIENT_LIST:
+            case DOCUMENTS:
+            case CLIENTS:
+                return new Message(type, readStrings(in), null);
+            case USERS:
+                return Message.users(readStrings(in), readStrings(in));
+            case OPERATION: {
+                EncryptedMessage[] messages = new EncryptedMessage[readCount(in)];
+                for (int i = 0; i < messages.length; i++) {
+                    messages[i] = readEncryptedMessage(in);
+                }
+                return Message.operation(messages);
+            }
+            case HISTORY: {
+                int count = readCount(in);
+                ArrayList<EncryptedMessage> history = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    history.add(readEncryptedMessage(in));
+                }
+                // a history without the flag is all in one message
+                return Message.history(history, in.available() == 0 || in.readBoolean());
+            }
+            case MESSAGE:
+                return Message.message(readEncryptedMessage(in));
+            case SITE:
+                return Message.site(in.readInt(), in.readInt());
+            case ORDER_ACK:
+                return Message.orderAck(in.readInt());
+            case SESSIONS: {
+                int count = readCount(in);
+                ArrayList<SessionInfo> sessions = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    sessions.add(new SessionInfo(readPreKeyBundle(in), in.readUTF(), in.readUTF()));
+                }
+                return Message.sessions(sessions);
+            }
+            default:
+                throw new IOException("No decoding for " + type);
+        }
+    }
+
+    /**
+     * Splits the history of a document into the HISTORY messages that send
+     * it, each holding about HISTORY_FRAME bytes of encrypted messages, and
+     * the last one marked as such. An empty history is a single empty
+     * message.
+     *
+     * @param history messages the client missed, in order
+     * @return the messages to send, in order
+     */
+    public static List<Message> historyMessages(List<EncryptedMessage> history) {
+        List<Message> messages = new ArrayList<>();
+        ArrayList<EncryptedMessage> part = new ArrayList<>();
+        int bytes = 0;
+        for (EncryptedMessage message : history) {
+            // what writeEncryptedMessage writes, with ASCII IDs
+            int length = 15 + message.recipientID.length() + message.senderID.length()
+                    + ((message.message == null) ? 0 : message.message.length);
+            if (!part.isEmpty() && bytes + length > HISTORY_FRAME) {
+                messages.add(Message.history(part, false));
+                part = new ArrayList<>();
+                bytes = 0;
+            }
+            part.add(message);
+            bytes += length;
+        }
+        messages.add(Message.history(part, true));
+        return messages;
+    }
+
+    /**
+     * Reads the size of a list, which cannot be more than the bytes left,
+     * since every element takes at least one.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Invalid list size " + count);
+        }
+        return count;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static ArrayList<String> readStrings(DataInputStream in) throws IOException {
+        int count = readCount(in);
+        ArrayList<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid byte array length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeEncryptedMessage(DataOutputStream out, EncryptedMessage message) throws IOException {
+        out.writeUTF(message.recipientID);
+        out.writeUTF(message.senderID);
+        out.writeInt(message.order);
+        out.writeBoolean(message.control);
+        writeBytes(out, message.message);
+    }
+
+    private static EncryptedMessage readEncryptedMessage(DataInputStream in) throws IOException {
+        String recipientID = in.readUTF();
+        String senderID = in.readUTF();
+        int order = in.readInt();
+        boolean control = in.readBoolean();
+        EncryptedMessage message = new EncryptedMessage(recipientID, senderID, readBytes(in));
+        message.setOrder(order);
+        message.control = control;
+        return message;
+    }
+
+    //registration info is written as its prekey bundles, or -1 for none
+    private static void writeRegistrationInfo(DataOutputStream out, RegistrationInfo info) throws IOException {
+        if (info == null) {
+            out.writeInt(-1);
+            return;
+        }
+        List<PreKeyBundle> bundles = info.getPreKeyBundles();
+        out.writeInt(bundles.size());
+        for (PreKeyBundle bundle : bundles) {
+            writePreKeyBundle(out, bundle);
+        }
+    }
+
+    private static RegistrationInfo readRegistrationInfo(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count == -1) {
+            return null;
+        }
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Invalid list size " + count);
+        }
+        List<PreKeyBundle> bundles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            bundles.add(readPreKeyBundle(in));
+        }
+        return new RegistrationInfo(bundles);
+    }
+
+    private static void writePreKeyBundle(DataOutputStream out, PreKeyBundle bundle) throws IOException {
+        out.writeInt(bundle.getRegistrationId());
+        out.writeInt(bundle.getDeviceId());
+        out.writeInt(bundle.getPreKeyId());
+        writeBytes(out, (bundle.getPreKey() == null) ? null : bundle.getPreKey().serialize());
+        out.writeInt(bundle.getSignedPreKeyId());
+        writeBytes(out, (bundle.getSignedPreKey() == null) ? null : bundle.getSignedPreKey().serialize());
+        writeBytes(out, bundle.getSignedPreKeySignature());
+        writeBytes(out, (bundle.getIdentityKey() == null) ? null : bundle.getIdentityKey().serialize());
+    }
+
+    private static PreKeyBundle readPreKeyBundle(DataInputStream in) throws IOException {
+        int registrationId = in.readInt();
+        int deviceId = in.readInt();
+        int preKeyId = in.readInt();
+        byte[] preKey = readBytes(in);
+        int signedPreKeyId = in.readInt();
+        byte[] signedPreKey = readBytes(in);
+        byte[] signature = readBytes(in);
+        byte[] identityKey = readBytes(in);
+        try {
+            return new PreKeyBundle(registrationId, deviceId, preKeyId, decodeKey(preKey),
+                    signedPreKeyId, decodeKey(signedPreKey), signature,
+                    (identityKey == null) ? null : new IdentityKey(identityKey, 0));
+        } catch (InvalidKeyException e) {
+            throw new IOException("Invalid key in prekey bundle: " + e.getMessage());
+        }
+    }
+
+    private static ECPublicKey decodeKey(byte[] key) throws InvalidKeyException {
+        return (key == null) ? null : Curve.decodePoint(key, 0);
+    }
+}
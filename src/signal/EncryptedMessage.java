@@ -10,6 +10,8 @@ public class EncryptedMessage implements Serializable {
     public final String senderID;
     public final byte[] message;
     public int order;
+    //true for messages between clients that are not operations, which the server only relays
+    public boolean control;
 
     public EncryptedMessage(String recipientID, String senderID,  byte[] message) {
         this.recipientID = recipientID;
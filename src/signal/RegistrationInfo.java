@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.List;
 
 public class RegistrationInfo implements Serializable {
@@ -33,6 +34,11 @@ public class RegistrationInfo implements Serializable {
         return new SessionInfo(preKey, senderID, documentID);
     }
 
+    //the bundles this info was created with, used ones included
+    public List<PreKeyBundle> getPreKeyBundles() {
+        return Arrays.asList(preKeyBundles);
+    }
+
     //serialization methods
 
     private void writeObject(ObjectOutputStream out) throws IOException {
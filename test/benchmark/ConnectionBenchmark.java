@@ -0,0 +1,218 @@
+package benchmark;
+
+import server_client.CollabServer;
+import server_client.Message;
+import server_client.MessageType;
+import server_client.ServerMode;
+import server_client.WireProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * Compares the server modes with many clients connected at once. For each
+ * mode and number of clients it starts a server in this process, registers
+ * the clients one after the other and leaves them all waiting on the
+ * document list, where the server has to keep every connection open. It
+ * then reports how long connecting took, the platform threads and heap the
+ * server used, and how long it took every client to get the document list
+ * at once.
+ *
+ * The clients run in a second process, started with the same Java and
+ * class path, so the heap measured is the server's alone and each process
+ * needs one file descriptor per client rather than two.
+ *
+ * Usage: ConnectionBenchmark [modes] [client counts], e.g.
+ * "threads,virtual 100,1000,10000", which is the default. 10,000 clients
+ * need "ulimit -n 12000" or so. The virtual mode needs Java 21. Modes are
+ * best compared one per run of the benchmark, since the first run of a
+ * mode still finds the garbage of the mode before it in the heap.
+ */
+public class ConnectionBenchmark {
+
+    // Port of the first server, each run uses the next one
+    private static final int FIRST_PORT = 4600;
+    // Times every client asks for the document list
+    private static final int ROUNDS = 5;
+    // Longest wait for the threads of a run to end
+    private static final int SETTLE_MS = 30000;
+
+    private static int nextPort = FIRST_PORT;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("clients")) {
+            runClients(Integer.parseInt(args[1]), Integer.parseInt(args[2]), args[3]);
+            return;
+        }
+        String[] modes = (args.length > 0 ? args[0] : "threads,virtual").split(",");
+        String[] counts = (args.length > 1 ? args[1] : "100,1000,10000").split(",");
+
+        System.out.println("mode      clients  connect ms  threads  heap MB  round ms");
+        for (String name : modes) {
+            ServerMode mode = ServerMode.fromName(name);
+            if (mode == null) {
+                throw new IllegalArgumentException("Unknown server mode: " + name);
+            }
+            for (String count : counts) {
+                run(mode, Integer.parseInt(count));
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(ServerMode mode, int clients) throws Exception {
+        CollabServer server = new CollabServer(nextPort, mode);
+        int port = nextPort++;
+        Thread serverThread = new Thread(server::start, "server-" + mode.getName());
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(200);
+
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapBefore = usedHeap();
+        Process process = new ProcessBuilder(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path"), ConnectionBenchmark.class.getName(),
+                "clients", Integer.toString(port), Integer.toString(clients), mode.getName() + clients)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        PrintWriter toClients = new PrintWriter(process.getOutputStream(), true);
+        BufferedReader fromClients = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            for (int i = 0; i < clients; i++) {
+                toClients.println(server.generateToken());
+            }
+            String connected = fromClients.readLine();
+            if (connected == null || !connected.startsWith("connected ")) {
+                System.out.println(String.format("%-8s %8d  %s", mode.getName(), clients, connected));
+                return;
+            }
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+            long heap = usedHeap() - heapBefore;
+
+            toClients.println("rounds");
+            String round = fromClients.readLine();
+            if (round == null || !round.startsWith("round ")) {
+                System.out.println(String.format("%-8s %8d  %s", mode.getName(), clients, round));
+                return;
+            }
+
+            System.out.println(String.format("%-8s %8d %11d %8d %8d %9.1f", mode.getName(), clients,
+                    Long.parseLong(connected.substring(10)), threads, heap / (1024 * 1024),
+                    Double.parseDouble(round.substring(6))));
+        } finally {
+            // the clients disconnect once their input closes
+            toClients.close();
+            process.waitFor();
+            // let the server drop the connections before the next run, which takes a while with many threads
+            long deadline = System.currentTimeMillis() + SETTLE_MS;
+            do {
+                Thread.sleep(200);
+            } while (ManagementFactory.getThreadMXBean().getThreadCount() > threadsBefore
+                    && System.currentTimeMillis() < deadline);
+        }
+    }
+
+    /**
+     * Runs the clients of one run, in the second process. Reads a token for
+     * each client, connects them all and writes "connected" with the time it
+     * took, or why it failed. Then waits for "rounds", lets every client ask
+     * for the document list ROUNDS times, writes "round" with the time of one
+     * round, and disconnects them once its input closes.
+     */
+    private static void runClients(int port, int clients, String prefix) throws IOException {
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+        String[] tokens = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            tokens[i] = commands.readLine();
+        }
+        ArrayList<Client> connected = new ArrayList<>();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                connected.add(new Client(port, prefix + "-" + i, tokens[i]));
+            }
+            System.out.println("connected " + (System.nanoTime() - start) / 1000000);
+
+            if (!"rounds".equals(commands.readLine())) {
+                return;
+            }
+            start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                for (Client client : connected) {
+                    client.send(Message.refresh());
+                }
+                for (Client client : connected) {
+                    WireProtocol.read(client.in);
+                }
+            }
+            System.out.println("round " + (System.nanoTime() - start) / ROUNDS / 1e6);
+            commands.readLine();
+        } catch (IOException e) {
+            System.out.println("failed after " + connected.size() + " clients: " + e);
+        } finally {
+            for (Client client : connected) {
+                client.socket.close();
+            }
+        }
+    }
+
+    /**
+     * Return the heap in use, after collecting garbage
+     */
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * A client that registered and is choosing a document.
+     */
+    private static final class Client {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        Client(int port, String name, String token) throws IOException {
+            this.socket = new Socket("localhost", port);
+            this.socket.setTcpNoDelay(true);
+            this.out = new DataOutputStream(
+                    new BufferedOutputStream(this.socket.getOutputStream(), WireProtocol.STREAM_BUFFER));
+            WireProtocol.writeHello(this.out);
+            this.out.flush();
+            this.in = new DataInputStream(
+                    new BufferedInputStream(this.socket.getInputStream(), WireProtocol.STREAM_BUFFER));
+            WireProtocol.readHello(this.in);
+
+            // no keys, the server only needs them when a document is created
+            send(Message.loginNew(name, null));
+            expect(MessageType.OK);
+            send(Message.token(token));
+            expect(MessageType.OK);
+            expect(MessageType.DOCUMENTS);
+        }
+
+        private void send(Message m) throws IOException {
+            WireProtocol.write(this.out, m);
+            this.out.flush();
+        }
+
+        private void expect(MessageType type) throws IOException {
+            Message m = WireProtocol.read(this.in);
+            if (m.getType() != type) {
+                throw new IOException("Unexpected reply from the server: " + m);
+            }
+        }
+    }
+}
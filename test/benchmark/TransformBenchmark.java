@@ -0,0 +1,133 @@
+package benchmark;
+
+import document.ClientState;
+import document.Operation;
+import document.OperationEngine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the transform throughput of insert and delete operations, and how
+ * long an engine takes to integrate a burst of concurrent remote operations.
+ *
+ * The first part transforms each of a fixed set of operations with a
+ * concurrent one, round after round, and reports the best of a few trials.
+ * Each round transforms fresh copies, made before the timer starts, so it
+ * also measures trees where transformWith changes the operation in place.
+ * The second part lets two engines make a burst of inserts each without
+ * seeing the other's, then times one of them integrating the other's burst.
+ *
+ * It only uses Operation.createOperationFromType, copy, setOrder,
+ * transformWith and OperationEngine.push and pushRemoteOp, so the same file
+ * runs against older versions of the document package to compare with them.
+ * Numbers only compare between runs on the same machine and Java version;
+ * run it a few times and take the median.
+ *
+ * Usage: TransformBenchmark [rounds] [burst], 400 and 300 by default.
+ */
+public class TransformBenchmark {
+
+    private static final String KEY = "document";
+    // Operations transformed in each round
+    private static final int OPS = 4096;
+    // Trials of each part, the best one is reported
+    private static final int TRIALS = 5;
+    // Length of the document the operations are made in
+    private static final int TEXT_LENGTH = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 400;
+        int burst = (args.length > 1) ? Integer.parseInt(args[1]) : 300;
+
+        Random random = new Random(1);
+        Operation[] ops = new Operation[OPS];
+        Operation[] others = new Operation[OPS];
+        for (int i = 0; i < OPS; i++) {
+            ops[i] = randomOp(random, 1);
+            others[i] = randomOp(random, 2);
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            best = Math.min(best, transforms(ops, others, rounds));
+        }
+        double nanos = (double) best / ((long) OPS * rounds);
+        System.out.printf("transformWith: %.1f M transforms/s (%.0f ns)%n", 1000 / nanos, nanos);
+
+        best = Long.MAX_VALUE;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            best = Math.min(best, integrate(burst));
+        }
+        System.out.printf("burst of %d remote inserts against %d local ones: %.1f ms%n",
+                burst, burst, best / 1e6);
+    }
+
+    /**
+     * Makes a single character insert or delete at a random position of the
+     * document, with nothing in its context.
+     */
+    private static Operation randomOp(Random random, int siteId) {
+        String type = random.nextBoolean() ? "insert" : "delete";
+        String value = String.valueOf((char) ('a' + random.nextInt(26)));
+        return Operation.createOperationFromType(type, siteId, 1, new ClientState(new int[0]),
+                KEY, value, random.nextInt(TEXT_LENGTH), Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * Transforms every operation with its concurrent one, the given number
+     * of times.
+     *
+     * @return nanoseconds spent transforming
+     */
+    private static long transforms(Operation[] ops, Operation[] others, int rounds) throws Exception {
+        Operation[] copies = new Operation[ops.length];
+        long elapsed = 0;
+        int kept = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < ops.length; i++) {
+                copies[i] = ops[i].copy();
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < copies.length; i++) {
+                if (copies[i].transformWith(others[i]) != null) {
+                    kept++;
+                }
+            }
+            elapsed += System.nanoTime() - start;
+        }
+        // keeps the transforms from being optimized away
+        if (kept == 0) {
+            System.out.println("every operation was transformed away");
+        }
+        return elapsed;
+    }
+
+    /**
+     * Lets two engines make a burst of inserts each, then has the first one
+     * integrate the burst of the second.
+     *
+     * @return nanoseconds the first engine took
+     */
+    private static long integrate(int burst) throws Exception {
+        Random random = new Random(2);
+        OperationEngine local = new OperationEngine(1);
+        OperationEngine remote = new OperationEngine(2);
+        List<Operation> sent = new ArrayList<Operation>(burst);
+        for (int i = 0; i < burst; i++) {
+            String value = String.valueOf((char) ('a' + random.nextInt(26)));
+            local.push(true, KEY, value, "insert", random.nextInt(i + 1), 1, new int[0], 0);
+            Operation op = remote.push(true, KEY, value, "insert", random.nextInt(i + 1), 2, new int[0], 0).copy();
+            // as ordered by the server
+            op.setOrder(i);
+            sent.add(op);
+        }
+
+        long start = System.nanoTime();
+        for (Operation op : sent) {
+            local.pushRemoteOp(op);
+        }
+        return System.nanoTime() - start;
+    }
+}
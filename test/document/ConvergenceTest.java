@@ -0,0 +1,491 @@
+package document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that sites editing the same document concurrently end up with the
+ * same text. The sites send their operations to a simulated server, which
+ * orders them in a log and hands them to the other sites in that order,
+ * whenever a site gets around to reading them.
+ *
+ * Every run has to converge, with two sites and with three, where an insert
+ * can land next to another one only because a third site deleted the text
+ * between them. So do runs where a site loses operations and resyncs with a
+ * snapshot of another site's document, as CollabModel.resync does. The random
+ * runs are made with every kind of engine; the resyncs only with
+ * OperationEngine, whose snapshots carry tombstones. For SequencedEngine a
+ * few fixed cases also check where the edits a site makes land, since its
+ * operations give positions in the text rather than among tombstones.
+ *
+ * Run with: java document.ConvergenceTest [runs]
+ */
+public class ConvergenceTest {
+
+    private static final String KEY = "doc";
+    private static final String TEXT = "hello world";
+
+    /**
+     * One editing site: its engine and its copy of the text.
+     */
+    private static final class Site {
+        final EngineKind kind;
+        final int siteId;
+        final int sites;
+        DocumentEngine engine;
+        CausalDeliveryQueue delivery;
+        StringBuilder text;
+        // Operations of the log this site has read
+        int read = 0;
+        // Edits made to the text for the operations of the other sites
+        final List<Operation> applied = new ArrayList<Operation>();
+
+        Site(EngineKind kind, int siteId, int sites, String text) throws OperationEngineException {
+            this.kind = kind;
+            this.siteId = siteId;
+            this.sites = sites;
+            this.text = new StringBuilder(text);
+            this.engine = kind.create(siteId);
+            if (kind == EngineKind.RGA) {
+                // as inserted by a site 0 before the others joined
+                long[] ids = new long[text.length()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = RgaOperation.elementId(i + 1, 0);
+                }
+                ((RgaEngine) this.engine).restoreElements(KEY,
+                        new RgaElements(ids, text, new boolean[ids.length], ids.length));
+            }
+            this.engine.setExpectedSites(sites);
+            this.delivery = new CausalDeliveryQueue(this.engine);
+        }
+
+        Operation insert(String text, int position) throws OperationEngineException {
+            this.text.insert(position, text);
+            return this.engine.push(true, KEY, text, "insert", position, this.siteId, new int[0], 0);
+        }
+
+        Operation delete(int position, int length) {
+            this.text.delete(position, position + length);
+            return this.engine.pushLocalDelete(KEY, position, length);
+        }
+
+        /**
+         * Reads the operations of the other sites from the log, up to the
+         * given length.
+         */
+        void read(List<Operation> log, int upTo) throws OperationEngineException {
+            this.read(log, upTo, null);
+        }
+
+        /**
+         * Reads the operations of the other sites from the log, up to the
+         * given length, losing about every fourth one if lose is given. The
+         * ones after a lost one wait for it in the delivery queue. Reading
+         * one of its own operations acknowledges it, and sends what the
+         * engine held back until then. OperationEngine collects garbage
+         * after every read, so its next local operation erases whatever
+         * tombstones it can.
+         */
+        void read(List<Operation> log, int upTo, Random lose) throws OperationEngineException {
+            for (; this.read < upTo; this.read++) {
+                Operation op = log.get(this.read);
+                if (op.getSiteId() == this.siteId) {
+                    send(log, this.engine.acknowledge(op.getOrder()));
+                    continue;
+                }
+                if (lose != null && lose.nextInt(4) == 0) {
+                    continue;
+                }
+                // as received from the server, with its base
+                for (Operation transformed : this.delivery.deliver(op.withOrder(op.getOrder(), op.base))) {
+                    transformed.applyTo(this.text);
+                    this.applied.add(transformed);
+                }
+            }
+            if (this.engine instanceof OperationEngine) {
+                ((OperationEngine) this.engine).collectGarbage();
+            }
+        }
+
+        /**
+         * Goes on from a snapshot of another site's document, and pushes the
+         * operations this site integrated that the snapshot does not have on
+         * top of it, its own included.
+         */
+        void resync(Site other) throws OperationEngineException {
+            ClientState cv = other.engine.copyClientState();
+            List<Operation> history = new ArrayList<Operation>();
+            for (Operation op : other.engine.getOperationsAfter(new ClientState(new int[0]))) {
+                history.add(op.copy());
+            }
+            List<Operation> missing = this.engine.getOperationsAfter(cv);
+            List<Operation> waiting = this.delivery.getWaiting();
+
+            OperationEngine engine = new OperationEngine(this.siteId);
+            engine.setExpectedSites(this.sites);
+            engine.setCV(cv);
+            engine.restoreTombstones(((OperationEngine) other.engine).saveTombstones());
+            engine.restoreHistory(history);
+            this.engine = engine;
+            this.delivery = new CausalDeliveryQueue(engine);
+            this.text = new StringBuilder(other.text);
+
+            for (Operation transformed : this.engine.pushRemoteOps(missing)) {
+                transformed.applyTo(this.text);
+            }
+            for (Operation op : waiting) {
+                if (op.getSeqId() > cv.getSeqForClient(op.getSiteId())) {
+                    for (Operation transformed : this.delivery.deliver(op)) {
+                        transformed.applyTo(this.text);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends an operation to the server, which appends it to the log. Engines
+     * that hold an operation back until the previous one is acknowledged
+     * give null, and nothing is sent.
+     */
+    private static void send(List<Operation> log, Operation op) {
+        if (op == null) {
+            return;
+        }
+        op.setOrder(log.size());
+        log.add(op);
+    }
+
+    /**
+     * Makes a site for each ID, with the given text.
+     */
+    private static List<Site> sites(EngineKind kind, int count, String text) throws OperationEngineException {
+        List<Site> sites = new ArrayList<Site>();
+        for (int i = 1; i <= count; i++) {
+            sites.add(new Site(kind, i, count, text));
+        }
+        return sites;
+    }
+
+    /**
+     * Reads the whole log at every site.
+     */
+    private static void readAll(List<Site> sites, List<Operation> log) throws OperationEngineException {
+        // reading may acknowledge and send held back operations
+        int size = -1;
+        while (size != log.size()) {
+            size = log.size();
+            for (Site site : sites) {
+                site.read(log, log.size());
+            }
+        }
+    }
+
+    /**
+     * Two sites insert on both sides of the text a third site deletes at the
+     * same time. Every site has to keep the inserts in the order they were
+     * made in.
+     */
+    private static boolean insertsAroundDelete(EngineKind kind) throws OperationEngineException {
+        List<Site> sites = sites(kind, 3, TEXT);
+        List<Operation> log = new ArrayList<Operation>();
+        send(log, sites.get(0).insert("uR", 1));
+        send(log, sites.get(1).insert("xE", 5));
+        send(log, sites.get(2).delete(1, 4));
+        readAll(sites, log);
+        return converged(sites, "huRxE world");
+    }
+
+    /**
+     * One site inserts at the end of the text while another deletes its
+     * start. The insert has to move left by what was deleted.
+     */
+    private static boolean insertPastDelete(EngineKind kind) throws OperationEngineException {
+        List<Site> sites = sites(kind, 2, TEXT);
+        List<Operation> log = new ArrayList<Operation>();
+        send(log, sites.get(0).delete(0, 5));
+        send(log, sites.get(1).insert("X", 11));
+        readAll(sites, log);
+        return converged(sites, " worldX");
+    }
+
+    /**
+     * Two sites delete the same characters at the same time. They are only
+     * deleted once.
+     */
+    private static boolean sameDelete(EngineKind kind) throws OperationEngineException {
+        List<Site> sites = sites(kind, 2, "abcdef");
+        List<Operation> log = new ArrayList<Operation>();
+        send(log, sites.get(0).delete(1, 2));
+        send(log, sites.get(1).delete(1, 2));
+        readAll(sites, log);
+        return converged(sites, "adef");
+    }
+
+    /**
+     * Two sequenced sites delete overlapping text at the same time, and each
+     * makes an insert at the end while its delete is in flight, which waits
+     * for the acknowledgement. The deletes arrive in text coordinates, with
+     * the part the other site already deleted taken out.
+     */
+    private static boolean sequencedDeletes() throws OperationEngineException {
+        List<Site> sites = sites(EngineKind.SEQUENCED, 2, "abcdef");
+        List<Operation> log = new ArrayList<Operation>();
+        send(log, sites.get(0).delete(1, 3));
+        send(log, sites.get(0).insert("X", 3));
+        send(log, sites.get(1).delete(2, 3));
+        send(log, sites.get(1).insert("Y", 3));
+        if (log.size() != 2) {
+            return false;
+        }
+        readAll(sites, log);
+        return converged(sites, "afYX")
+                && isDelete(sites.get(0).applied.get(0), 1, 1)
+                && isDelete(sites.get(1).applied.get(0), 1, 1);
+    }
+
+    /**
+     * Three sequenced sites: two delete overlapping text while the third
+     * inserts at the end. The insert reaches the first site after the
+     * other delete, at the end of what is left of the text.
+     */
+    private static boolean sequencedThreeSites() throws OperationEngineException {
+        List<Site> sites = sites(EngineKind.SEQUENCED, 3, TEXT);
+        List<Operation> log = new ArrayList<Operation>();
+        send(log, sites.get(0).delete(0, 5));
+        send(log, sites.get(1).delete(3, 5));
+        send(log, sites.get(2).insert("X", 11));
+        readAll(sites, log);
+        List<Operation> applied = sites.get(0).applied;
+        return converged(sites, "rldX")
+                && isDelete(applied.get(0), 0, 3)
+                && applied.get(1).getKind() == OperationKind.INSERT
+                && applied.get(1).getOffset() == 3;
+    }
+
+    /**
+     * Checks that an edit deletes one range at the given position.
+     */
+    private static boolean isDelete(Operation op, int position, int length) {
+        if (op.getKind() != OperationKind.DELETE) {
+            return false;
+        }
+        DeleteOperation delete = (DeleteOperation) op;
+        return delete.getRangeCount() == 1
+                && delete.getRangeStart(0) == position
+                && delete.getRangeLength(0) == length;
+    }
+
+    /**
+     * Lets two sites delete every other word of a long text in turn, reading
+     * each other's deletes after every round. Once both have seen a round,
+     * its tombstones are erased with the next local operation, at both
+     * sites, so the runs of tombstones do not pile up.
+     */
+    private static boolean erasesTombstones() throws OperationEngineException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("word ");
+        }
+        List<Site> sites = sites(EngineKind.OT, 2, text.toString());
+        List<Operation> log = new ArrayList<Operation>();
+        for (int round = 0; round < 40; round++) {
+            for (Site site : sites) {
+                int position = (4 * round + 2 * site.siteId) % (site.text.length() - 2);
+                send(log, site.delete(position, 2));
+            }
+            readAll(sites, log);
+        }
+        for (Site site : sites) {
+            if (((OperationEngine) site.engine).getTombstoneRuns() > 8) {
+                return false;
+            }
+        }
+        return converged(sites, sites.get(0).text.toString());
+    }
+
+    /**
+     * Lets the sites make random edits and read the log at random times.
+     *
+     * @param readEvery average number of steps of a site between two reads
+     * @param ranges true to delete and insert several characters at once
+     * @return true if all sites end up with the same text
+     */
+    private static boolean randomEdits(EngineKind kind, long seed, int siteCount, int steps, int readEvery,
+                                       boolean ranges) throws OperationEngineException {
+        Random random = new Random(seed);
+        List<Site> sites = sites(kind, siteCount, TEXT);
+        List<Operation> log = new ArrayList<Operation>();
+        for (int step = 0; step < steps; step++) {
+            Site site = sites.get(random.nextInt(siteCount));
+            if (random.nextInt(readEvery) == 0) {
+                site.read(log, site.read + random.nextInt(log.size() - site.read + 1));
+            }
+            else {
+                send(log, randomEdit(random, site, ranges));
+            }
+        }
+        readAll(sites, log);
+        return converged(sites, sites.get(0).text.toString());
+    }
+
+    /**
+     * Lets three sites make random edits, while the third one loses some of
+     * the operations it reads during the first half. It resyncs twice with
+     * a snapshot of one of the others, which read at least as far as it did
+     * first, just as the snapshot has to include every operation the
+     * collabClient received.
+     */
+    private static boolean resyncs(long seed, int steps) throws OperationEngineException {
+        Random random = new Random(seed);
+        List<Site> sites = sites(EngineKind.OT, 3, TEXT);
+        Site lossy = sites.get(2);
+        List<Operation> log = new ArrayList<Operation>();
+        for (int step = 0; step < steps; step++) {
+            Site site = sites.get(random.nextInt(3));
+            if (random.nextInt(6) == 0) {
+                Random lose = (site == lossy && step < steps / 2) ? random : null;
+                site.read(log, site.read + random.nextInt(log.size() - site.read + 1), lose);
+            }
+            else {
+                send(log, randomEdit(random, site, true));
+            }
+            if (step == steps / 2 || step == 3 * steps / 4) {
+                Site other = sites.get(random.nextInt(2));
+                other.read(log, Math.max(other.read, lossy.read));
+                lossy.resync(other);
+            }
+        }
+        readAll(sites, log);
+        return converged(sites, sites.get(0).text.toString());
+    }
+
+    /**
+     * Lets two sites make long runs of random edits without reading each
+     * other's, so every operation of one run is concurrent with the whole
+     * run of the other site and goes through the offset index. The text is
+     * long enough that most edits of a run land away from the other run.
+     */
+    private static boolean longRuns(EngineKind kind, long seed, int rounds, int runLength, boolean ranges)
+            throws OperationEngineException {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 1000) {
+            text.append(TEXT).append(' ');
+        }
+        List<Site> sites = sites(kind, 2, text.toString());
+        List<Operation> log = new ArrayList<Operation>();
+        for (int round = 0; round < rounds; round++) {
+            for (Site site : sites) {
+                for (int i = 0; i < runLength; i++) {
+                    send(log, randomEdit(random, site, ranges));
+                }
+            }
+            readAll(sites, log);
+        }
+        return converged(sites, sites.get(0).text.toString());
+    }
+
+    /**
+     * Makes a random insert or delete at a site.
+     */
+    private static Operation randomEdit(Random random, Site site, boolean ranges)
+            throws OperationEngineException {
+        int length = site.text.length();
+        if (length > 0 && random.nextBoolean()) {
+            int position = random.nextInt(length);
+            int count = ranges ? 1 + random.nextInt(Math.min(4, length - position)) : 1;
+            return site.delete(position, count);
+        }
+        int count = ranges ? 1 + random.nextInt(3) : 1;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return site.insert(text.toString(), random.nextInt(length + 1));
+    }
+
+    private static boolean converged(List<Site> sites, String expected) {
+        for (Site site : sites) {
+            if (!site.text.toString().equals(expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the random edits with the given parameters, or the long runs if
+     * readEvery is 0 and the resyncs if it is negative, and returns the number of runs that did not converge.
+     * A run whose operations no longer fit the text of some site did not
+     * converge either.
+     */
+    private static int diverged(EngineKind kind, int runs, int sites, int steps, int readEvery, boolean ranges) {
+        int diverged = 0;
+        for (int seed = 0; seed < runs; seed++) {
+            try {
+                boolean converged = (readEvery == 0)
+                        ? longRuns(kind, seed, 4, steps / 8, ranges)
+                        : (readEvery < 0)
+                        ? resyncs(seed, steps)
+                        : randomEdits(kind, seed, sites, steps, readEvery, ranges);
+                if (!converged) {
+                    diverged++;
+                }
+            }
+            catch (OperationEngineException | RuntimeException e) {
+                diverged++;
+            }
+        }
+        System.out.println(kind.getName() + ", " + sites + " sites, " + steps + " steps, "
+                + (readEvery == 0 ? "long runs, " : "")
+                + (readEvery < 0 ? "resyncs, " : "")
+                + (ranges ? "ranges" : "single characters") + ": "
+                + diverged + " of " + runs + " runs diverged");
+        return diverged;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        boolean failed = false;
+
+        for (EngineKind kind : EngineKind.values()) {
+            if (!insertsAroundDelete(kind)) {
+                System.out.println(kind.getName() + ": inserts around a concurrent delete diverged");
+                failed = true;
+            }
+            if (!insertPastDelete(kind)) {
+                System.out.println(kind.getName() + ": insert past a concurrent delete diverged");
+                failed = true;
+            }
+            if (!sameDelete(kind)) {
+                System.out.println(kind.getName() + ": concurrent deletes of the same text diverged");
+                failed = true;
+            }
+            for (boolean ranges : new boolean[] {false, true}) {
+                failed |= diverged(kind, runs, 2, 40, 8, ranges) > 0;
+                failed |= diverged(kind, runs / 5, 2, 400, 0, ranges) > 0;
+                failed |= diverged(kind, runs, 3, 40, 8, ranges) > 0;
+            }
+        }
+        if (!sequencedDeletes()) {
+            System.out.println("sequenced: overlapping deletes with queued inserts diverged");
+            failed = true;
+        }
+        if (!sequencedThreeSites()) {
+            System.out.println("sequenced: three sites with overlapping deletes diverged");
+            failed = true;
+        }
+        failed |= diverged(EngineKind.OT, runs / 5, 3, 200, -1, true) > 0;
+        if (!erasesTombstones()) {
+            System.out.println("Tombstones every site has were not erased");
+            failed = true;
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}